@@ -31,6 +31,7 @@ import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 
 import com.bcom.drimbox.dmp.xades.hl7.HL7Receiver;
+import com.bcom.drimbox.pacs.AssociationPool.RetrieveMode;
 import com.bcom.drimbox.pacs.CStoreSCP;
 
 import jakarta.annotation.PostConstruct;
@@ -52,6 +53,8 @@ public class DbMain {
 	String host;
 	@ConfigProperty(name="dcm.cstore.port")
 	int port;
+	@ConfigProperty(name="pacs.retrieveMode", defaultValue = "CMOVE")
+	RetrieveMode retrieveMode;
 
 	@Inject
 	@CommandLineArguments
@@ -98,7 +101,9 @@ public class DbMain {
 			case SOURCE:
 				Log.info("Starting DrimBOX Source");
 				type = DrimBOXMode.SOURCE;
-				cStoreSCP.startCStore(calledAET, host, port);
+				// With C-GET the instances come back on the association of the request
+				if (retrieveMode == RetrieveMode.CMOVE)
+					cStoreSCP.startCStore(calledAET, host, port);
 				break;
 			case CONSO:
 				Log.info("Starting DrimBOX Conso");
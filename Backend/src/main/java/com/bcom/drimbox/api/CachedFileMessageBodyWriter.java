@@ -0,0 +1,96 @@
+/*
+ *  CachedFileMessageBodyWriter.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.MultivaluedMap;
+import jakarta.ws.rs.ext.Provider;
+
+import com.bcom.drimbox.pacs.cache.CachedFile;
+import org.jboss.resteasy.reactive.server.core.ResteasyReactiveRequestContext;
+import org.jboss.resteasy.reactive.server.spi.ResteasyReactiveResourceInfo;
+import org.jboss.resteasy.reactive.server.spi.ServerMessageBodyWriter;
+import org.jboss.resteasy.reactive.server.spi.ServerRequestContext;
+
+import io.quarkus.logging.Log;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerResponse;
+
+/**
+ * Write files of the DICOM cache to the client.
+ *
+ * The content of the file is handed to Vert.x as is, so off-heap files are sent without being copied on the heap.
+ * The reference of the request on the file is released once it is sent.
+ */
+@Provider
+public class CachedFileMessageBodyWriter implements ServerMessageBodyWriter<CachedFile> {
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, ResteasyReactiveResourceInfo target, MediaType mediaType) {
+		return CachedFile.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public boolean isWriteable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+		return CachedFile.class.isAssignableFrom(type);
+	}
+
+	@Override
+	public void writeResponse(CachedFile file, Type genericType, ServerRequestContext context) {
+		HttpServerResponse response = ((ResteasyReactiveRequestContext) context).serverRequest().unwrap(HttpServerResponse.class);
+		if (response == null) {
+			context.serverResponse().end(file.getBytes());
+			file.release();
+			return;
+		}
+
+		try {
+			// Vert.x does not release the buffer, we do it once it is written (or the connection is closed)
+			response.end(Buffer.buffer(file.content()), result -> file.release());
+		} catch (IllegalStateException e) {
+			Log.error("Can't write cached file : " + e.getMessage());
+			file.release();
+		}
+	}
+
+	@Override
+	public void writeTo(CachedFile file, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
+						MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) throws IOException {
+		try {
+			file.writeTo(entityStream);
+		} finally {
+			file.release();
+		}
+	}
+}
@@ -33,23 +33,39 @@ import io.quarkus.logging.Log;
 import io.smallrye.mutiny.Uni;
 import com.bcom.drimbox.dmp.auth.WebTokenAuth;
 import com.bcom.drimbox.pacs.PacsCache;
+import com.bcom.drimbox.pacs.SeriesPrefetcher;
+import com.bcom.drimbox.pacs.cache.CachedFile;
+import com.bcom.drimbox.pacs.cache.InstanceHeader;
+import com.bcom.drimbox.utils.ByteRange;
+import com.bcom.drimbox.utils.JsonArrayRewriter;
 import com.bcom.drimbox.utils.RequestHelper;
+import com.bcom.drimbox.utils.SharedWebClient;
 import io.vertx.core.Vertx;
-import org.dcm4che3.data.Attributes;
+import io.vertx.core.json.JsonObject;
+import io.vertx.mutiny.core.buffer.Buffer;
+import io.vertx.mutiny.core.http.HttpClientResponse;
+import io.vertx.mutiny.ext.web.client.HttpRequest;
+import io.vertx.mutiny.ext.web.client.HttpResponse;
 import org.dcm4che3.data.Tag;
-import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.util.TagUtils;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestMulti;
 import org.jboss.resteasy.reactive.RestResponse;
 
 import jakarta.inject.Inject;
 import jakarta.json.*;
+import jakarta.json.stream.JsonGenerator;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
 import static com.bcom.drimbox.utils.PrefixConstants.*;
@@ -64,6 +80,9 @@ public class DRIMboxConsoAPI {
 	@Inject
 	RequestHelper requestHelper;
 
+	@Inject
+	SharedWebClient webClient;
+
 
 	/**
 	 * Http protocol (may be changed later to https://)
@@ -73,6 +92,9 @@ public class DRIMboxConsoAPI {
 	@Inject
 	PacsCache pacsCache;
 
+	@Inject
+	SeriesPrefetcher seriesPrefetcher;
+
 	/**
 	 * This will contain the cookieID in the form of "Bearer cookieID"
 	 */
@@ -94,10 +116,10 @@ public class DRIMboxConsoAPI {
 	@GET
 	@Path("wado/{drimboxSourceURL}")
 	@Produces("application/dicom")
-	public Uni<RestResponse<byte[]>> wadoRequest(String drimboxSourceURL, @Context UriInfo uriInfo) {
+	public Uni<RestResponse<CachedFile>> wadoRequest(String drimboxSourceURL, @Context UriInfo uriInfo) {
 
 		if (!checkAuthorization())
-			return Uni.createFrom().item(requestHelper.getDeniedFileResponse(401));
+			return Uni.createFrom().item(getDeniedCachedFileResponse(401));
 
 		MultivaluedMap<String, String> params = uriInfo.getQueryParameters();
 		String studyUID = params.get("studyUID").get(0);
@@ -107,8 +129,7 @@ public class DRIMboxConsoAPI {
 		Log.info("[WADO] Request : " + instanceUID);
 
 		try {
-			Future<byte[]> future = pacsCache.getDicomFile(studyUID, seriesUID, instanceUID);
-			return Uni.createFrom().future(future).onItem().transform(
+			return getCachedFile(studyUID, seriesUID, instanceUID).onItem().transform(
 					item -> {
 						Log.info("[WADO] Response : " + instanceUID);
 						return RestResponse.ResponseBuilder.ok(item).build();
@@ -117,13 +138,13 @@ public class DRIMboxConsoAPI {
 		} catch (Exception e) {
 			// TODO : Is this really fatal ?
 			Log.fatal("Can't get file from cache");
-			return Uni.createFrom().item(requestHelper.getDeniedFileResponse());
+			return Uni.createFrom().item(getDeniedCachedFileResponse(500));
 		}
 	}
 
 	@GET
 	@Path("rs/{drimboxSourceURL}/studies/{studyUID}")
-	public RestResponse<byte[]> studyRequest(String drimboxSourceURL, String studyUID) {
+	public RestMulti<Buffer> studyRequest(String drimboxSourceURL, String studyUID) {
 		return seriesRequest(drimboxSourceURL, studyUID, "");
 	}
 
@@ -131,27 +152,28 @@ public class DRIMboxConsoAPI {
 	@GET
 	@Path("rs/{drimboxSourceURL}/studies/{studyUID}/series/{seriesUID}")
 	//@Produces(MediaType.MULTIPART_FORM_DATA)
-	public RestResponse<byte[]> seriesRequest(String drimboxSourceURL, String studyUID, String seriesUID) {
+	public RestMulti<Buffer> seriesRequest(String drimboxSourceURL, String studyUID, String seriesUID) {
 		String url = HTTP_PROTOCOL + drimboxSourceURL + "/" + DRIMBOX_PREFIX + "/" + STUDIES_PREFIX + "/" + studyUID;
 		if (!seriesUID.isEmpty()) {
 			url += "/series/" + seriesUID;
 		}
 
-		return requestHelper.fileRequest(url, this::getDrimboxConnection);
+		// The series is forwarded while it is received, it is never held in memory
+		return requestHelper.streamRequest(url, this::drimboxStream);
 	}
 
 	@GET
 	@Path("rs/{drimboxSourceURL}/studies/{studyUID}/series")
 	@Produces("application/dicom+json")
-	public RestResponse<String> seriesListRequest(String drimboxSourceURL, String studyUID) {
+	public Uni<RestResponse<String>> seriesListRequest(String drimboxSourceURL, String studyUID) {
 		String url = HTTP_PROTOCOL + drimboxSourceURL + "/" + DRIMBOX_PREFIX + "/" + STUDIES_PREFIX + "/" + studyUID + "/" + SERIES_PREFIX;
-		return requestHelper.stringRequest(url, this::getDrimboxConnection);
+		return requestHelper.stringRequest(url, this::drimboxRequest);
 	}
 
 	@GET
 	@Path("rs/{drimboxSourceURL}/studies/{studyUID}/series/{seriesUID}/metadata")
 	@Produces("application/dicom+json")
-	public RestResponse<String> metadataRequest(String drimboxSourceURL, String studyUID, String seriesUID) {
+	public Uni<RestResponse<String>> metadataRequest(String drimboxSourceURL, String studyUID, String seriesUID) {
 		String url = HTTP_PROTOCOL + drimboxSourceURL + "/" + DRIMBOX_PREFIX + "/" + STUDIES_PREFIX + "/" + studyUID;
 		if (!seriesUID.isEmpty()) {
 			url += "/series/" + seriesUID;
@@ -160,7 +182,7 @@ public class DRIMboxConsoAPI {
 		// This is non-blocking operation
 		pacsCache.addNewEntry(drimboxSourceURL, getAccessToken(), studyUID, seriesUID, sopInstanceUID);
 
-		return requestHelper.stringRequest(url + "/" + METADATA_PREFIX, this::getDrimboxConnection);
+		return requestHelper.stringRequest(url + "/" + METADATA_PREFIX, this::drimboxRequest);
 	}
 
 	private String getAccessToken() {
@@ -248,11 +270,7 @@ public class DRIMboxConsoAPI {
 
 		// Get drimboxSource url
 		try {
-			URL u = new URL(seriesInfo.retrieveURL);
-			String protocol = u.getProtocol();
-			String authority = u.getAuthority();
-			drimboxSourceURL = String.format("%s://%s", protocol, authority);
-
+			drimboxSourceURL = seriesInfo.getDrimboxSourceURL();
 		} catch (MalformedURLException e) {
 			e.printStackTrace();
 			return Uni.createFrom().item(Response.ok(e.getMessage()).status(500).build());
@@ -262,99 +280,44 @@ public class DRIMboxConsoAPI {
 		// Add series to the cache
 		// This is non-blocking operation
 		var cacheFuture = pacsCache.addNewEntry(drimboxSourceURL, getAccessToken(), studyUID, seriesUID, sopInstanceUID);
+		// The other series of the study will probably be opened next, fetch them in the background
+		seriesPrefetcher.prefetchStudy(kos, seriesUID, getAccessToken(), sopInstanceUID);
 
 		CompletableFuture<Response> completableFuture = new CompletableFuture<>();
 
-		String patientINS = kos.getPatientINS();
-		vertx.eventBus().consumer( PacsCache.getEventBusID(studyUID, seriesUID), message ->  {
-			// OHIF needs metadata in advance for images. We work around that by taking one image in the series
-			// and we extract their metadata.
-			String referenceInstanceUID = message.body().toString();
-
-			Attributes attributes;
-			try {
-				byte[] dicomFile = pacsCache.getDicomFile(studyUID, seriesUID, referenceInstanceUID).get();
-				DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(dicomFile));
-				attributes = dis.readDataset();
+		// The document only changes with the series, the KOS or the URL of the conso
+		final String metadataKey = String.format("%s|%s|%d|%d", uriInfo.getBaseUri(), kos.getPatientINS(),
+				seriesInfo.instancesUID.size(), seriesInfo.instancesUID.hashCode());
+		byte[] cachedMetadata = pacsCache.getSeriesMetadata(studyUID, seriesUID, metadataKey);
+		if (cachedMetadata != null) {
+			Log.info("[OHIF] Metadata from cache : " + seriesUID);
+			return Uni.createFrom().item(Response.ok(cachedMetadata).build());
+		}
 
-			} catch (Exception e) {
-				Log.error("Can't get dicom file from cache.");
-				e.printStackTrace();
-				completableFuture.complete(Response.noContent().status(500).build());
+		// Called once, as soon as the first file of the series is in the cache
+		pacsCache.getFirstInstanceUID(studyUID, seriesUID).whenComplete((referenceInstanceUID, error) -> {
+			if (error instanceof TimeoutException) {
+				completableFuture.complete(Response.ok("Series was not received in time").status(504).build());
 				return;
 			}
+			// A failed fetch is answered by cacheFuture
+			if (error != null || referenceInstanceUID == null)
+				return;
 
-			JsonObjectBuilder root = Json.createObjectBuilder();
-			JsonArrayBuilder studiesArray = Json.createArrayBuilder();
-			JsonArrayBuilder seriesArray = Json.createArrayBuilder();
-			JsonArrayBuilder instancesArray = Json.createArrayBuilder();
-
-			JsonObjectBuilder seriesObject = Json.createObjectBuilder();
-			seriesObject.add("SeriesInstanceUID", seriesUID);
-
-
-			// TODO : temporary until we can get this from the KOS
-			int instanceNumber = 0;
-
+			// OHIF needs metadata in advance for images. We work around that by taking one image in the series
+			// and we extract their metadata.
 
-			for(String currentInstanceUID : seriesInfo.instancesUID) {
-				Function<Integer, String> getStringField = (var tag) ->  attributes.getString(tag, "");
-				Function<Integer, Integer> getIntField = (var tag) -> attributes.getInt(tag, 0);
-
-				JsonObjectBuilder metadata = Json.createObjectBuilder();
-				metadata.add("SOPInstanceUID", currentInstanceUID);
-
-				metadata.add("SeriesInstanceUID", getStringField.apply(Tag.SeriesInstanceUID));
-				metadata.add("StudyInstanceUID", getStringField.apply(Tag.StudyInstanceUID));
-				metadata.add("SOPClassUID", getStringField.apply(Tag.SOPClassUID));
-				metadata.add("Modality", getStringField.apply(Tag.Modality));
-				metadata.add("Columns", getIntField.apply(Tag.Columns));
-				metadata.add("Rows", getIntField.apply(Tag.Rows));
-				metadata.add("PixelRepresentation", getIntField.apply(Tag.PixelRepresentation));
-				metadata.add("BitsAllocated", getIntField.apply(Tag.BitsAllocated));
-				metadata.add("BitsStored", getIntField.apply(Tag.BitsStored));
-				metadata.add("SamplesPerPixel", getIntField.apply(Tag.SamplesPerPixel));
-				metadata.add("HighBit", getIntField.apply(Tag.HighBit));
-				metadata.add("PhotometricInterpretation", getStringField.apply(Tag.PhotometricInterpretation));
-				metadata.add("INS", patientINS);
-
-
-				// TODO : handle instance number from KOS
-				metadata.add("InstanceNumber", instanceNumber++);
-
-
-				// Add to the instance list
-				instancesArray.add(Json.createObjectBuilder()
-						.add("metadata", metadata)
-						.add("url", "dicomweb:" + uriInfo.getBaseUri() + DICOM_FILE_PREFIX + "/" + studyUID + "/" + seriesUID + "/" + currentInstanceUID )
-				);
+			// Headers were read when the files entered the cache, no file is parsed here
+			Map<String, InstanceHeader> headers = pacsCache.getInstanceHeaders(studyUID, seriesUID);
+			InstanceHeader reference = headers.get(referenceInstanceUID);
+			if (reference == null) {
+				Log.error("Can't get header of " + referenceInstanceUID + " from cache.");
+				completableFuture.complete(Response.noContent().status(500).build());
+				return;
 			}
 
-			seriesObject.add("instances", instancesArray);
-			seriesObject.add("Modality", "CT");
-			seriesArray.add(seriesObject);
-
-			JsonObjectBuilder study = Json.createObjectBuilder();
-			study.add("StudyInstanceUID", studyUID);
-			study.add("series", seriesArray);
-			study.add("NumInstances", seriesInfo.instancesUID.size());
-
-			study.add("StudyDate",  attributes.getString(Tag.StudyDate, "20000101"));
-			study.add("StudyTime", attributes.getString(Tag.StudyTime, ""));
-			study.add("PatientName", attributes.getString(Tag.PatientName, "Anonymous"));
-			study.add("PatientID", attributes.getString(Tag.PatientID, ""));
-			study.add("AccessionNumber", "");
-			study.add("PatientAge", attributes.getString(Tag.PatientAge, ""));
-			study.add("PatientSex", attributes.getString(Tag.PatientSex, ""));
-			study.add("StudyDescription", "");
-			// TODO handle modalities (maybe not necessary ?)
-			study.add("Modalities", attributes.getString(Tag.Modality, ""));
-
-			studiesArray.add(study);
-
-			root.add("studies", studiesArray);
-
-			String ohifMetadata = root.build().toString();
+			byte[] ohifMetadata = buildOHIFv3Metadata(uriInfo, kos, seriesInfo, studyUID, seriesUID, headers, reference);
+			pacsCache.putSeriesMetadata(studyUID, seriesUID, metadataKey, ohifMetadata);
 			completableFuture.complete(Response.ok(ohifMetadata).build());
 
 		});
@@ -362,13 +325,10 @@ public class DRIMboxConsoAPI {
 
 		cacheFuture.onComplete(
 				entryAdded -> {
-			// We need to fire the event on the event bus ourselves since the data is already in the cache
+			// The series is already in the cache : the metadata was built right away
 			if (entryAdded.succeeded() && entryAdded.result() == 0) {
-				vertx.eventBus().publish(PacsCache.getEventBusID(studyUID, seriesUID),
-						// We take the first instance ID of the series
-						pacsCache.getFirstInstanceNumber(studyUID, seriesUID)
-						// NOTE : we do not do something like this : seriesInfo.instancesUID.get(0) in case of missing images
-				);
+				if (!completableFuture.isDone())
+					completableFuture.complete(Response.ok("Series is in the cache but JSON data is empty").status(500).build());
 			// This should not happen, but it is here in a fail-case scenario
 			} else if (entryAdded.succeeded() && !completableFuture.isDone()) {
 				completableFuture.complete(Response.ok("Cache was created but JSON data is empty").status(500).build());
@@ -397,10 +357,120 @@ public class DRIMboxConsoAPI {
 		return Uni.createFrom().future(completableFuture);
 	}
 
+	/**
+	 * Build the OHIF metadata of a series from the headers of its instances. Instances that are not received yet
+	 * use the header of the reference instance, with an instance number following the order of the KOS.
+	 *
+	 * The document is written with a generator, without building a tree of JSON objects first.
+	 *
+	 * @param headers Instance UID => header of the instances in the cache
+	 * @param reference Header of an instance of the series
+	 * @return Serialized JSON document
+	 */
+	private static byte[] buildOHIFv3Metadata(UriInfo uriInfo, KOSFile kos, KOSFile.SeriesInfo seriesInfo, String studyUID, String seriesUID,
+											  Map<String, InstanceHeader> headers, InstanceHeader reference) {
+		String patientINS = kos.getPatientINS();
+		final String instanceURLPrefix = "dicomweb:" + uriInfo.getBaseUri() + DICOM_FILE_PREFIX + "/" + studyUID + "/" + seriesUID + "/";
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream(1024 * (seriesInfo.instancesUID.size() + 1));
+		try (JsonGenerator generator = Json.createGenerator(output)) {
+			generator.writeStartObject()
+					.writeStartArray("studies")
+					.writeStartObject()
+					.write("StudyInstanceUID", studyUID)
+					.writeStartArray("series")
+					.writeStartObject()
+					.write("SeriesInstanceUID", seriesUID)
+					.writeStartArray("instances");
+
+			int kosIndex = 0;
+			for(String currentInstanceUID : seriesInfo.instancesUID) {
+				kosIndex++;
+				InstanceHeader header = headers.get(currentInstanceUID);
+				final boolean received = header != null;
+				if (!received)
+					header = reference;
+
+				generator.writeStartObject()
+						.writeStartObject("metadata")
+						.write("SOPInstanceUID", currentInstanceUID)
+						.write("SeriesInstanceUID", header.getSeriesInstanceUID())
+						.write("StudyInstanceUID", header.getStudyInstanceUID())
+						.write("SOPClassUID", header.getSOPClassUID())
+						.write("Modality", header.getModality())
+						.write("Columns", header.getColumns())
+						.write("Rows", header.getRows())
+						.write("PixelRepresentation", header.getPixelRepresentation())
+						.write("BitsAllocated", header.getBitsAllocated())
+						.write("BitsStored", header.getBitsStored())
+						.write("SamplesPerPixel", header.getSamplesPerPixel())
+						.write("HighBit", header.getHighBit())
+						.write("PhotometricInterpretation", header.getPhotometricInterpretation())
+						.write("NumberOfFrames", header.getNumberOfFrames())
+						.write("RescaleIntercept", header.getRescaleIntercept())
+						.write("RescaleSlope", header.getRescaleSlope())
+						.write("INS", patientINS)
+						.write("InstanceNumber", received ? header.getInstanceNumber() : kosIndex);
+
+				// Geometry is specific to each image : it is only written for received instances
+				if (received) {
+					writeArray(generator, "ImagePositionPatient", header.getImagePositionPatient());
+					writeArray(generator, "ImageOrientationPatient", header.getImageOrientationPatient());
+					if (header.getFrameOfReferenceUID() != null)
+						generator.write("FrameOfReferenceUID", header.getFrameOfReferenceUID());
+					if (header.getSliceThickness() > 0)
+						generator.write("SliceThickness", header.getSliceThickness());
+				}
+				writeArray(generator, "PixelSpacing", header.getPixelSpacing());
+				writeArray(generator, "WindowCenter", header.getWindowCenter());
+				writeArray(generator, "WindowWidth", header.getWindowWidth());
+
+				generator.writeEnd()
+						.write("url", instanceURLPrefix + currentInstanceUID)
+						.writeEnd();
+			}
+
+			generator.writeEnd()
+					.write("Modality", reference.getModality())
+					.writeEnd()
+					.writeEnd()
+					.write("NumInstances", seriesInfo.instancesUID.size())
+					.write("StudyDate", reference.getStudyDate())
+					.write("StudyTime", reference.getStudyTime())
+					.write("PatientName", reference.getPatientName())
+					.write("PatientID", reference.getPatientID())
+					.write("AccessionNumber", "")
+					.write("PatientAge", reference.getPatientAge())
+					.write("PatientSex", reference.getPatientSex())
+					.write("StudyDescription", "")
+					// TODO handle modalities (maybe not necessary ?)
+					.write("Modalities", reference.getModality())
+					.writeEnd()
+					.writeEnd()
+					.writeEnd();
+		}
+
+		return output.toByteArray();
+	}
+
+	/**
+	 * Write a numeric attribute as a JSON array, nothing is written if the attribute is missing
+	 */
+	private static void writeArray(JsonGenerator generator, String name, double[] values) {
+		if (values == null || values.length == 0)
+			return;
+
+		generator.writeStartArray(name);
+		for (double value : values) {
+			generator.write(value);
+		}
+		generator.writeEnd();
+	}
+
 	@Produces(MediaType.APPLICATION_JSON)
 	@GET
 	@Path("ohifv3metadata/{drimboxSourceURL}/{studyUID}/{seriesUID}/{sopInstanceUID}")
-	public Response getOHIFv3Metadata(@Context UriInfo uriInfo, String drimboxSourceURL, String studyUID, String seriesUID, String sopInstanceUID) {
+	public RestMulti<Buffer> getOHIFv3Metadata(@Context UriInfo uriInfo, String drimboxSourceURL, String studyUID, String seriesUID, String sopInstanceUID) {
 		// TODO : this is direct access to the contents and will be removed in the future
 
 		// Note : This will also populate the cache
@@ -410,96 +480,108 @@ public class DRIMboxConsoAPI {
 		if (!seriesUID.isEmpty()) {
 			url += "/series/" + seriesUID;
 		}
-		var response = requestHelper.stringRequest(url + "/" + METADATA_PREFIX, this::getDrimboxConnection);
+		// Read before the response comes back, outside of the request. Without authorization the request fails
+		// and the token is not used.
+		final URI baseUri = uriInfo.getBaseUri();
+		final String accessToken = checkAuthorization() ? getAccessToken() : null;
+
+		// The metadata of the source is parsed while it is received and the document is written to the client at
+		// the same time. The series is added to the cache once the source has answered.
+		return requestHelper.jsonStreamRequest(url + "/" + METADATA_PREFIX,
+				metadataUrl -> drimboxStream(metadataUrl)
+						// This is non-blocking operation
+						.invoke(() -> pacsCache.addNewEntry(drimboxSourceURL, accessToken, studyUID, seriesUID, sopInstanceUID)),
+				new OHIFv3MetadataWriter(baseUri, studyUID, seriesUID),
+				(errorCode, reason) -> {
+					switch (errorCode) {
+						case 502:
+						case 504:
+							return reason;
+						case 404:
+							return String.format("Series %s (study : %s) not found at %s", seriesUID, studyUID, drimboxSourceURL);
+						default:
+							return String.format("Error when retrieving metadata at %s for %s / %s / %s. Reason : %s", drimboxSourceURL, studyUID, seriesUID, sopInstanceUID, reason);
+					}
+				});
+	}
 
-		int responseCode = response.getStatus();
-		String responseMessage = response.getEntity();
-		switch(responseCode) {
-			case 502:
-			case 504:
-				return Response.ok(responseMessage).status(responseCode).build();
-			case 404:
-				return Response.ok(String.format("Series %s (study : %s) not found at %s", seriesUID, studyUID, drimboxSourceURL)).status(responseCode).build();
-			case 200:
-				break;
-			default:
-				return Response.ok(String.format("Error when retrieving metadata at %s for %s / %s / %s. Reason : %s", drimboxSourceURL, studyUID, seriesUID, sopInstanceUID, responseMessage)).status(responseCode).build();
+	/**
+	 * Writes the OHIF document of a series from the DICOM JSON metadata of its instances, each instance is written
+	 * as soon as it is parsed
+	 */
+	private static class OHIFv3MetadataWriter implements JsonArrayRewriter.Writer {
+		private final URI baseUri;
+		private final String studyUID;
+		private final String seriesUID;
+		private int numInstances = 0;
+
+		OHIFv3MetadataWriter(URI baseUri, String studyUID, String seriesUID) {
+			this.baseUri = baseUri;
+			this.studyUID = studyUID;
+			this.seriesUID = seriesUID;
 		}
 
+		@Override
+		public void start(JsonGenerator generator) {
+			generator.writeStartObject()
+					.writeStartArray("studies")
+					.writeStartObject()
+					.write("StudyInstanceUID", studyUID)
+					.writeStartArray("series")
+					.writeStartObject()
+					.write("SeriesInstanceUID", seriesUID)
+					.writeStartArray("instances");
+		}
 
-		// Add series to the cache
-		// This is non-blocking operation
-		pacsCache.addNewEntry(drimboxSourceURL, getAccessToken(), studyUID, seriesUID, sopInstanceUID);
-
-
-		// Read metadata from server
-		var jsonReader = Json.createReader(new StringReader(responseMessage));
-		JsonArray dicomMetadata = jsonReader.readArray();
-
-
-		JsonObjectBuilder root = Json.createObjectBuilder();
-		JsonArrayBuilder studiesArray = Json.createArrayBuilder();
-		JsonArrayBuilder seriesArray = Json.createArrayBuilder();
-		JsonArrayBuilder instancesArray = Json.createArrayBuilder();
-
-		JsonObjectBuilder seriesObject = Json.createObjectBuilder();
-		seriesObject.add("SeriesInstanceUID", seriesUID);
-
-		for(Object dicomInstanceMetadata : dicomMetadata) {
-			JsonObject currentInstanceJson = (JsonObject) dicomInstanceMetadata;
+		@Override
+		public void write(JsonGenerator generator, JsonObject currentInstanceJson) {
 			Function<Integer, String> getStringField = (var tag) ->  currentInstanceJson.getJsonObject(TagUtils.toHexString(tag)).getJsonArray("Value").getString(0);
-			Function<Integer, Integer> getIntField = (var tag) ->  currentInstanceJson.getJsonObject(TagUtils.toHexString(tag)).getJsonArray("Value").getInt(0);
+			Function<Integer, Integer> getIntField = (var tag) ->  currentInstanceJson.getJsonObject(TagUtils.toHexString(tag)).getJsonArray("Value").getInteger(0);
 
-			JsonObjectBuilder metadata = Json.createObjectBuilder();
 			String instanceUID = getStringField.apply(Tag.SOPInstanceUID);
-			metadata.add("SOPInstanceUID", instanceUID);
-			metadata.add("SeriesInstanceUID", getStringField.apply(Tag.SeriesInstanceUID));
-			metadata.add("StudyInstanceUID", getStringField.apply(Tag.StudyInstanceUID));
-			metadata.add("SOPClassUID", getStringField.apply(Tag.SOPClassUID));
-			metadata.add("Modality", getStringField.apply(Tag.Modality));
-			metadata.add("Columns", getIntField.apply(Tag.Columns));
-			metadata.add("Rows", getIntField.apply(Tag.Rows));
-			metadata.add("PixelRepresentation", getIntField.apply(Tag.PixelRepresentation));
-			metadata.add("BitsAllocated", getIntField.apply(Tag.BitsAllocated));
-			metadata.add("BitsStored", getIntField.apply(Tag.BitsStored));
-			metadata.add("SamplesPerPixel", getIntField.apply(Tag.SamplesPerPixel));
-			metadata.add("HighBit", getIntField.apply(Tag.HighBit));
-			metadata.add("PhotometricInterpretation", getStringField.apply(Tag.PhotometricInterpretation));
-			metadata.add("InstanceNumber", getStringField.apply(Tag.InstanceNumber));
-
-
-
-			// Add to the instance list
-			instancesArray.add(Json.createObjectBuilder()
-					.add("metadata", metadata)
-					.add("url", "dicomweb:" + uriInfo.getBaseUri() + DICOM_FILE_PREFIX + "/" + studyUID + "/" + seriesUID + "/" + instanceUID )
-			);
+			generator.writeStartObject()
+					.writeStartObject("metadata")
+					.write("SOPInstanceUID", instanceUID)
+					.write("SeriesInstanceUID", getStringField.apply(Tag.SeriesInstanceUID))
+					.write("StudyInstanceUID", getStringField.apply(Tag.StudyInstanceUID))
+					.write("SOPClassUID", getStringField.apply(Tag.SOPClassUID))
+					.write("Modality", getStringField.apply(Tag.Modality))
+					.write("Columns", getIntField.apply(Tag.Columns))
+					.write("Rows", getIntField.apply(Tag.Rows))
+					.write("PixelRepresentation", getIntField.apply(Tag.PixelRepresentation))
+					.write("BitsAllocated", getIntField.apply(Tag.BitsAllocated))
+					.write("BitsStored", getIntField.apply(Tag.BitsStored))
+					.write("SamplesPerPixel", getIntField.apply(Tag.SamplesPerPixel))
+					.write("HighBit", getIntField.apply(Tag.HighBit))
+					.write("PhotometricInterpretation", getStringField.apply(Tag.PhotometricInterpretation))
+					.write("InstanceNumber", getStringField.apply(Tag.InstanceNumber))
+					.writeEnd()
+					.write("url", "dicomweb:" + baseUri + DICOM_FILE_PREFIX + "/" + studyUID + "/" + seriesUID + "/" + instanceUID)
+					.writeEnd();
+			numInstances++;
+		}
+
+		@Override
+		public void end(JsonGenerator generator) {
+			generator.writeEnd()
+					.write("Modality", "CT")
+					.writeEnd()
+					.writeEnd()
+					.write("NumInstances", numInstances)
+					.write("StudyDate", "20000101")
+					.write("StudyTime", "")
+					.write("PatientName", "")
+					.write("PatientID", "LOL")
+					.write("AccessionNumber", "")
+					.write("PatientAge", "")
+					.write("PatientSex", "")
+					.write("StudyDescription", "")
+					// TODO handle modalities (maybe not necessary ?)
+					.write("Modalities", "CT")
+					.writeEnd()
+					.writeEnd()
+					.writeEnd();
 		}
-		seriesObject.add("instances", instancesArray);
-		seriesObject.add("Modality", "CT");
-		seriesArray.add(seriesObject);
-
-		JsonObjectBuilder study = Json.createObjectBuilder();
-		study.add("StudyInstanceUID", studyUID);
-		study.add("series", seriesArray);
-		study.add("NumInstances", dicomMetadata.size());
-
-		study.add("StudyDate", "20000101");
-		study.add("StudyTime", "");
-		study.add("PatientName", "");
-		study.add("PatientID", "LOL");
-		study.add("AccessionNumber", "");
-		study.add("PatientAge", "");
-		study.add("PatientSex", "");
-		study.add("StudyDescription", "");
-		// TODO handle modalities (maybe not necessary ?)
-		study.add("Modalities", "CT");
-
-		studiesArray.add(study);
-
-		root.add("studies", studiesArray);
-
-		return Response.ok(root.build().toString()).build();
 	}
 
 
@@ -508,30 +590,106 @@ public class DRIMboxConsoAPI {
 	@GET
 	@Path(DICOM_FILE_PREFIX + "/{studyUID}/{seriesUID}/{instanceUID}")
 	//@Produces("application/dicom")
-	public Uni<RestResponse<byte[]>> getDicomFile(String studyUID, String seriesUID, String instanceUID) {
+	public Uni<RestResponse<CachedFile>> getDicomFile(String studyUID, String seriesUID, String instanceUID, @HeaderParam("Range") String range) {
 		if (!checkAuthorization())
-			return Uni.createFrom().item(requestHelper.getDeniedFileResponse(401));
+			return Uni.createFrom().item(getDeniedCachedFileResponse(401));
 
 		try {
-			Future<byte[]> future = pacsCache.getDicomFile(studyUID, seriesUID, instanceUID);
-			return Uni.createFrom().future(future).onItem().transform(
+			return getCachedFile(studyUID, seriesUID, instanceUID).onItem().transform(
 					item -> {
-						if (item.length == 0) {
+						if (item.isEmpty()) {
 							Log.info("[dicomfile] Not found : " + instanceUID);
 							return RestResponse.ResponseBuilder.ok(item).header("Accept-Ranges", "bytes").status(410).build();
 						}
 						Log.info("[dicomfile] Response : " + instanceUID);
-						return RestResponse.ResponseBuilder.ok(item).header("Accept-Ranges", "bytes").build();
+						return getFileResponse(item, range, "application/dicom");
 					}
 					)
-					.onFailure().recoverWithItem(requestHelper.getDeniedFileResponse(404));
+					.onFailure(TimeoutException.class).recoverWithItem(getDeniedCachedFileResponse(504))
+					.onFailure().recoverWithItem(getDeniedCachedFileResponse(404));
 		} catch (Exception e) {
 			Log.error("Can't get file from cache");
 			e.printStackTrace();
-			return Uni.createFrom().item(requestHelper.getDeniedFileResponse());
+			return Uni.createFrom().item(getDeniedCachedFileResponse(500));
 		}
 	}
 
+	/**
+	 * Get a file from the cache. The file is written to the client without copy by CachedFileMessageBodyWriter,
+	 * which releases it once sent.
+	 */
+	private Uni<CachedFile> getCachedFile(String studyUID, String seriesUID, String instanceUID) {
+		CompletableFuture<CachedFile> future = pacsCache.getDicomFile(studyUID, seriesUID, instanceUID);
+		return Uni.createFrom().completionStage(future)
+				// Client is gone : stop waiting for the file, or give it back if it was already there
+				.onCancellation().invoke(() -> {
+					if (!future.cancel(false))
+						future.thenAccept(CachedFile::release);
+				});
+	}
+
+	/**
+	 * Build the response of a file, or of the parts asked by a Range header. Parts are slices of the cached file,
+	 * they are not copied.
+	 *
+	 * @param file File from the cache, its reference is handed to the response
+	 * @param range Range header of the request, may be null
+	 * @param contentType Content type of the file
+	 */
+	private static RestResponse<CachedFile> getFileResponse(CachedFile file, String range, String contentType) {
+		final int size = file.size();
+		List<ByteRange> ranges = ByteRange.parse(range, size);
+
+		if (ranges == null)
+			return RestResponse.ResponseBuilder.ok(file).header("Accept-Ranges", "bytes").build();
+
+		if (ranges.isEmpty()) {
+			file.release();
+			return RestResponse.ResponseBuilder.ok(CachedFile.wrap(new byte[0]))
+					.status(416).header("Content-Range", ByteRange.unsatisfiedContentRange(size)).build();
+		}
+
+		try {
+			if (ranges.size() == 1) {
+				ByteRange part = ranges.get(0);
+				return RestResponse.ResponseBuilder.ok(file.slice((int) part.getFirst(), (int) part.getLength()))
+						.status(206).header("Accept-Ranges", "bytes").header("Content-Range", part.toContentRange(size)).build();
+			}
+
+			// multipart/byteranges : each part has its own headers
+			final String boundary = UUID.randomUUID().toString();
+			List<CachedFile> parts = new ArrayList<>();
+			for (ByteRange part : ranges) {
+				String partHeader = String.format("\r\n--%s\r\nContent-Type: %s\r\nContent-Range: %s\r\n\r\n",
+						boundary, contentType, part.toContentRange(size));
+				parts.add(CachedFile.wrap(partHeader.getBytes(StandardCharsets.US_ASCII)));
+				parts.add(file.slice((int) part.getFirst(), (int) part.getLength()));
+			}
+			parts.add(CachedFile.wrap(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII)));
+
+			return RestResponse.ResponseBuilder.ok(CachedFile.concat(parts), "multipart/byteranges; boundary=" + boundary)
+					.status(206).header("Accept-Ranges", "bytes").build();
+		} finally {
+			// The parts hold their own reference on the file
+			file.release();
+		}
+	}
+
+	private static RestResponse<CachedFile> getDeniedCachedFileResponse(int code) {
+		return RestResponse.ResponseBuilder.ok(CachedFile.wrap(new byte[0])).status(code).build();
+	}
+
+	/**
+	 * Counters of the DICOM cache (hits, misses, evictions and memory used). This is used to size the heap of
+	 * the conso node.
+	 */
+	@GET
+	@Path("cache/stats")
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getCacheStatistics() {
+		return pacsCache.getStatistics().toJson(pacsCache.getMaxSizeBytes(), pacsCache.getDiskSizeBytes()).toString();
+	}
+
 	private Boolean checkAuthorization() {
 		if(noAuth)
 			return true;
@@ -549,52 +707,94 @@ public class DRIMboxConsoAPI {
 		return authHeader.replace("Bearer ", "");
 	}
 
-	private HttpURLConnection getDrimboxConnection(String drimboxUrl) throws RequestErrorException {
+	private Uni<HttpResponse<Buffer>> drimboxRequest(String drimboxUrl) {
+		final Map<String, String> headers;
+		try {
+			headers = getDrimboxHeaders();
+		} catch (RequestErrorException e) {
+			return Uni.createFrom().failure(e);
+		}
+
+		HttpRequest<Buffer> request = webClient.get(drimboxUrl);
+		headers.forEach(request::putHeader);
 
+		return webClient.send(request)
+				.onFailure().transform(e -> toDrimboxError(drimboxUrl, e))
+				.onItem().transformToUni(response -> {
+					RequestErrorException error = checkDrimboxResponse(response.statusCode());
+					return error == null ? Uni.createFrom().item(response) : Uni.createFrom().failure(error);
+				});
+	}
+
+	private Uni<HttpClientResponse> drimboxStream(String drimboxUrl) {
+		final Map<String, String> headers;
 		try {
-			Log.info("Check auth with cookie ID...");
-			if (!checkAuthorization()) {
-				throw new RequestErrorException("Cookie ID is not valid", 401);
-			}
-			Log.info("Auth is ok.");
+			headers = getDrimboxHeaders();
+		} catch (RequestErrorException e) {
+			return Uni.createFrom().failure(e);
+		}
 
-			final URL url = new URL(drimboxUrl);
+		return webClient.stream(drimboxUrl, headers)
+				.onFailure().transform(e -> toDrimboxError(drimboxUrl, e))
+				.onItem().transformToUni(response -> {
+					RequestErrorException error = checkDrimboxResponse(response.statusCode());
+					if (error == null)
+						return Uni.createFrom().item(response);
 
-			final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			connection.setRequestMethod("GET");
+					// The error body is dropped so the connection can be reused
+					response.resume();
+					return Uni.createFrom().failure(error);
+				});
+	}
 
-			if (!noAuth)
-				connection.setRequestProperty("Authorization", webTokenAuth.getAccessToken(getCookieID()).getRawAccessToken());
+	/**
+	 * @return Headers of a request to a source drimbox
+	 * @throws RequestErrorException If the cookie ID is not valid
+	 */
+	private Map<String, String> getDrimboxHeaders() throws RequestErrorException {
+		Log.info("Check auth with cookie ID...");
+		if (!checkAuthorization()) {
+			throw new RequestErrorException("Cookie ID is not valid", 401);
+		}
+		Log.info("Auth is ok.");
 
-			int responseCode = connection.getResponseCode();
+		if (noAuth)
+			return Map.of();
 
-			switch (responseCode) {
-				case 502:
-					throw new RequestErrorException("Pacs failed to respond", responseCode);
-				case 504:
-					throw new RequestErrorException("Pacs timeout", responseCode);
-				case 200:
-				case 206:
-					break;
-				default:
-					throw new RequestErrorException("DRIMbox request failed with code " + responseCode, responseCode);
-			}
+		return Map.of("Authorization", webTokenAuth.getAccessToken(getCookieID()).getRawAccessToken());
+	}
 
-			return connection;
-		} catch (ProtocolException e) {
-			throw new RequestErrorException("ProtocolException : " + e.getMessage(), 500);
-		} catch (MalformedURLException e) {
-			throw new RequestErrorException("MalformedURLException : " + e.getMessage(), 500);
-		} catch (ConnectException e) {
+	private static RequestErrorException toDrimboxError(String drimboxUrl, Throwable e) {
+		// Already refused by the guard of the source drimbox
+		if (e instanceof RequestErrorException)
+			return (RequestErrorException) e;
+		if (e instanceof ConnectException) {
 			Log.error(String.format("DRIMbox at %s is not responding.", drimboxUrl));
 			Log.error(String.format("Error : %s", e.getMessage()));
 
-			throw new RequestErrorException("DRIMbox source is not responding.", 502);
-		} catch (IOException e) {
-			throw new RequestErrorException("IOException : " + e.getMessage(), 500);
+			return new RequestErrorException("DRIMbox source is not responding.", 502);
 		}
+		if (e instanceof TimeoutException)
+			return new RequestErrorException("DRIMbox source timeout", 504);
 
+		return new RequestErrorException("IOException : " + e.getMessage(), 500);
+	}
 
+	/**
+	 * @return Error matching the response code of a source drimbox, null if the request succeeded
+	 */
+	private static RequestErrorException checkDrimboxResponse(int responseCode) {
+		switch (responseCode) {
+			case 502:
+				return new RequestErrorException("Pacs failed to respond", responseCode);
+			case 504:
+				return new RequestErrorException("Pacs timeout", responseCode);
+			case 200:
+			case 206:
+				return null;
+			default:
+				return new RequestErrorException("DRIMbox request failed with code " + responseCode, responseCode);
+		}
 	}
 }
 
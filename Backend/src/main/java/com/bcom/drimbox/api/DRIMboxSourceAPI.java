@@ -35,11 +35,10 @@ import static com.bcom.drimbox.utils.PrefixConstants.STUDIES_PREFIX;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.Future;
-import java.util.function.Function;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -47,7 +46,7 @@ import java.util.stream.Collectors;
 import io.smallrye.mutiny.Uni;
 import jakarta.enterprise.inject.spi.CDI;
 import jakarta.inject.Inject;
-import jakarta.json.*;
+import jakarta.json.stream.JsonGenerator;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.container.ContainerRequestContext;
 import jakarta.ws.rs.core.*;
@@ -67,11 +66,18 @@ import com.bcom.drimbox.dmp.database.DatabaseManager;
 import com.bcom.drimbox.dmp.database.SourceEntity;
 import com.bcom.drimbox.pacs.CStoreSCP;
 import com.bcom.drimbox.psc.ProSanteConnect;
+import com.bcom.drimbox.utils.JsonArrayRewriter;
 import com.bcom.drimbox.utils.RequestHelper;
+import com.bcom.drimbox.utils.SharedWebClient;
 
 import io.quarkus.logging.Log;
 import io.smallrye.common.annotation.Blocking;
 import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.vertx.core.json.JsonObject;
+import io.vertx.mutiny.core.buffer.Buffer;
+import io.vertx.mutiny.core.http.HttpClientResponse;
+import io.vertx.mutiny.ext.web.client.HttpResponse;
 import org.jboss.resteasy.reactive.server.ServerExceptionMapper;
 
 
@@ -92,6 +98,9 @@ public class DRIMboxSourceAPI {
 	@Inject
 	RequestHelper requestHelper;
 
+	@Inject
+	SharedWebClient webClient;
+
 
 	@Inject
 	DatabaseManager databaseManager;
@@ -248,195 +257,256 @@ public class DRIMboxSourceAPI {
 	@Produces(MediaType.APPLICATION_JSON)
 	@GET
 	@Path("ohifv3metadata/{studyUID}")
-	public Response getOHIFv3Metadata(String studyUID, @Context UriInfo uriInfo) {
+	public RestMulti<Buffer> getOHIFv3Metadata(String studyUID, @Context UriInfo uriInfo) {
 
 		final String pacsUrl = getWadoUrl();
 
 		String url = pacsUrl + "/" + STUDIES_PREFIX +"/" + studyUID + "/" + METADATA_PREFIX;
-		var response = requestHelper.stringRequest(url, this::getPacsConnection);
-
-		int responseCode = response.getStatus();
-		String responseMessage = response.getEntity();
-		switch(responseCode) {
-			case 502:
-			case 504:
-				return Response.ok(responseMessage).status(responseCode).build();
-			case 404:
-				return Response.ok(String.format("Study : %s not found at %s", studyUID, pacsUrl)).status(responseCode).build();
-			case 200:
-				break;
-			default:
-				return Response.ok(String.format("Error when retrieving metadata at %s for study %s. Reason : %s", pacsUrl, studyUID, responseMessage)).status(responseCode).build();
-		}
-
-		// Read metadata from server
-		var jsonReader = Json.createReader(new StringReader(responseMessage));
-		JsonArray dicomMetadata = jsonReader.readArray();
-
-
-		JsonObjectBuilder root = Json.createObjectBuilder();
-		JsonArrayBuilder studiesArray = Json.createArrayBuilder();
-		JsonArrayBuilder seriesArray = Json.createArrayBuilder();
 
+		// Read before the response comes back, outside of the request
+		final String instanceURLPrefix = "wadouri:" + uriInfo.getBaseUri() + DRIMBOX_PREFIX + "/" + DICOM_FILE_PREFIX + "/" + studyUID + "/";
 
+		// The metadata of the PACS is parsed while it is received and the document is written to the client at the same time
+		return requestHelper.jsonStreamRequest(url, this::pacsStream, new OHIFv3MetadataWriter(studyUID, instanceURLPrefix), (errorCode, reason) -> {
+			switch (errorCode) {
+				case 502:
+				case 504:
+					return reason;
+				case 404:
+					return String.format("Study : %s not found at %s", studyUID, pacsUrl);
+				default:
+					return String.format("Error when retrieving metadata at %s for study %s. Reason : %s", pacsUrl, studyUID, reason);
+			}
+		});
+	}
 
-		Map<String, JsonObjectBuilder> seriesMap = new HashMap<>();
-		Map<String, JsonArrayBuilder> instanceMap = new HashMap<>();
-
-		for(Object dicomInstanceMetadata : dicomMetadata) {
-
-			JsonObject currentInstanceJson = (JsonObject) dicomInstanceMetadata;
-			Function<Integer, String> getStringField = (var tag) ->  currentInstanceJson.getJsonObject(TagUtils.toHexString(tag)).getJsonArray("Value").getString(0);
+	/**
+	 * Writes the OHIF document of a study from the DICOM JSON metadata of its instances.
+	 *
+	 * Instances are written as they are parsed, in the order of the PACS, which gives the instances of a series
+	 * one after the other. Only the instances of a series that come back after another series has started are
+	 * kept, with just the fields of the document, and written at the end.
+	 */
+	private static class OHIFv3MetadataWriter implements JsonArrayRewriter.Writer {
+		private final String studyUID;
+		private final String instanceURLPrefix;
+
+		// Series being written, null before the first instance
+		private String currentSeriesUID = null;
+		private final Set<String> writtenSeries = new HashSet<>();
+		// SOP instance UID, study UID, SOP class UID and instance number of the late instances, by series
+		private final Map<String, List<String[]>> lateInstances = new LinkedHashMap<>();
+		private int numInstances = 0;
+
+		OHIFv3MetadataWriter(String studyUID, String instanceURLPrefix) {
+			this.studyUID = studyUID;
+			this.instanceURLPrefix = instanceURLPrefix;
+		}
 
-			final String currentSeriesUID = getStringField.apply(Tag.SeriesInstanceUID);
+		@Override
+		public void start(JsonGenerator generator) {
+			generator.writeStartObject()
+					.writeStartArray("studies")
+					.writeStartObject()
+					.write("StudyInstanceUID", studyUID)
+					.writeStartArray("series");
+		}
 
-			// If our series is not already in the map we add it
-			if (!seriesMap.containsKey(currentSeriesUID)) {
-				JsonObjectBuilder seriesObject = Json.createObjectBuilder();
-				seriesObject.add("SeriesInstanceUID", currentSeriesUID);
+		@Override
+		public void write(JsonGenerator generator, JsonObject instanceMetadata) {
+			final String seriesUID = getMetadataValue(instanceMetadata, Tag.SeriesInstanceUID);
+			final String[] instance = {
+					getMetadataValue(instanceMetadata, Tag.SOPInstanceUID),
+					getMetadataValue(instanceMetadata, Tag.StudyInstanceUID),
+					getMetadataValue(instanceMetadata, Tag.SOPClassUID),
+					getMetadataValue(instanceMetadata, Tag.InstanceNumber)
+			};
+			numInstances++;
+
+			if (!seriesUID.equals(currentSeriesUID)) {
+				if (writtenSeries.contains(seriesUID)) {
+					lateInstances.computeIfAbsent(seriesUID, k -> new ArrayList<>()).add(instance);
+					return;
+				}
 
-				seriesMap.put(currentSeriesUID, seriesObject);
+				if (currentSeriesUID != null)
+					generator.writeEnd().writeEnd();
+				startSeries(generator, seriesUID);
 			}
 
-			JsonObjectBuilder currentSeriesJsonObject = seriesMap.get(currentSeriesUID);
-
-			JsonObjectBuilder metadata = Json.createObjectBuilder();
-			String instanceUID = getStringField.apply(Tag.SOPInstanceUID);
-			metadata.add("SOPInstanceUID", instanceUID);
-			metadata.add("SeriesInstanceUID", currentSeriesUID);
-			metadata.add("StudyInstanceUID", getStringField.apply(Tag.StudyInstanceUID));
-			metadata.add("SOPClassUID", getStringField.apply(Tag.SOPClassUID));
-			metadata.add("InstanceNumber", getStringField.apply(Tag.InstanceNumber));
+			writeInstance(generator, seriesUID, instance);
+		}
 
+		@Override
+		public void end(JsonGenerator generator) {
+			if (currentSeriesUID != null)
+				generator.writeEnd().writeEnd();
 
-			if (!instanceMap.containsKey(currentSeriesUID)) {
-				JsonArrayBuilder instancesArray = Json.createArrayBuilder();
-				instanceMap.put(currentSeriesUID, instancesArray);
+			// The series is written a second time, viewers merge the instances of a same series
+			for (Map.Entry<String, List<String[]>> series : lateInstances.entrySet()) {
+				startSeries(generator, series.getKey());
+				for (String[] instance : series.getValue()) {
+					writeInstance(generator, series.getKey(), instance);
+				}
+				generator.writeEnd().writeEnd();
 			}
 
-			JsonArrayBuilder currentInstancesArray = instanceMap.get(currentSeriesUID);
-
-			// Add to the instance list
-			currentInstancesArray.add(Json.createObjectBuilder()
-					.add("metadata", metadata)
-					.add("url", "wadouri:" + uriInfo.getBaseUri() + DRIMBOX_PREFIX + "/" + DICOM_FILE_PREFIX + "/" + studyUID + "/" + currentSeriesUID + "/" + instanceUID )
-			);
-
+			generator.writeEnd()
+					.write("NumInstances", numInstances)
+					.write("StudyDate", "20000101")
+					.write("StudyTime", "")
+					.write("PatientName", "")
+					.write("PatientID", "LOL")
+					.write("AccessionNumber", "")
+					.write("PatientAge", "")
+					.write("PatientSex", "")
+					.write("StudyDescription", "")
+					.writeEnd()
+					.writeEnd()
+					.writeEnd();
 		}
 
-		for (Map.Entry<String, JsonObjectBuilder> entry : seriesMap.entrySet()) {
-			String seriesUID = entry.getKey();
-			JsonObjectBuilder currentSeriesJsonObject = entry.getValue();
-
-			currentSeriesJsonObject.add("instances", instanceMap.get(seriesUID));
-			seriesArray.add(currentSeriesJsonObject);
+		private void startSeries(JsonGenerator generator, String seriesUID) {
+			currentSeriesUID = seriesUID;
+			writtenSeries.add(seriesUID);
+			generator.writeStartObject()
+					.write("SeriesInstanceUID", seriesUID)
+					.writeStartArray("instances");
 		}
 
+		private void writeInstance(JsonGenerator generator, String seriesUID, String[] instance) {
+			generator.writeStartObject()
+					.writeStartObject("metadata")
+					.write("SOPInstanceUID", instance[0])
+					.write("SeriesInstanceUID", seriesUID)
+					.write("StudyInstanceUID", instance[1])
+					.write("SOPClassUID", instance[2])
+					.write("InstanceNumber", instance[3])
+					.writeEnd()
+					.write("url", instanceURLPrefix + seriesUID + "/" + instance[0])
+					.writeEnd();
+		}
+	}
 
-		JsonObjectBuilder study = Json.createObjectBuilder();
-		study.add("StudyInstanceUID", studyUID);
-		study.add("series", seriesArray);
-		study.add("NumInstances", dicomMetadata.size());
-
-		study.add("StudyDate", "20000101");
-		study.add("StudyTime", "");
-		study.add("PatientName", "");
-		study.add("PatientID", "LOL");
-		study.add("AccessionNumber", "");
-		study.add("PatientAge", "");
-		study.add("PatientSex", "");
-		study.add("StudyDescription", "");
-
-		studiesArray.add(study);
-
-		root.add("studies", studiesArray);
-
-		return Response.ok(root.build().toString()).build();
+	/**
+	 * @return First value of a tag in the DICOM JSON metadata of an instance, numbers are given as strings
+	 */
+	private static String getMetadataValue(JsonObject instanceMetadata, int tag) {
+		return instanceMetadata.getJsonObject(TagUtils.toHexString(tag)).getJsonArray("Value").getValue(0).toString();
 	}
 
 	// TODO : add authentification
 	@GET
 	@Path(DICOM_FILE_PREFIX + "/{studyUID}/{seriesUID}/{instanceUID}")
-	public RestResponse<byte[]> getDicomFile(String studyUID, String seriesUID, String instanceUID) {
+	public Uni<RestResponse<Buffer>> getDicomFile(String studyUID, String seriesUID, String instanceUID) {
 		String url = getWadoUrl() + "/" + STUDIES_PREFIX +"/" + studyUID + "/" + SERIES_PREFIX + "/" + seriesUID + "/instances/" +  instanceUID;
 
-		var dicomFiles = requestHelper.multipartFileRequest(url, this::getPacsConnection);
-
-		if (dicomFiles.size() != 1) {
-			Log.error("Should have retrieve only one dicom file");
-			return RestResponse.noContent();
-		}
+		// A second part is enough to know the response is wrong, the rest of it is not read
+		return requestHelper.multipartFileRequest(url, this::pacsStream).select().first(2).collect().asList().map(dicomFiles -> {
+			if (dicomFiles.size() != 1) {
+				Log.error("Should have retrieve only one dicom file");
+				return RestResponse.noContent();
+			}
 
-		return RestResponse.ok(dicomFiles.get(0));
+			return RestResponse.ok(dicomFiles.get(0));
+		});
 	}
 
 	@GET
 	@Path("/studies/{studyUID}/series/{seriesUID}/metadata")
 	@Produces("application/dicom+json")
-	public RestResponse<String> drimboxMetadataRequest(String studyUID, String seriesUID) {
+	public Uni<RestResponse<String>> drimboxMetadataRequest(String studyUID, String seriesUID) {
 		String url = getWadoUrl() + "/" + STUDIES_PREFIX +"/" + studyUID + "/" + SERIES_PREFIX + "/" + seriesUID + "/" + METADATA_PREFIX;
 
-		return requestHelper.stringRequest(url, this::getPacsConnection);
+		return requestHelper.stringRequest(url, this::pacsRequest);
 	}
 
 	@GET
 	@Path("/studies/{studyUID}/series")
 	@Produces("application/dicom+json")
-	public RestResponse<String> drimboxSeriesRequest(String studyUID) {
+	public Uni<RestResponse<String>> drimboxSeriesRequest(String studyUID) {
 		String url = getWadoUrl() + "/" + STUDIES_PREFIX + "/" + studyUID + "/" + SERIES_PREFIX;
 
-		return requestHelper.stringRequest(url, this::getPacsConnection);
+		return requestHelper.stringRequest(url, this::pacsRequest);
 	}
 
 	@GET
 	@Path("/wado")
 	@Produces("application/dicom")
-	public RestResponse<byte[]> drimboxWadoURI(@Context UriInfo uriInfo) {
+	public Uni<RestResponse<byte[]>> drimboxWadoURI(@Context UriInfo uriInfo) {
 		String url = requestHelper.constructUrlWithParam(getWadoURIUrl(), uriInfo);
 
-		return requestHelper.fileRequest(url, this::getPacsConnection);
+		return requestHelper.fileRequest(url, this::pacsRequest);
 	}
 
 
-	private HttpURLConnection getPacsConnection(String pacsUrl) throws RequestErrorException  {
-		try {
-			final URL url = new URL(pacsUrl);
-
-			if (!checkAuthorisation()) {
-				throw new RequestErrorException("Authentication failure", 401);
-			}
+	private Uni<HttpResponse<Buffer>> pacsRequest(String pacsUrl) {
+		return authorise()
+				.onItem().transformToUni(ignored -> webClient.send(webClient.get(pacsUrl))
+						.onFailure().transform(e -> toPacsError(pacsUrl, e)))
+				.onItem().transformToUni(response -> {
+					RequestErrorException error = checkPacsResponse(response.statusCode());
+					return error == null ? Uni.createFrom().item(response) : Uni.createFrom().failure(error);
+				});
+	}
 
-			final int timeoutValueMS = 60000;
-			final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-			connection.setConnectTimeout(timeoutValueMS);
-			connection.setReadTimeout(timeoutValueMS);
-			connection.setRequestMethod("GET");
-			int responseCode = connection.getResponseCode();
+	private Uni<HttpClientResponse> pacsStream(String pacsUrl) {
+		return authorise()
+				.onItem().transformToUni(ignored -> webClient.stream(pacsUrl, Map.of())
+						.onFailure().transform(e -> toPacsError(pacsUrl, e)))
+				.onItem().transformToUni(response -> {
+					RequestErrorException error = checkPacsResponse(response.statusCode());
+					if (error == null)
+						return Uni.createFrom().item(response);
+
+					// The error body is dropped so the connection can be reused
+					response.resume();
+					return Uni.createFrom().failure(error);
+				});
+	}
 
-			switch(responseCode) {
-				case 404:
-					throw new RequestErrorException("Cannot find resource", responseCode);
-				case 504:
-					throw new RequestErrorException("Pacs didn't respond in time.", responseCode);
-				case 200:
-				case 206:
-					break;
-				default:
-					throw new RequestErrorException("Pacs request failed.", responseCode);
-			}
+	/**
+	 * @return Uni that fails with a RequestErrorException if the bearer token is not valid
+	 */
+	private Uni<Void> authorise() {
+		// The introspection of the token is a blocking call to Pro Sante Connect, it is done on a worker thread
+		Uni<Boolean> authorisation = noAuth
+				? Uni.createFrom().item(true)
+				: Uni.createFrom().item(this::checkAuthorisation).runSubscriptionOn(Infrastructure.getDefaultWorkerPool());
+
+		return authorisation.onItem().transformToUni(authorised -> authorised
+				? Uni.createFrom().voidItem()
+				: Uni.createFrom().failure(new RequestErrorException("Authentication failure", 401)));
+	}
 
-			return connection;
-		} catch (ProtocolException e) {
-			throw new RequestErrorException("ProtocolException : " + e.getMessage(), 500);
-		} catch (MalformedURLException e) {
-			throw new RequestErrorException("MalformedURLException : " + e.getMessage(), 500);
-		} catch (SocketTimeoutException e) {
-			throw new RequestErrorException("Pacs didn't respond in time. " + e.getMessage(), 504);
-		} catch (ConnectException e) {
+	private static RequestErrorException toPacsError(String pacsUrl, Throwable e) {
+		// Already refused by the guard of the PACS
+		if (e instanceof RequestErrorException)
+			return (RequestErrorException) e;
+		if (e instanceof TimeoutException)
+			return new RequestErrorException("Pacs didn't respond in time. " + e.getMessage(), 504);
+		if (e instanceof ConnectException) {
 			Log.error(String.format("Pacs at %s is not responding.", pacsUrl));
-			throw new RequestErrorException("Pacs is not responding. " + e.getMessage(), 502);
-		} catch (IOException e) {
-			throw new RequestErrorException("IOException : " + e.getMessage(), 500);
+			return new RequestErrorException("Pacs is not responding. " + e.getMessage(), 502);
+		}
+
+		return new RequestErrorException("IOException : " + e.getMessage(), 500);
+	}
+
+	/**
+	 * @return Error matching the response code of the PACS, null if the request succeeded
+	 */
+	private static RequestErrorException checkPacsResponse(int responseCode) {
+		switch(responseCode) {
+			case 404:
+				return new RequestErrorException("Cannot find resource", responseCode);
+			case 504:
+				return new RequestErrorException("Pacs didn't respond in time.", responseCode);
+			case 200:
+			case 206:
+				return null;
+			default:
+				return new RequestErrorException("Pacs request failed.", responseCode);
 		}
 	}
 
@@ -31,8 +31,10 @@ import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.net.MalformedURLException;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.URL;
 import java.net.UnknownHostException;
 import java.nio.file.Files;
 import java.time.LocalDate;
@@ -67,9 +69,18 @@ public class KOSFile {
 	public static class SeriesInfo {
 		public String retrieveURL;
 		public List<String> instancesUID = new ArrayList<>();
+
+		/**
+		 * @return URL of the source drimbox (protocol and authority of the retrieve URL)
+		 */
+		public String getDrimboxSourceURL() throws MalformedURLException {
+			URL u = new URL(retrieveURL);
+			return String.format("%s://%s", u.getProtocol(), u.getAuthority());
+		}
 	}
 	// StudyID => { SeriesID => RetrieveURL, SeriesID => RetrieveURL,... }
-	Map<String, SeriesInfo> seriesURL = new HashMap<>();
+	// Series are kept in the order of the KOS
+	Map<String, SeriesInfo> seriesURL = new LinkedHashMap<>();
 
 	private static final String BASE_OID = "1.3.2.751468943.3";
 
@@ -364,7 +375,7 @@ public class KOSFile {
 	}
 
 	/**
-	 * A map that contains data associated with the series in the KOS
+	 * A map that contains data associated with the series in the KOS, in the order of the KOS
 	 * @return { seriesUID => SeriesInfo, ... }
 	 */
 	public Map<String, SeriesInfo> getSeriesInfo() {
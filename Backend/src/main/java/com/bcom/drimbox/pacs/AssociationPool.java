@@ -0,0 +1,321 @@
+/*
+ *  AssociationPool.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs;
+
+import java.io.IOException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.ApplicationEntity;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.Device;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.TransferCapability;
+import org.dcm4che3.net.pdu.AAssociateRQ;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.pdu.RoleSelection;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.quarkus.logging.Log;
+
+/**
+ * Associations to the PACS shared by the C-MOVE (or C-GET) and C-FIND requests.
+ *
+ * The associations are opened once with the presentation contexts of all the requests (C-MOVE, C-FIND and C-ECHO,
+ * plus C-GET and the storage SOP classes with the SCP role in C-GET mode) and given back to the pool after each request, so a retrieve doesn't pay for the association setup. At most
+ * maxAssociations are used at the same time, the next requests wait for one of them. Unused associations are
+ * checked with a C-ECHO every echoIntervalSeconds and released after idleSeconds.
+ */
+@Singleton
+public class AssociationPool {
+	// Presentation context IDs (odd numbers)
+	private static final int MOVE_PC_ID = 1;
+	private static final int FIND_PC_ID = 3;
+	private static final int ECHO_PC_ID = 5;
+	private static final int GET_PC_ID = 7;
+
+	/**
+	 * How the instances of a series are retrieved from the PACS
+	 */
+	public enum RetrieveMode {
+		// C-MOVE to the C-STORE SCP of the drimbox
+		CMOVE,
+		// C-GET, the instances come back on the same association
+		CGET
+	}
+
+	@ConfigProperty(name="dcm.cmove.callingAET")
+	String callingAET;
+	@ConfigProperty(name="dcm.cmove.calledAET")
+	String calledAET;
+	@ConfigProperty(name="dcm.cmove.port")
+	int port;
+
+	@ConfigProperty(name="pacs.baseUrl")
+	String pacsUrl;
+
+	@ConfigProperty(name="pacs.retrieveMode", defaultValue = "CMOVE")
+	RetrieveMode retrieveMode;
+
+	// Max number of associations used at the same time
+	@ConfigProperty(name="dcm.pool.maxAssociations", defaultValue = "4")
+	int maxAssociations;
+
+	// Time after which an unused association is released
+	@ConfigProperty(name="dcm.pool.idleSeconds", defaultValue = "120")
+	int idleSeconds;
+
+	// Interval of the C-ECHO checks of the unused associations
+	@ConfigProperty(name="dcm.pool.echoIntervalSeconds", defaultValue = "30")
+	int echoIntervalSeconds;
+
+	// Time to wait for a C-ECHO or C-FIND response, the C-MOVE and C-GET requests are not limited
+	@ConfigProperty(name="dcm.pool.responseTimeoutSeconds", defaultValue = "30")
+	int responseTimeoutSeconds;
+
+	// Unused association and the time it was given back
+	private static class IdleAssociation {
+		final Association as;
+		final long since = System.nanoTime();
+
+		IdleAssociation(Association as) {
+			this.as = as;
+		}
+	}
+
+	private final Deque<IdleAssociation> idle = new ConcurrentLinkedDeque<>();
+
+	private Semaphore leases;
+
+	// Receives the instances of the C-GET requests
+	@Inject
+	CStoreSCP cStoreSCP;
+
+	private ApplicationEntity ae;
+	private ExecutorService executor;
+	private ScheduledExecutorService scheduledExecutor;
+	// Set while the idle associations are checked
+	private final AtomicBoolean checking = new AtomicBoolean();
+
+	@PostConstruct
+	void init() {
+		leases = new Semaphore(maxAssociations, true);
+
+		executor = Executors.newCachedThreadPool();
+		scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+
+		Device device = new Device("drimbox-scu");
+		ae = new ApplicationEntity(callingAET);
+		Connection conn = new Connection();
+		device.addApplicationEntity(ae);
+		device.addConnection(conn);
+		ae.addConnection(conn);
+		// A PACS that stops answering would otherwise block the C-ECHO checks forever
+		conn.setResponseTimeout(responseTimeoutSeconds * 1000);
+		device.setExecutor(executor);
+		device.setScheduledExecutor(scheduledExecutor);
+
+		if (retrieveMode == RetrieveMode.CGET) {
+			for (String cuid : CGetSCU.STORAGE_SOP_CLASSES) {
+				ae.addTransferCapability(new TransferCapability(null, cuid, TransferCapability.Role.SCP, CGetSCU.STORAGE_TRANSFER_SYNTAXES));
+			}
+			device.setDimseRQHandler(cStoreSCP.createServiceRegistry());
+		}
+
+		// The scheduled executor also runs the timers of dcm4che : the checks, which wait for the PACS, run on the
+		// worker executor
+		scheduledExecutor.scheduleWithFixedDelay(() -> {
+			if (checking.compareAndSet(false, true))
+				executor.execute(this::checkIdleAssociations);
+		}, echoIntervalSeconds, echoIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	void close() {
+		IdleAssociation association;
+		while ((association = idle.poll()) != null) {
+			releaseQuietly(association.as);
+		}
+		scheduledExecutor.shutdown();
+		executor.shutdown();
+	}
+
+	/**
+	 * Get an association to the PACS, waiting for one if maxAssociations are already used. It must be given back
+	 * with release once the request is over.
+	 */
+	public Association acquire()
+			throws IOException, InterruptedException, GeneralSecurityException, IncompatibleConnectionException {
+		leases.acquire();
+		return lease();
+	}
+
+	/**
+	 * Same as acquire, without waiting
+	 *
+	 * @return Association, null if maxAssociations are already used
+	 */
+	public Association tryAcquire()
+			throws IOException, InterruptedException, GeneralSecurityException, IncompatibleConnectionException {
+		if (!leases.tryAcquire())
+			return null;
+		return lease();
+	}
+
+	// Called with a lease, given back if no association can be opened
+	private Association lease()
+			throws IOException, InterruptedException, GeneralSecurityException, IncompatibleConnectionException {
+		try {
+			IdleAssociation association;
+			while ((association = idle.pollLast()) != null) {
+				if (association.as.isReadyForDataTransfer())
+					return association.as;
+			}
+
+			String pacsHost = new URL(pacsUrl).getHost();
+			Log.info(String.format("[DICOM] Open association to %s (%s:%d)", calledAET, pacsHost, port));
+			return ae.connect(new Connection(null, pacsHost, port), makeAAssociateRQ());
+		} catch (Exception e) {
+			leases.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Give back an association, once all its responses are received. It is closed if it can't be reused.
+	 */
+	public void release(Association as) {
+		try {
+			if (as.isReadyForDataTransfer() && idle.size() < maxAssociations)
+				idle.addLast(new IdleAssociation(as));
+			else
+				releaseQuietly(as);
+		} finally {
+			leases.release();
+		}
+	}
+
+	/**
+	 * Release the associations unused for idleSeconds and check the others with a C-ECHO, so a dead association
+	 * is not given to a request. Associations are checked one at a time, the others can be acquired meanwhile.
+	 */
+	private void checkIdleAssociations() {
+		try {
+			long idleLimit = System.nanoTime() - TimeUnit.SECONDS.toNanos(idleSeconds);
+
+			// From the most recently used : each one is put back in front of the deque, so the order is kept
+			List<IdleAssociation> associations = new ArrayList<>(idle);
+			for (int i = associations.size() - 1; i >= 0; i--) {
+				IdleAssociation association = associations.get(i);
+				// Acquired in the meantime
+				if (!idle.remove(association))
+					continue;
+
+				if (association.since < idleLimit) {
+					releaseQuietly(association.as);
+					continue;
+				}
+
+				try {
+					association.as.cecho().next();
+				} catch (IOException | InterruptedException e) {
+					Log.warn(String.format("[DICOM] C-ECHO to %s failed, association closed : %s", calledAET, e.getMessage()));
+					association.as.abort();
+					continue;
+				}
+
+				if (association.as.isReadyForDataTransfer() && idle.size() < maxAssociations)
+					idle.addFirst(association);
+				else
+					releaseQuietly(association.as);
+			}
+		} finally {
+			checking.set(false);
+		}
+	}
+
+	private void releaseQuietly(Association as) {
+		try {
+			if (as.isReadyForDataTransfer())
+				as.release();
+		} catch (IOException e) {
+			as.abort();
+		}
+	}
+
+	private AAssociateRQ makeAAssociateRQ() {
+		AAssociateRQ aarq = new AAssociateRQ();
+		aarq.setCallingAET(ae.getAETitle()); // optional: will be set in ae.connect() if not explicitly set.
+		aarq.setCalledAET(calledAET);
+		aarq.addPresentationContext(
+				new PresentationContext(MOVE_PC_ID,
+						UID.StudyRootQueryRetrieveInformationModelMove,
+						UID.ImplicitVRLittleEndian));
+		aarq.addPresentationContext(
+				new PresentationContext(FIND_PC_ID,
+						UID.StudyRootQueryRetrieveInformationModelFind,
+						UID.ImplicitVRLittleEndian));
+		aarq.addPresentationContext(
+				new PresentationContext(ECHO_PC_ID,
+						UID.Verification,
+						UID.ImplicitVRLittleEndian));
+
+		if (retrieveMode == RetrieveMode.CGET) {
+			aarq.addPresentationContext(
+					new PresentationContext(GET_PC_ID,
+							UID.StudyRootQueryRetrieveInformationModelGet,
+							UID.ImplicitVRLittleEndian));
+			// The PACS is the SCU of the C-STORE sub-operations
+			int pcid = GET_PC_ID + 2;
+			for (String cuid : CGetSCU.STORAGE_SOP_CLASSES) {
+				aarq.addPresentationContext(new PresentationContext(pcid, cuid, CGetSCU.STORAGE_TRANSFER_SYNTAXES));
+				aarq.addRoleSelection(new RoleSelection(cuid, false, true));
+				pcid += 2;
+			}
+		}
+		return aarq;
+	}
+}
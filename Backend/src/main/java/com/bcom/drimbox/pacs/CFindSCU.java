@@ -28,28 +28,19 @@
 package com.bcom.drimbox.pacs;
 
 import java.io.IOException;
-import java.net.URL;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
-import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
-import org.dcm4che3.net.Connection;
-import org.dcm4che3.net.Device;
 import org.dcm4che3.net.DimseRSPHandler;
 import org.dcm4che3.net.Priority;
 import org.dcm4che3.net.Status;
-import org.dcm4che3.net.pdu.AAssociateRQ;
-import org.dcm4che3.net.pdu.PresentationContext;
-import org.eclipse.microprofile.config.ConfigProvider;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import jakarta.enterprise.inject.spi.CDI;
 import jakarta.inject.Singleton;
 
 
@@ -60,14 +51,9 @@ public class CFindSCU {
 	String retrieveURL;
 
 
-	// Parameters to access pacs from application.properties
-	String callingAET = ConfigProvider.getConfig().getValue("dcm.cmove.callingAET", String.class);
-	String calledAET = ConfigProvider.getConfig().getValue("dcm.cmove.calledAET", String.class);
-	int port = ConfigProvider.getConfig().getValue("dcm.cmove.port", int.class);
-	String pacsUrl = ConfigProvider.getConfig().getValue("pacs.baseUrl", String.class);;
+	// Associations to the pacs, shared with the C-MOVE requests
+	private final AssociationPool associationPool = CDI.current().select(AssociationPool.class).get();
 
-	private ApplicationEntity ae;
-	private final Device device = new Device("findscu");
 	private Association as;
 	private Attributes keys = new Attributes();
 	private int cancelAfter;
@@ -83,13 +69,6 @@ public class CFindSCU {
 	@SuppressWarnings("finally")
 	public Attributes CFind(String studyInstanceUID, String queryRetrieveLevel) {
 		try {
-			Conf();
-			ExecutorService executorService =
-					Executors.newSingleThreadExecutor();
-			ScheduledExecutorService scheduledExecutorService =
-					Executors.newSingleThreadScheduledExecutor();
-			this.device.setExecutor(executorService);
-			this.device.setScheduledExecutor(scheduledExecutorService);
 			this.keys.clear();
 
 			this.queryLevel = queryRetrieveLevel;
@@ -111,13 +90,10 @@ public class CFindSCU {
 			}
 			
 			try {
-				String pacsBaseUrl = new URL(this.pacsUrl).getHost();
-				as = ae.connect(getConnection(pacsBaseUrl, this.port), makeAAssociateRQ(this.calledAET));
+				as = associationPool.acquire();
 				this.query();
 			} finally {
 				this.close();
-				executorService.shutdown();
-				scheduledExecutorService.shutdown();
 				return results;
 			}
 		} catch (Exception e) {
@@ -128,29 +104,6 @@ public class CFindSCU {
 		return null;
 	}
 
-	private void Conf() {
-		Connection conn = new Connection(null, "127.0.0.1", this.port);
-		ae = new ApplicationEntity(this.callingAET);
-		device.addConnection(conn);
-		device.addApplicationEntity(ae);
-		ae.addConnection(conn);
-	}
-
-	private Connection getConnection(String hostName, int port) {
-		return new Connection(null, hostName, port);
-	}
-
-	private AAssociateRQ makeAAssociateRQ(String calledAET) {
-		AAssociateRQ aarq = new AAssociateRQ();
-		aarq.setCallingAET(ae.getAETitle()); // optional: will be set in ae.connect() if not explicitly set.
-		aarq.setCalledAET(calledAET);
-		aarq.addPresentationContext(
-				new PresentationContext(1,
-						UID.StudyRootQueryRetrieveInformationModelFind,
-						UID.ImplicitVRLittleEndian));
-		return aarq;
-	}
-
 	public void query() throws IOException, InterruptedException {
 		query(keys);
 	}
@@ -242,10 +195,15 @@ public class CFindSCU {
 		}
 	}
 
-	public void close() throws IOException, InterruptedException {
-		if (as != null && as.isReadyForDataTransfer()) {
-			as.waitForOutstandingRSP();
-			as.release();
+	/**
+	 * Give back the association to the pool once all the results are received
+	 */
+	public void close() throws InterruptedException {
+		if (as != null) {
+			if (as.isReadyForDataTransfer())
+				as.waitForOutstandingRSP();
+			associationPool.release(as);
+			as = null;
 		}
 	}
 }
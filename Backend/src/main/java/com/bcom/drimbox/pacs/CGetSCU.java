@@ -0,0 +1,182 @@
+/*
+ *  CGetSCU.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Multi;
+import io.vertx.core.Vertx;
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.Priority;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * Retrieve of a series with C-GET, used instead of CMoveSCU when pacs.retrieveMode is CGET.
+ *
+ * The PACS sends the instances back as C-STORE requests on the association of the C-GET, so no C-STORE SCP has
+ * to be reachable by the PACS. The association is bound to the retrieve session while the C-GET runs and
+ * CStoreSCP writes the instances in its multipart response.
+ */
+@Singleton
+public class CGetSCU {
+	// Storage SOP classes proposed with the SCP role on the associations, the PACS can only send these ones
+	static final String[] STORAGE_SOP_CLASSES = {
+			UID.ComputedRadiographyImageStorage,
+			UID.DigitalXRayImageStorageForPresentation,
+			UID.DigitalXRayImageStorageForProcessing,
+			UID.DigitalMammographyXRayImageStorageForPresentation,
+			UID.CTImageStorage,
+			UID.EnhancedCTImageStorage,
+			UID.MRImageStorage,
+			UID.EnhancedMRImageStorage,
+			UID.UltrasoundImageStorage,
+			UID.UltrasoundMultiFrameImageStorage,
+			UID.SecondaryCaptureImageStorage,
+			UID.MultiFrameTrueColorSecondaryCaptureImageStorage,
+			UID.XRayAngiographicImageStorage,
+			UID.XRayRadiofluoroscopicImageStorage,
+			UID.BreastTomosynthesisImageStorage,
+			UID.NuclearMedicineImageStorage,
+			UID.PositronEmissionTomographyImageStorage,
+			UID.RTImageStorage,
+			UID.RTDoseStorage,
+			UID.RTStructureSetStorage,
+			UID.RTPlanStorage,
+			UID.VLPhotographicImageStorage,
+			UID.GrayscaleSoftcopyPresentationStateStorage,
+			UID.BasicTextSRStorage,
+			UID.EnhancedSRStorage,
+			UID.ComprehensiveSRStorage,
+			UID.KeyObjectSelectionDocumentStorage,
+			UID.EncapsulatedPDFStorage
+	};
+
+	// Transfer syntaxes accepted for the instances, they are transcoded if the client doesn't support them
+	static final String[] STORAGE_TRANSFER_SYNTAXES = {
+			UID.ExplicitVRLittleEndian,
+			UID.ImplicitVRLittleEndian,
+			UID.JPEGBaseline8Bit,
+			UID.JPEGLosslessSV1,
+			UID.JPEGLSLossless,
+			UID.JPEG2000Lossless,
+			UID.JPEG2000,
+			UID.RLELossless
+	};
+
+	@ConfigProperty(name="dcm.cmove.calledAET")
+	String calledAET;
+
+	@Inject
+	CStoreSCP cStoreSCP;
+
+	@Inject
+	AssociationPool associationPool;
+
+	private final Vertx vertx;
+
+	@Inject
+	public CGetSCU(Vertx vertx) {
+		this.vertx = vertx;
+	}
+
+	/**
+	 * C-GET a series and stream its instances as a multipart response, see CMoveSCU.cMove
+	 */
+	public Multi<byte[]> cGet(String studyUID, String serieUID, List<String> supportedTransferSyntax, List<String> preferredTransferSyntax, String boundary)  {
+		Instant startTime = Instant.now();
+		RetrieveSession session = cStoreSCP.openSession(boundary, supportedTransferSyntax, preferredTransferSyntax);
+
+		vertx.executeBlocking(promise -> {
+					Attributes request = new Attributes(2);
+					request.setString(Tag.QueryRetrieveLevel, VR.CS, "SERIES");
+					request.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+					request.setString(Tag.SeriesInstanceUID, VR.UI, serieUID);
+
+					try {
+						doCGet(request, session);
+					} catch (Exception e) {
+						Log.error("Error while doing cget : " + e.getMessage());
+					} finally {
+						cStoreSCP.closeSession(session);
+					}
+					promise.complete();
+				}, false, res -> {
+					if (res.failed()) {
+						Log.error("Unexpected error : " + res);
+						cStoreSCP.closeSession(session);
+					} else {
+						Log.info("Pacs cget TimeTT : " + Duration.between(startTime, Instant.now()).toString());
+					}
+				}
+		);
+		return session.getResponseStream();
+	}
+
+	private void doCGet(Attributes request, RetrieveSession session)
+			throws IOException, InterruptedException, GeneralSecurityException, IncompatibleConnectionException {
+
+		Association as = associationPool.acquire();
+		cStoreSCP.bindAssociation(as, session);
+		try {
+			doCGet(as, request);
+		} finally {
+			cStoreSCP.unbindAssociation(as);
+			associationPool.release(as);
+		}
+	}
+
+	private void doCGet(Association as, Attributes request)
+			throws InterruptedException {
+		try {
+			as.cget(UID.StudyRootQueryRetrieveInformationModelGet,
+					Priority.NORMAL,
+					request,
+					UID.ImplicitVRLittleEndian,
+					new DimseRSPHandler(as.nextMessageID()));
+		} catch (IOException e) {
+			Log.error(String.format("Failed to invoke C-GET-RQ to %s - %s", this.calledAET, e));
+		}
+		// The association goes back to the pool once the series is received
+		as.waitForOutstandingRSP();
+	}
+}
@@ -28,65 +28,52 @@
 package com.bcom.drimbox.pacs;
 
 import java.io.IOException;
-import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
 
-import io.vertx.mutiny.core.eventbus.EventBus;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 
 import io.quarkus.logging.Log;
 import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 import io.vertx.core.Vertx;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
-import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
-import org.dcm4che3.net.Connection;
-import org.dcm4che3.net.Device;
 import org.dcm4che3.net.DimseRSPHandler;
 import org.dcm4che3.net.IncompatibleConnectionException;
 import org.dcm4che3.net.Priority;
-import org.dcm4che3.net.pdu.AAssociateRQ;
-import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.Status;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
-import static com.bcom.drimbox.pacs.CStoreSCP.EB_DONE_ADDRESS;
-
 @Singleton
 public class CMoveSCU {
-	private Device device;
-	private ApplicationEntity ae;
-
-	@Inject
-	EventBus eventBus;
-
-	@ConfigProperty(name="dcm.cmove.callingAET")
-	String callingAET;
 	@ConfigProperty(name="dcm.cmove.calledAET")
 	String calledAET;
-	@ConfigProperty(name="dcm.cmove.port")
-	int port;
-
-	@ConfigProperty(name="pacs.baseUrl")
-	String pacsUrl;
 
+	// Number of IMAGE level C-MOVE a series is split into, 1 to move it with a single SERIES level C-MOVE
+	@ConfigProperty(name="dcm.cmove.parallelChunks", defaultValue = "1")
+	int parallelChunks;
 
-	private Attributes request;
+	// Min number of instances of a chunk, smaller series are split in less chunks
+	@ConfigProperty(name="dcm.cmove.minInstancesPerChunk", defaultValue = "200")
+	int minInstancesPerChunk;
 
 	// Cache of instance data
 	@Inject
 	CStoreSCP cStoreSCP;
 
+	@Inject
+	AssociationPool associationPool;
+
 	private final Vertx vertx;
 
 	@Inject
@@ -95,118 +82,185 @@ public class CMoveSCU {
 	}
 
 
+	/**
+	 * C-MOVE a series to our C-STORE SCP and stream its instances as a multipart response. Each call has its own
+	 * retrieve session and takes an association from the pool, several series can be moved at the same time.
+	 */
 	public Multi<byte[]> cMove(String studyUID, String serieUID, List<String> supportedTransferSyntax, List<String> preferredTransferSyntax, String boundary)  {
 		Instant startTime = Instant.now();
-		// We start the cmove in another thread so we can return the Multi as soon as possible
+		RetrieveSession session = cStoreSCP.openSession(boundary, supportedTransferSyntax, preferredTransferSyntax);
+
+		// We start the cmove in another thread so we can return the Multi as soon as possible. The blocking calls
+		// are not ordered so concurrent retrieves don't wait for each other.
 		vertx.executeBlocking(promise -> {
-					request = new Attributes(2);
-					this.request.setString(Tag.QueryRetrieveLevel, VR.CS, "SERIES");
-					this.request.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
-					this.request.setString(Tag.SeriesInstanceUID, VR.UI, serieUID);
-
-					cStoreSCP.resetMultipart();
-					cStoreSCP.setPreferredTransferSyntax(preferredTransferSyntax);
-					cStoreSCP.setSupportedTransferSyntax(supportedTransferSyntax);
-					cStoreSCP.setBoundary(boundary);
-
-					ExecutorService executor = Executors.newFixedThreadPool(4);
-                    ScheduledExecutorService scheduledExecutor = Executors.newScheduledThreadPool(4);
+					Attributes request = new Attributes(2);
+					request.setString(Tag.QueryRetrieveLevel, VR.CS, "SERIES");
+					request.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+					request.setString(Tag.SeriesInstanceUID, VR.UI, serieUID);
+
 					try {
-						device = new Device("c-move-scu");
-						ae = new ApplicationEntity(this.callingAET);
-						setScheduledExecutor(scheduledExecutor);
-						Connection conn = new Connection();
-						device.addApplicationEntity(ae);
-						device.addConnection(conn);
-						ae.addConnection(conn);
-
-						setExecutor(executor);
-						doCMove();
-						cStoreSCP.done();
+						doCMove(request, session);
 					} catch (Exception e) {
 						Log.error("Error while doing cmove : " + e.getMessage());
 					} finally {
-						executor.shutdown();
-						scheduledExecutor.shutdown();
+						cStoreSCP.closeSession(session);
 					}
 					promise.complete();
-				}, res -> {
+				}, false, res -> {
 					if (res.failed()) {
 						// TODO : handle this better
 						Log.error("Unexpected error : " + res);
-						eventBus.publish(EB_DONE_ADDRESS, true);
+						cStoreSCP.closeSession(session);
 					} else {
 						Log.info("Pacs cmove TimeTT : " + Duration.between(startTime, Instant.now()).toString());
 					}
 				}
 		);
-		return cStoreSCP.getResponseStream();
-	}
-
-	public void setExecutor(Executor executor) {
-		device.setExecutor(executor);
+		return session.getResponseStream();
 	}
 
-	public void setScheduledExecutor(ScheduledExecutorService executor) {
-		device.setScheduledExecutor(executor);
-	}
-
-	private void doCMove()
+	private void doCMove(Attributes request, RetrieveSession session)
 			throws IOException, InterruptedException, GeneralSecurityException, IncompatibleConnectionException {
 
-		String pacsBaseUrl = new URL(pacsUrl).getHost();
+		Association as = associationPool.acquire();
+		try {
+			List<List<String>> chunks = parallelChunks > 1 ? splitSeries(as, request) : List.of();
+			if (chunks.size() > 1)
+				moveChunks(as, request, session, chunks);
+			else
+				moveSeries(as, request, session);
+		} finally {
+			associationPool.release(as);
+		}
+	}
 
-		Association as = ae.connect(getConnection(pacsBaseUrl, this.port), makeAAssociateRQ(this.calledAET));
+	private void moveSeries(Association as, Attributes request, RetrieveSession session) throws InterruptedException {
 		try {
 			as.cmove(UID.StudyRootQueryRetrieveInformationModelMove,
 					Priority.NORMAL,
-					this.request,
+					request,
 					UID.ImplicitVRLittleEndian,
 					this.cStoreSCP.getAET(),
-					new DimseRSPHandler(as.nextMessageID()));
+					new DimseRSPHandler(cStoreSCP.registerMove(session)));
 		} catch (IOException e) {
 			System.err.printf("Failed to invoke C-MOVE-RQ to %s - %s%n", this.calledAET, e);
 		}
+		// The association goes back to the pool once the series is received
 		as.waitForOutstandingRSP();
-		as.release();
 	}
 
-	private AAssociateRQ makeAAssociateRQ(String calledAET) {
-		AAssociateRQ aarq = new AAssociateRQ();
-		aarq.setCallingAET(ae.getAETitle()); // optional: will be set in ae.connect() if not explicitly set.
-		aarq.setCalledAET(calledAET);
-		aarq.addPresentationContext(
-				new PresentationContext(1,
-						UID.StudyRootQueryRetrieveInformationModelMove,
-						UID.ImplicitVRLittleEndian));
-		return aarq;
-	}
+	/**
+	 * List the instances of the series with an IMAGE level C-FIND and split them in chunks of at least
+	 * minInstancesPerChunk instances.
+	 *
+	 * @return Chunks, a single one (or none) if the series is too small to be split
+	 */
+	private List<List<String>> splitSeries(Association as, Attributes request)
+			throws InterruptedException {
+		Attributes keys = new Attributes(request);
+		keys.setString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
+		keys.setNull(Tag.SOPInstanceUID, VR.UI);
 
-	private Connection getConnection(String hostName, int port) {
-		return new Connection(null, hostName, port);
-	}
+		List<String> instanceUIDs = Collections.synchronizedList(new ArrayList<>());
+		try {
+			as.cfind(UID.StudyRootQueryRetrieveInformationModelFind, Priority.NORMAL, keys, null,
+					new DimseRSPHandler(as.nextMessageID()) {
+						@Override
+						public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+							super.onDimseRSP(as, cmd, data);
+							if (Status.isPending(cmd.getInt(Tag.Status, -1)) && data != null)
+								instanceUIDs.add(data.getString(Tag.SOPInstanceUID));
+						}
+					});
+			as.waitForOutstandingRSP();
+		} catch (IOException e) {
+			// The series is moved at once
+			Log.warn("Failed to list the instances of the series : " + e.getMessage());
+			return List.of();
+		}
 
+		List<String> toMove = new ArrayList<>();
+		for (String instanceUID : instanceUIDs) {
+			if (instanceUID != null)
+				toMove.add(instanceUID);
+		}
+
+		int chunkCount = Math.min(parallelChunks, toMove.size() / Math.max(1, minInstancesPerChunk));
+		if (chunkCount < 2)
+			return List.of();
 
-	public void setAttributeRequests(String[] args) {
-		this.request = new Attributes(args.length);
-		String type;
-		if (args.length == 1) {
-			type = "STUDY";
-		} else if (args.length == 2) {
-			type = "SERIES";
-		} else {
-			type = "IMAGE";
+		List<List<String>> chunks = new ArrayList<>(chunkCount);
+		int chunkSize = (toMove.size() + chunkCount - 1) / chunkCount;
+		for (int start = 0; start < toMove.size(); start += chunkSize) {
+			chunks.add(toMove.subList(start, Math.min(start + chunkSize, toMove.size())));
 		}
+		return chunks;
+	}
 
-		this.request.setString(Tag.QueryRetrieveLevel, VR.CS, type);
-		this.request.setString(Tag.StudyInstanceUID, VR.UI, args[0]);
-		if (args.length > 1) {
-			this.request.setString(Tag.SeriesInstanceUID, VR.UI, args[1]);
-			if (args.length > 2) {
-				String[] iuids = new String[args.length - 2];
-				System.arraycopy(args, 2, iuids, 0, iuids.length);
-				this.request.setString(Tag.SOPInstanceUID, VR.UI, iuids);
+	/**
+	 * Move the chunks in parallel with IMAGE level C-MOVE, each one on its own association. The instances of all
+	 * the chunks go to the same retrieve session, in the order they are received.
+	 *
+	 * Only the associations that are free right away are used : a retrieve never waits for another one to give
+	 * back its association. The chunks without association are moved one after the other on the association of
+	 * the retrieve.
+	 */
+	private void moveChunks(Association as, Attributes request, RetrieveSession session, List<List<String>> chunks)
+			throws InterruptedException {
+		Log.info(String.format("Moving %d instances in %d parallel chunks", chunks.stream().mapToInt(List::size).sum(), chunks.size()));
+
+		List<CompletableFuture<Void>> parallelMoves = new ArrayList<>();
+		List<List<String>> sequentialChunks = new ArrayList<>();
+		sequentialChunks.add(chunks.get(0));
+
+		for (List<String> chunk : chunks.subList(1, chunks.size())) {
+			Association chunkAssociation = null;
+			try {
+				chunkAssociation = associationPool.tryAcquire();
+			} catch (Exception e) {
+				Log.warn("Failed to open an association for a chunk : " + e.getMessage());
 			}
+
+			if (chunkAssociation == null) {
+				sequentialChunks.add(chunk);
+				continue;
+			}
+
+			final Association chunkAs = chunkAssociation;
+			parallelMoves.add(CompletableFuture.runAsync(() -> {
+				try {
+					moveInstances(chunkAs, request, session, chunk);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					associationPool.release(chunkAs);
+				}
+			}, Infrastructure.getDefaultWorkerPool()));
+		}
+
+		for (List<String> chunk : sequentialChunks) {
+			moveInstances(as, request, session, chunk);
+		}
+
+		// The session is complete once all the chunks are received
+		CompletableFuture.allOf(parallelMoves.toArray(CompletableFuture[]::new)).join();
+	}
+
+	private void moveInstances(Association as, Attributes request, RetrieveSession session, List<String> instanceUIDs)
+			throws InterruptedException {
+		Attributes chunkRequest = new Attributes(request);
+		chunkRequest.setString(Tag.QueryRetrieveLevel, VR.CS, "IMAGE");
+		chunkRequest.setString(Tag.SOPInstanceUID, VR.UI, instanceUIDs.toArray(String[]::new));
+		try {
+			as.cmove(UID.StudyRootQueryRetrieveInformationModelMove,
+					Priority.NORMAL,
+					chunkRequest,
+					UID.ImplicitVRLittleEndian,
+					this.cStoreSCP.getAET(),
+					new DimseRSPHandler(cStoreSCP.registerMove(session)));
+			as.waitForOutstandingRSP();
+		} catch (IOException e) {
+			Log.error(String.format("Failed to move a chunk of %d instances from %s : %s", instanceUIDs.size(), this.calledAET, e.getMessage()));
 		}
 	}
 }
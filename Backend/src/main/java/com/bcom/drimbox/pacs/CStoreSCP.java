@@ -32,16 +32,19 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
-import java.time.Duration;
-import java.time.Instant;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 
 import org.dcm4che3.data.Attributes;
@@ -57,42 +60,43 @@ import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Device;
 import org.dcm4che3.net.DimseRQHandler;
 import org.dcm4che3.net.PDVInputStream;
+import org.dcm4che3.net.Status;
 import org.dcm4che3.net.TransferCapability;
 import org.dcm4che3.net.pdu.PresentationContext;
 import org.dcm4che3.net.service.BasicCEchoSCP;
 import org.dcm4che3.net.service.BasicCStoreSCP;
+import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.net.service.DicomServiceRegistry;
 import org.dcm4che3.util.SafeClose;
 import org.dcm4che3.util.StreamUtils;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import io.quarkus.logging.Log;
-import io.smallrye.mutiny.Multi;
-import io.vertx.mutiny.core.eventbus.EventBus;
 
 @Singleton
 public class CStoreSCP {
-	// Current index of multipart request
-	private static final int BASE_INDEX = 1;
-	// Vertx event bus address sent when all the images are received
-	public static final String EB_DONE_ADDRESS = "done";
-	// Vertx event bus address sent when an image is received
-	public static final String EB_IMAGE_ADDRESS = "image";
-
-
 	private Device device;
-	private int currentID = BASE_INDEX;
 
 	private String host;
 	private String aet;
 
-	private String boundary;
-
 	private ApplicationEntity ae;
 
-	private List<String> ts;
+	// Max memory used by the parts of a retrieve waiting for the client
+	@ConfigProperty(name="dcm.retrieve.maxBufferedMB", defaultValue = "64")
+	long maxBufferedMB;
+
+	// Max time a C-STORE request waits for the client before its instance is spilled to a temporary file
+	@ConfigProperty(name="dcm.retrieve.backpressureTimeoutSeconds", defaultValue = "20")
+	long backpressureTimeoutSeconds;
 
-	@Inject
-	EventBus eventBus;
+	// Retrieve sessions in progress
+	private final Set<RetrieveSession> sessions = ConcurrentHashMap.newKeySet();
+	// Retrieve session of each C-MOVE message ID, see registerMove
+	private final Map<Integer, RetrieveSession> sessionsByMessageID = new ConcurrentHashMap<>();
+	// Retrieve session of each association doing a C-GET, see bindAssociation
+	private final Map<Association, RetrieveSession> sessionsByAssociation = new ConcurrentHashMap<>();
+	private final AtomicInteger lastMessageID = new AtomicInteger(0);
 
 	public void startCStore(String calledAET, String bindAddress, int port) throws Exception {
 		this.host = bindAddress;
@@ -134,7 +138,10 @@ public class CStoreSCP {
 		device.bindConnections();
 	}
 
-	private DimseRQHandler createServiceRegistry() {
+	/**
+	 * @return Handler of the C-STORE requests, also used on the associations doing a C-GET
+	 */
+	DimseRQHandler createServiceRegistry() {
 		DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
 		serviceRegistry.addDicomService(new BasicCEchoSCP());
 		serviceRegistry.addDicomService(new BasicCStoreSCP("*") {
@@ -147,60 +154,106 @@ public class CStoreSCP {
 		return serviceRegistry;
 	}
 
-	public void done() {
-		eventBus.publish(EB_DONE_ADDRESS, true);
-	}
+	/**
+	 * Start a retrieve : the instances of the C-MOVE registered with registerMove are sent in the multipart
+	 * response of the session. It must be closed with closeSession once the C-MOVE are over.
+	 */
+	public RetrieveSession openSession(String boundary, List<String> supportedTransferSyntax, List<String> preferredTransferSyntax) {
+		RetrieveSession session = new RetrieveSession(boundary, supportedTransferSyntax, preferredTransferSyntax,
+				maxBufferedMB * 1024 * 1024, TimeUnit.SECONDS.toMillis(backpressureTimeoutSeconds));
+		sessions.add(session);
+		updateTransferCapability();
 
+		return session;
+	}
 
-	public Multi<byte[]> getResponseStream() {
-		Instant startTime = Instant.now();
-		return Multi.createFrom().emitter( em -> {
-			// Emit a new image when received
-			eventBus.consumer(EB_IMAGE_ADDRESS).handler(m-> {
-				Log.info("Pacs cmove Time : " + Duration.between(startTime, Instant.now()).toString());
-				em.emit((byte[]) m.body());
-			});
-
-			// Mark the end of the stream
-			eventBus.consumer(EB_DONE_ADDRESS).handler(m-> {
-				em.emit(("--" + this.boundary + "--").getBytes());
-				em.complete();
-			});
-		});
+	/**
+	 * @return Message ID to use for a C-MOVE request of the session. It is unique among the C-MOVE in progress
+	 * so the PACS gives it back as Move Originator Message ID in the C-STORE requests.
+	 */
+	public int registerMove(RetrieveSession session) {
+		while (true) {
+			// Message IDs are unsigned 16 bits values, 0 is not used
+			int messageID = lastMessageID.updateAndGet(id -> id >= 0xFFFF ? 1 : id + 1);
+			if (sessionsByMessageID.putIfAbsent(messageID, session) == null) {
+				session.messageIDs.add(messageID);
+				return messageID;
+			}
+		}
 	}
 
-	public void resetMultipart() {
-		this.currentID = BASE_INDEX;
+	/**
+	 * Send the instances received on the association in the multipart response of the session, used for C-GET
+	 * where the PACS sends them on the association of the request. It must be unbound before the association is
+	 * used by another request.
+	 */
+	public void bindAssociation(Association as, RetrieveSession session) {
+		sessionsByAssociation.put(as, session);
 	}
 
-	public void setBoundary(String boundary) {
-		this.boundary = boundary;
+	public void unbindAssociation(Association as) {
+		sessionsByAssociation.remove(as);
 	}
 
 	/**
-	 * Set transfer syntax
+	 * End the multipart response of the session. Instances received after that are refused.
 	 */
-	public void setPreferredTransferSyntax(List<String> transferSyntax) {
-		ts = transferSyntax;
+	public void closeSession(RetrieveSession session) {
+		for (Integer messageID : session.messageIDs) {
+			sessionsByMessageID.remove(messageID, session);
+		}
+		if (sessions.remove(session))
+			updateTransferCapability();
+
+		session.complete();
 	}
 
-	public void setSupportedTransferSyntax(List<String> transferSyntax) {
+	/**
+	 * Accept the transfer syntaxes supported by at least one of the sessions, the instances are transcoded for the
+	 * others if needed
+	 */
+	private synchronized void updateTransferCapability() {
+		Set<String> transferSyntax = new LinkedHashSet<>();
+		for (RetrieveSession session : sessions) {
+			transferSyntax.addAll(session.getSupportedTransferSyntax());
+		}
+		// Keep the last capability between two retrieves. There is no C-STORE SCP in C-GET mode.
+		if (transferSyntax.isEmpty() || ae == null)
+			return;
+
 		ae.removeTransferCapabilityFor("*", TransferCapability.Role.SCP);
 		ae.addTransferCapability(new TransferCapability(null,
 				"*", TransferCapability.Role.SCP, transferSyntax.toArray(String[]::new)));
 	}
 
+	private RetrieveSession getSession(Association as, Attributes rq) throws DicomServiceException {
+		RetrieveSession session = sessionsByAssociation.get(as);
+		if (session != null)
+			return session;
+
+		int messageID = rq.getInt(Tag.MoveOriginatorMessageID, 0);
+		session = sessionsByMessageID.get(messageID);
+		if (session != null)
+			return session;
+
+		// PACS that don't send the Move Originator Message ID can only be used by one retrieve at a time
+		if (messageID == 0 && sessions.size() == 1)
+			return sessions.iterator().next();
+
+		throw new DicomServiceException(Status.ProcessingFailure, "No retrieve in progress for C-MOVE " + messageID);
+	}
+
 	private void store(Association as, PresentationContext pc, Attributes rq, PDVInputStream data)
 			throws IOException {
 		String cuid = rq.getString(Tag.AffectedSOPClassUID);
 		String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+		RetrieveSession session = getSession(as, rq);
+		List<String> ts = session.getPreferredTransferSyntax();
 		String tsuid = pc.getTransferSyntax();
 		Attributes fmi = as.createFileMetaInformation(iuid, cuid, tsuid);
 		ByteArrayOutputStream output = new ByteArrayOutputStream();
 		ByteArrayOutputStream output2 = new ByteArrayOutputStream();
 
-		output.write(("--" + this.boundary + "\r\nContent-ID: <"+ currentID +"@resteasy-multipart>\r\nContent-Type: application/dicom;transfer-syntax="+this.ts+"\r\n\r\n").getBytes());
-
 		try (DicomOutputStream dos = new DicomOutputStream(output2, tsuid)) {
 			dos.writeFileMetaInformation(fmi);
 			StreamUtils.copy(data, dos);
@@ -208,7 +261,7 @@ public class CStoreSCP {
 
 		InputStream input = new ByteArrayInputStream(output2.toByteArray()); 
 
-		if (!this.checkTransferSyntax(tsuid)) {
+		if (!this.checkTransferSyntax(ts, tsuid)) {
 			DCMTranscoder dcm2Dcm = new DCMTranscoder();
 			try {
 				dcm2Dcm.setTransferSyntax(ts.get(0));
@@ -234,15 +287,9 @@ public class CStoreSCP {
 				SafeClose.close(dos);
 			}
 		}
-		output.write(("\r\n").getBytes());
-
 		output.flush();
 
-		// Tell vertx we have a new image
-		eventBus.publish(EB_IMAGE_ADDRESS, output.toByteArray());
-
-		currentID++;
-
+		session.sendPart(output.toByteArray());
 	}
 
 	public String getHost() {
@@ -253,9 +300,9 @@ public class CStoreSCP {
 		return aet;
 	}
 
-	private boolean checkTransferSyntax(String transferSyntax) {
+	private boolean checkTransferSyntax(List<String> ts, String transferSyntax) {
 		boolean found = false;
-		for (String tsAvailable : this.ts) {
+		for (String tsAvailable : ts) {
 			if(Objects.equals(tsAvailable, transferSyntax)) {
 				found = true;
 			}
@@ -27,66 +27,315 @@
 
 package com.bcom.drimbox.pacs;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
 import jakarta.ws.rs.NotFoundException;
 
 import com.bcom.drimbox.api.DRIMboxConsoAPI;
+import com.bcom.drimbox.api.DRIMboxSourceAPI;
+import com.bcom.drimbox.pacs.cache.BandwidthLimiter;
+import com.bcom.drimbox.pacs.cache.CacheStatistics;
+import com.bcom.drimbox.pacs.cache.CachedFile;
+import com.bcom.drimbox.pacs.cache.DiskCacheTier;
+import com.bcom.drimbox.pacs.cache.InstanceHeader;
+import com.bcom.drimbox.pacs.cache.SingleFlight;
+import com.bcom.drimbox.pacs.cache.WaiterRegistry;
+import com.bcom.drimbox.utils.MultipartStreamParser;
 import com.bcom.drimbox.utils.PrefixConstants;
+import com.bcom.drimbox.utils.SharedWebClient;
 
 import com.bcom.drimbox.utils.exceptions.RequestErrorException;
 import org.apache.http.HttpHeaders;
-import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
-import org.dcm4che3.io.DicomInputStream;
-import org.dcm4che3.mime.MultipartParser;
+import org.dcm4che3.imageio.codec.TransferSyntaxType;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
 
+import io.netty.buffer.ByteBuf;
 import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
 import io.vertx.core.Vertx;
 
 @Singleton
 public class PacsCache {
+	/**
+	 * Where and how a series is fetched
+	 */
+	static class SourceInfo {
+		final String drimboxSourceURL;
+		final String accessToken;
+		final String sopInstanceUID;
+
+		SourceInfo(String drimboxSourceURL, String accessToken, String sopInstanceUID) {
+			this.drimboxSourceURL = drimboxSourceURL;
+			this.accessToken = accessToken;
+			this.sopInstanceUID = sopInstanceUID;
+		}
+	}
+
+	/**
+	 * OHIF metadata document of a series, with the key of the request it was built for (base URL, KOS, ...)
+	 */
+	static class SeriesMetadata {
+		final String key;
+		final byte[] json;
+
+		SeriesMetadata(String key, byte[] json) {
+			this.key = key;
+			this.json = json;
+		}
+	}
+
 	static class DicomCacheInstance {
-		// Instance UID => file
-		Map<String, byte[]> dicomFiles = new HashMap<>();
-		Boolean complete = false;
+		final String studyUID;
+		final String seriesUID;
+		// Set when the fetch of the series starts
+		volatile SourceInfo source;
+
+		// Instance UID => file. The cache owns one reference on each file.
+		final Map<String, CachedFile> dicomFiles = new ConcurrentHashMap<>();
+		// Instance UID => attributes read when the file was received
+		final Map<String, InstanceHeader> headers = new ConcurrentHashMap<>();
+		volatile boolean complete = false;
+		// Completed with the UID of the first valid file received, failed if the series can't be fetched
+		final CompletableFuture<String> firstInstance = new CompletableFuture<>();
+
+		// Instance UID => requests waiting for this file. They are registered under the series lock.
+		final WaiterRegistry<String, CachedFile> waiters;
+		// Set when the entry is removed because its creation failed. Guarded by the series lock.
+		boolean discarded = false;
+		// Set when the files were released after the series left the memory. Guarded by the series lock.
+		boolean released = false;
+		// Instances requested on their own because a request was waiting for them. Guarded by the series lock.
+		final Set<String> priorityRequests = new HashSet<>();
+
+		// Sum of the size of all files of the series and of its metadata. Guarded by the series lock.
+		long sizeBytes = 0;
+		// Size of the files of the series once inflated
+		long originalBytes = 0;
+		// Number of times the series was opened. Guarded by the series lock.
+		long frequency = 0;
+		// Eviction priority (GreedyDual-Size-Frequency), the lowest is evicted first
+		volatile double priority = 0;
+		// The series cannot be evicted before this date (ms since epoch)
+		volatile long pinnedUntil = 0;
+		// Fetched by the prefetcher and not requested by a user yet : its download is throttled
+		volatile boolean prefetch = false;
+		// Serialized OHIF metadata of the series, cleared whenever a file of the series changes
+		volatile SeriesMetadata metadata = null;
+
+		DicomCacheInstance(String studyUID, String seriesUID, long waiterTimeoutMs) {
+			this.studyUID = studyUID;
+			this.seriesUID = seriesUID;
+			this.waiters = new WaiterRegistry<>(waiterTimeoutMs);
+		}
+
+		String getKey() { return getSeriesKey(studyUID, seriesUID); }
+
+		boolean isPinned(long now) {
+			return now < pinnedUntil;
+		}
+
+		/**
+		 * Compute the eviction priority of the series. Frequently used and small series get a higher priority.
+		 *
+		 * @param inflation Priority of the last evicted series. It ages the entries that are not used anymore.
+		 */
+		void updatePriority(double inflation) {
+			priority = inflation + (double) frequency * MB / Math.max(sizeBytes, MB);
+		}
 	}
 
-	// StudyUID =>
-	//  - SeriesUID
+	private static final long MB = 1024L * 1024L;
+
+	// StudyUID/SeriesUID =>
 	//      - InstanceUID
 	//      - InstanceUID
-	//  - SeriesUID
+	// StudyUID/SeriesUID =>
 	//      - InstanceUID
-	// StudyUID =>
-	//  - SeriesUID
-	//  - SeriesUID
-	Map<String, Map<String, DicomCacheInstance>> dicomCache = new HashMap<>();
+	//
+	// The map itself is concurrent. Everything that must be consistent inside a series (files, waiting requests
+	// and size) is modified while holding the lock of the series, see getSeriesLock().
+	final Map<String, DicomCacheInstance> dicomCache = new ConcurrentHashMap<>();
+
+	// Locks are striped per series : requests on different series rarely wait for each other
+	private static final int LOCK_STRIPES = 64;
+	private final ReentrantLock[] seriesLocks = new ReentrantLock[LOCK_STRIPES];
+
+	// Only one thread evicts at a time, others skip the eviction
+	private final ReentrantLock evictionLock = new ReentrantLock();
+
+	// Maximum memory used by the cached files. Series are evicted when it is exceeded.
+	@ConfigProperty(name = "cache.memory.maxSizeMB", defaultValue = "2048")
+	long maxSizeMB;
+
+	// Store the cached files in off-heap memory instead of the heap. This avoids GC pauses with big caches, the
+	// direct memory of the JVM must then be sized for cache.memory.maxSizeMB (-XX:MaxDirectMemorySize).
+	@ConfigProperty(name = "cache.memory.offHeap", defaultValue = "false")
+	boolean offHeap;
+
+	// Files with an uncompressed transfer syntax are stored compressed with deflate and inflated when they are read
+	@ConfigProperty(name = "cache.memory.compression", defaultValue = "false")
+	boolean compression;
+
+	// Deflate level, from 1 (fastest) to 9 (smallest)
+	@ConfigProperty(name = "cache.memory.compressionLevel", defaultValue = "1")
+	int compressionLevel;
+
+	// A series that is read by a viewer is pinned during this amount of time after its last access
+	@ConfigProperty(name = "cache.pin.seconds", defaultValue = "300")
+	long pinSeconds;
+
+	// A request waiting for a file that is not in the cache yet fails after this amount of time
+	@ConfigProperty(name = "cache.waiter.timeoutSeconds", defaultValue = "120")
+	long waiterTimeoutSeconds;
+
+	// Bandwidth that prefetches can use to download series (0 for no limit). Series requested by users are never
+	// slowed down, prefetches only use the bandwidth they leave.
+	@ConfigProperty(name = "cache.prefetch.maxBandwidthMBps", defaultValue = "50")
+	long prefetchBandwidthMBps;
+
+	// A file that is still waited for after this delay is requested on its own to the source, ahead of the rest
+	// of the series. Set to a negative value to disable it.
+	@ConfigProperty(name = "cache.priority.delayMs", defaultValue = "300")
+	long priorityDelayMs;
+
+	// Maximum number of files of a series that are requested on their own
+	@ConfigProperty(name = "cache.priority.maxPerSeries", defaultValue = "16")
+	int priorityMaxPerSeries;
+
+	// Series evicted from memory are written on disk and served from there
+	@ConfigProperty(name = "cache.disk.enabled", defaultValue = "true")
+	boolean diskEnabled;
+
+	@ConfigProperty(name = "cache.disk.directory", defaultValue = "drimbox-cache")
+	String diskDirectory;
+
+	@ConfigProperty(name = "cache.disk.maxSizeMB", defaultValue = "20480")
+	long diskMaxSizeMB;
+
+	@ConfigProperty(name = "cache.disk.segmentSizeMB", defaultValue = "256")
+	long diskSegmentSizeMB;
+
+	// OHIF metadata kept for the series of the disk tier
+	@ConfigProperty(name = "cache.disk.metadataMaxSizeMB", defaultValue = "64")
+	long diskMetadataMaxSizeMB;
+
+	// Evicted series waiting to be written on disk stay in memory, past this number they are dropped instead
+	@ConfigProperty(name = "cache.disk.maxDemotingSeries", defaultValue = "4")
+	int maxDemotingSeries;
+
+	// Null if the disk tier is disabled
+	private DiskCacheTier diskTier;
+	private ExecutorService diskWriter;
+
+	// Series that were evicted from memory and are being written on disk. They are still served from memory.
+	private final Map<String, DicomCacheInstance> demotingSeries = new ConcurrentHashMap<>();
+	// Size of these series. They are counted in the memory used until their files are released.
+	private final AtomicLong demotingBytes = new AtomicLong();
+	// Series key => OHIF metadata of a series of the disk tier, least recently used first. Guarded by itself.
+	private final LinkedHashMap<String, SeriesMetadata> diskMetadata = new LinkedHashMap<>(16, 0.75f, true);
+	// Size of these documents. Guarded by diskMetadata.
+	private long diskMetadataBytes = 0;
+
+	private final CacheStatistics statistics = new CacheStatistics();
+
+	private BandwidthLimiter prefetchBandwidth;
+
+	// Fetches of series running, keyed by study/series. Concurrent requests for the same series share the fetch.
+	private final SingleFlight<String, Integer> seriesFetches = new SingleFlight<>(this::onFetchJoined);
+
+	// Priority of the last evicted series
+	private volatile double inflation = 0;
 	
 	// Boundary for multipart request
 	private static final String BOUNDARY = "myBoundary";
-	
+
 	private final Vertx vertx;
 
+	@Inject
+	SharedWebClient webClient;
+
 
 	@Inject
 	public PacsCache(Vertx vertx) {
 		this.vertx = vertx;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			seriesLocks[i] = new ReentrantLock();
+		}
 	}
 
+	@PostConstruct
+	void init() {
+		prefetchBandwidth = new BandwidthLimiter(prefetchBandwidthMBps * MB);
 
-	public static String getEventBusID(String studyUID, String seriesUID) { return studyUID + "/" + seriesUID; }
+		if (!diskEnabled)
+			return;
+
+		try {
+			diskTier = new DiskCacheTier(Path.of(diskDirectory), diskMaxSizeMB * MB, diskSegmentSizeMB * MB);
+			diskWriter = Executors.newSingleThreadExecutor();
+			Log.info("[CACHE] Disk tier enabled in " + Path.of(diskDirectory).toAbsolutePath());
+		} catch (IOException e) {
+			Log.error("[CACHE] Can't create disk tier, only memory will be used : " + e.getMessage());
+			diskTier = null;
+			return;
+		}
+
+		// Series stored before the restart are served as soon as their segment is loaded, the startup is not
+		// delayed
+		final DiskCacheTier tier = diskTier;
+		vertx.executeBlocking(promise -> {
+			try {
+				promise.complete(tier.load());
+			} catch (IOException e) {
+				promise.fail(e);
+			}
+		}, false).onFailure(e -> Log.error("[CACHE] Can't load the disk tier : " + e.getMessage()));
+	}
+
+	@PreDestroy
+	void close() {
+		if (diskTier == null)
+			return;
+
+		// Let the series being written finish so they are in the saved index
+		diskWriter.shutdown();
+		try {
+			if (!diskWriter.awaitTermination(10, TimeUnit.SECONDS))
+				Log.warn("[CACHE] Disk tier closed before the end of its writes");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		diskTier.close();
+	}
+
+	private static String getSeriesKey(String studyUID, String seriesUID) { return studyUID + "/" + seriesUID; }
+
+	private ReentrantLock getSeriesLock(DicomCacheInstance instance) {
+		return seriesLocks[Math.floorMod(instance.getKey().hashCode(), LOCK_STRIPES)];
+	}
 
 
 	/**
@@ -101,35 +350,76 @@ public class PacsCache {
 	 * @param seriesUID Series UID
 	 *
 	 * @return Return a future that contains the # of instance added to the cache. It might be 0 if the data are already
-	 * in the cache. It will raise an RequestErrorException if something goes wrong.
+	 * in the cache. Concurrent calls for a series that is being fetched get the future of that fetch. It will raise
+	 * an RequestErrorException if something goes wrong.
 	 */
 	public io.vertx.core.Future<Integer> addNewEntry(String drimboxSourceURL, String accessToken, String studyUID, String seriesUID, String sopInstanceUID) {
 		// Do not rebuild if already here
-		if (dicomCache.containsKey(studyUID) && dicomCache.get(studyUID).containsKey(seriesUID))
+		DicomCacheInstance existing = getCacheInstance(studyUID, seriesUID);
+		if (existing != null && existing.complete) {
+			statistics.recordHit();
+			existing.prefetch = false;
+			touch(existing);
 			return io.vertx.core.Future.succeededFuture(0);
+		}
 
-		io.vertx.core.Future<Integer> future = vertx.executeBlocking(promise -> {
-			Log.info("Starting cache build...");
-			Log.info("Starting WADO (series) request : " + seriesUID);
+		if (diskTier != null && diskTier.containsSeries(studyUID, seriesUID)) {
+			Log.info(String.format("[CACHE] %s / %s served from disk", studyUID, seriesUID));
+			statistics.recordDiskHit();
+			return io.vertx.core.Future.succeededFuture(0);
+		}
 
-			Map<String, DicomCacheInstance> map = new HashMap<>();
-			map.put(seriesUID, new DicomCacheInstance());
+		// If the series is already being fetched we join that fetch instead of pulling the series again
+		return seriesFetches.execute(getSeriesKey(studyUID, seriesUID),
+				() -> fetchSeries(drimboxSourceURL, accessToken, studyUID, seriesUID, sopInstanceUID, false));
+	}
 
-			if(dicomCache.containsKey(studyUID)) {
-				dicomCache.get(studyUID).put(seriesUID, new DicomCacheInstance());
-			}
-			else {
-				dicomCache.put(studyUID, map);
-			}
+	/**
+	 * Fetch a series in the background, before a user asks for it. Its download is throttled by
+	 * cache.prefetch.maxBandwidthMBps until a user requests the series.
+	 *
+	 * Nothing is done if the series is in the cache or is being fetched.
+	 *
+	 * @return Future of the # of instances added to the cache, see addNewEntry
+	 */
+	public io.vertx.core.Future<Integer> prefetchEntry(String drimboxSourceURL, String accessToken, String studyUID, String seriesUID, String sopInstanceUID) {
+		final String key = getSeriesKey(studyUID, seriesUID);
+		if (getCacheInstance(studyUID, seriesUID) != null || seriesFetches.isInFlight(key)
+				|| (diskTier != null && diskTier.containsSeries(studyUID, seriesUID))) {
+			return io.vertx.core.Future.succeededFuture(0);
+		}
 
-			try {
-				buildEntry(drimboxSourceURL, accessToken, studyUID, seriesUID, sopInstanceUID);
-				// Since something was added we set the # of added items
-				promise.complete( dicomCache.get(studyUID).get(seriesUID).dicomFiles.size() );
-			} catch (RequestErrorException e) {
-				promise.fail(e);
-			}
-		});
+		statistics.recordPrefetch();
+		return seriesFetches.execute(key,
+				() -> fetchSeries(drimboxSourceURL, accessToken, studyUID, seriesUID, sopInstanceUID, true));
+	}
+
+	/**
+	 * Create the entry of the series and fetch all its instances from the source drimbox
+	 *
+	 * @param prefetch The series is fetched in the background and was not requested by a user
+	 * @return Future of the # of instances added to the cache, see addNewEntry
+	 */
+	private io.vertx.core.Future<Integer> fetchSeries(String drimboxSourceURL, String accessToken, String studyUID, String seriesUID, String sopInstanceUID, boolean prefetch) {
+		// The entry is created right away so requests for its files can wait for them
+		DicomCacheInstance instance = createCacheInstance(studyUID, seriesUID, prefetch);
+		if (instance == null) {
+			// A fetch of this series ended between the check in addNewEntry and now
+			if (!prefetch)
+				statistics.recordHit();
+			return io.vertx.core.Future.succeededFuture(0);
+		}
+		if (!prefetch)
+			statistics.recordMiss();
+		instance.source = new SourceInfo(drimboxSourceURL, accessToken, sopInstanceUID);
+
+		Log.info("Starting cache build...");
+		Log.info("Starting WADO (series) request : " + seriesUID);
+		io.vertx.core.Future<Integer> future = io.vertx.core.Future.fromCompletionStage(
+				buildEntry(drimboxSourceURL, accessToken, instance, sopInstanceUID)
+						// Since something was added we set the # of added items
+						.map(ignored -> instance.dicomFiles.size())
+						.subscribeAsCompletionStage());
 
 		future.onComplete(status -> {
 			if (status.succeeded()) {
@@ -141,26 +431,526 @@ public class PacsCache {
 			Log.error("Cache creation aborted due to an error : " + e.getMessage());
 			Log.error(String.format("Removing %s / %s from cache", studyUID, seriesUID));
 			// Remove cache since something went wrong
-			removeFromCache(studyUID, seriesUID);
+			discardCacheInstance(instance);
 		});
 
 		return future;
 	}
 
-	private void removeFromCache(String studyUID, String seriesUID) {
-		dicomCache.get(studyUID).remove(seriesUID);
-		if (dicomCache.get(studyUID).isEmpty()) {
-			dicomCache.remove(studyUID);
+	/**
+	 * Atomically create the entry of a series
+	 *
+	 * @return The new entry or null if the series is already in the cache
+	 */
+	DicomCacheInstance createCacheInstance(String studyUID, String seriesUID) {
+		return createCacheInstance(studyUID, seriesUID, false);
+	}
+
+	/**
+	 * Atomically create the entry of a series
+	 *
+	 * @param prefetch The series is not requested by a user : it is not pinned and it is evicted first
+	 * @return The new entry or null if the series is already in the cache
+	 */
+	private DicomCacheInstance createCacheInstance(String studyUID, String seriesUID, boolean prefetch) {
+		DicomCacheInstance instance = new DicomCacheInstance(studyUID, seriesUID, waiterTimeoutSeconds * 1000);
+		instance.prefetch = prefetch;
+		if (dicomCache.putIfAbsent(instance.getKey(), instance) != null)
+			return null;
+
+		// The series is built again, its metadata will come from the new entry
+		putDiskMetadata(instance.getKey(), null);
+
+		statistics.addSeries(1);
+		if (!prefetch)
+			touch(instance);
+		return instance;
+	}
+
+	/**
+	 * Remove an evicted series from memory
+	 */
+	private void removeFromCache(DicomCacheInstance instance) {
+		if (dicomCache.remove(instance.getKey(), instance))
+			uncount(instance);
+	}
+
+	/**
+	 * Remove the size of a series that left the memory from the statistics
+	 */
+	private void uncount(DicomCacheInstance instance) {
+		final long sizeBytes;
+		final long originalBytes;
+		ReentrantLock lock = getSeriesLock(instance);
+		lock.lock();
+		try {
+			sizeBytes = instance.sizeBytes;
+			originalBytes = instance.originalBytes;
+		} finally {
+			lock.unlock();
+		}
+
+		statistics.addBytes(-sizeBytes);
+		statistics.addOriginalBytes(-originalBytes);
+		statistics.addSeries(-1);
+	}
+
+	/**
+	 * Remove a series whose creation failed. Requests waiting for its files are failed.
+	 */
+	void discardCacheInstance(DicomCacheInstance instance) {
+		ReentrantLock lock = getSeriesLock(instance);
+		lock.lock();
+		try {
+			// No waiter can be registered after this
+			instance.discarded = true;
+		} finally {
+			lock.unlock();
+		}
+
+		removeFromCache(instance);
+		instance.waiters.failAll(new NotFoundException());
+		instance.firstInstance.completeExceptionally(new NotFoundException());
+		releaseFiles(instance);
+	}
+
+	/**
+	 * Release the references of the cache on the files of a series that left the memory. Files stay readable by
+	 * the requests that still hold a reference on them.
+	 */
+	private void releaseFiles(DicomCacheInstance instance) {
+		List<CachedFile> files;
+		ReentrantLock lock = getSeriesLock(instance);
+		lock.lock();
+		try {
+			if (instance.released)
+				return;
+
+			// No reference can be taken after this
+			instance.released = true;
+			files = new ArrayList<>(instance.dicomFiles.values());
+			instance.dicomFiles.clear();
+		} finally {
+			lock.unlock();
+		}
+
+		files.forEach(CachedFile::release);
+	}
+
+	/**
+	 * A request joined the fetch of a series already running
+	 */
+	private void onFetchJoined(String seriesKey) {
+		Log.info("[CACHE] Joining fetch of " + seriesKey);
+		statistics.recordJoinedFetch();
+		DicomCacheInstance instance = dicomCache.get(seriesKey);
+		if (instance != null) {
+			// A user needs it now, stop throttling its download
+			instance.prefetch = false;
+			touch(instance);
+		}
+	}
+
+	/**
+	 * Mark the series as opened by a viewer : it is pinned and its eviction priority is raised.
+	 */
+	private void touch(DicomCacheInstance instance) {
+		ReentrantLock lock = getSeriesLock(instance);
+		lock.lock();
+		try {
+			instance.frequency++;
+			instance.updatePriority(inflation);
+		} finally {
+			lock.unlock();
+		}
+		pin(instance);
+	}
+
+	/**
+	 * Prevent the series from being evicted for pinSeconds. This is called each time a file of the series is read.
+	 */
+	private void pin(DicomCacheInstance instance) {
+		instance.pinnedUntil = System.currentTimeMillis() + pinSeconds * 1000;
+	}
+
+	/**
+	 * Store a file in the series, give it to the requests waiting for it and evict other series if the memory
+	 * budget is exceeded.
+	 *
+	 * @param file File to store, the cache takes over the reference of the caller
+	 */
+	void storeFile(DicomCacheInstance instance, String instanceUID, CachedFile file) {
+		storeFile(instance, instanceUID, file, null);
+	}
+
+	/**
+	 * @param header Attributes of the file, null if it is not a valid DICOM file
+	 */
+	void storeFile(DicomCacheInstance instance, String instanceUID, CachedFile file, InstanceHeader header) {
+		final long delta;
+		final long originalDelta;
+		final CachedFile previous;
+		final List<CompletableFuture<CachedFile>> waiting;
+
+		ReentrantLock lock = getSeriesLock(instance);
+		lock.lock();
+		try {
+			if (instance.discarded || instance.released) {
+				file.release();
+				return;
+			}
+
+			previous = instance.dicomFiles.put(instanceUID, file);
+			if (header != null)
+				instance.headers.put(instanceUID, header);
+			else
+				instance.headers.remove(instanceUID);
+			// The metadata is counted in the size of the series
+			final long metadataBytes = instance.metadata == null ? 0 : instance.metadata.json.length;
+			instance.metadata = null;
+			delta = file.size() - (previous == null ? 0 : previous.size()) - metadataBytes;
+			originalDelta = file.originalSize() - (previous == null ? 0 : previous.originalSize());
+			instance.sizeBytes += delta;
+			instance.originalBytes += originalDelta;
+			instance.updatePriority(inflation);
+
+			// Waiters registered before the file was put are completed here, those coming after find the file.
+			// Each waiter gets its own reference, taken under the lock so the file can't be released in between.
+			waiting = instance.waiters.take(instanceUID);
+			waiting.forEach(waiter -> file.retain());
+		} finally {
+			lock.unlock();
+		}
+
+		if (previous != null)
+			previous.release();
+
+		statistics.addBytes(delta);
+		statistics.addOriginalBytes(originalDelta);
+
+		// Complete outside the lock since waiters may run code of their own
+		for (CompletableFuture<CachedFile> waiter : waiting) {
+			final CachedFile readable;
+			try {
+				readable = toReadable(file);
+			} catch (DataFormatException e) {
+				waiter.completeExceptionally(e);
+				continue;
+			}
+
+			// Timed out or cancelled in the meantime
+			if (!waiter.complete(readable))
+				readable.release();
+		}
+		if (!waiting.isEmpty()) {
+			Log.info("[CACHE] Publish file " + instanceUID);
+		}
+
+		// Empty files are instances missing on the PACS
+		if (header != null && !file.isEmpty())
+			instance.firstInstance.complete(instanceUID);
+
+		evictIfNeeded();
+	}
+
+	/**
+	 * Evict series until the cache fits in its memory budget.
+	 *
+	 * The series with the lowest GreedyDual-Size-Frequency priority is evicted first : big series that are not
+	 * often used go first. Series that are being built or that are pinned are never evicted, so the budget may be
+	 * exceeded for a while if all series are in use.
+	 */
+	private void evictIfNeeded() {
+		final long maxBytes = getMaxBytes();
+		// Series being demoted already left the cache, their memory is freed once they are on disk
+		if (statistics.getCurrentBytes() - demotingBytes.get() <= maxBytes)
+			return;
+
+		// Someone else is already evicting
+		if (!evictionLock.tryLock())
+			return;
+
+		try {
+			final long now = System.currentTimeMillis();
+
+			while (statistics.getCurrentBytes() - demotingBytes.get() > maxBytes) {
+				DicomCacheInstance victim = null;
+
+				for (DicomCacheInstance candidate : dicomCache.values()) {
+					if (!candidate.complete || candidate.isPinned(now))
+						continue;
+
+					if (victim == null || candidate.priority < victim.priority) {
+						victim = candidate;
+					}
+				}
+
+				if (victim == null) {
+					Log.warn(String.format("[CACHE] Memory budget exceeded (%d / %d bytes) but every series is in use",
+							statistics.getCurrentBytes(), maxBytes));
+					return;
+				}
+
+				Log.info(String.format("[CACHE] Evict %s (%d bytes)", victim.getKey(), victim.sizeBytes));
+				inflation = victim.priority;
+				statistics.recordEviction(victim.sizeBytes);
+				// Demoted series are released once they are written on disk
+				if (!demote(victim)) {
+					removeFromCache(victim);
+					releaseFiles(victim);
+				}
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Write an evicted series on the disk tier. The series leaves the cache but stays readable from memory until it
+	 * is written, then its files are released. Its memory is counted until then.
+	 *
+	 * @return False if there is no disk tier or if too many series are already waiting to be written
+	 */
+	private boolean demote(DicomCacheInstance instance) {
+		if (diskTier == null || demotingSeries.size() >= maxDemotingSeries)
+			return false;
+
+		final String key = instance.getKey();
+		if (!dicomCache.remove(key, instance))
+			return false;
+
+		final long sizeBytes;
+		ReentrantLock lock = getSeriesLock(instance);
+		lock.lock();
+		try {
+			sizeBytes = instance.sizeBytes;
+		} finally {
+			lock.unlock();
 		}
+		demotingSeries.put(key, instance);
+		demotingBytes.addAndGet(sizeBytes);
+		diskWriter.execute(() -> {
+			List<CachedFile> inflated = new ArrayList<>();
+			try {
+				// The disk tier stores files as they are sent, compressed files are inflated first
+				Map<String, ByteBuffer> files = new HashMap<>();
+				for (Map.Entry<String, CachedFile> file : instance.dicomFiles.entrySet()) {
+					CachedFile readable = file.getValue().inflate(false);
+					inflated.add(readable);
+					files.put(file.getKey(), readable.nioBuffer());
+				}
+				// Headers are stored with the files so metadata requests never parse the files on disk
+				diskTier.storeSeries(instance.studyUID, instance.seriesUID, files, instance.headers);
+				// The metadata built from memory is still valid for the series on disk
+				putDiskMetadata(key, instance.metadata);
+			} catch (IOException | DataFormatException e) {
+				Log.error(String.format("[CACHE] Can't write %s on disk : %s", key, e.getMessage()));
+			} finally {
+				inflated.forEach(CachedFile::release);
+				demotingSeries.remove(key, instance);
+				releaseFiles(instance);
+				uncount(instance);
+				demotingBytes.addAndGet(-sizeBytes);
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Read a file from the disk tier. The file is not copied : it is a view on the mapped segment.
+	 *
+	 * @return The file or null if it is not on disk
+	 */
+	private CachedFile readFromDisk(String studyUID, String seriesUID, String instanceUID) {
+		if (diskTier == null)
+			return null;
+
+		try {
+			ByteBuffer buffer = diskTier.read(studyUID, seriesUID, instanceUID);
+			return buffer == null ? null : CachedFile.wrap(buffer);
+		} catch (IOException e) {
+			Log.error(String.format("[CACHE] Can't read %s from disk : %s", instanceUID, e.getMessage()));
+			return null;
+		}
+	}
+
+	private long getMaxBytes() {
+		return maxSizeMB * MB;
+	}
+
+	/**
+	 * @return Counters of the cache (hits, misses, evictions, memory used)
+	 */
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * @return Size of the disk tier in bytes, 0 if it is disabled
+	 */
+	public long getDiskSizeBytes() {
+		return diskTier == null ? 0 : diskTier.getSizeBytes();
+	}
+
+	/**
+	 * @return Configured memory budget of the cache in bytes
+	 */
+	public long getMaxSizeBytes() {
+		return getMaxBytes();
 	}
 
-	// TODO : handle study/series not present
+	DicomCacheInstance getCacheInstance(String studyUID, String seriesUID) {
+		final String key = getSeriesKey(studyUID, seriesUID);
+		DicomCacheInstance instance = dicomCache.get(key);
+		return instance != null ? instance : demotingSeries.get(key);
+	}
 
-	private DicomCacheInstance getCacheInstance(String studyUID, String seriesUID) {
-		if (!dicomCache.containsKey(studyUID))
+	/**
+	 * Get the OHIF metadata of a series built by a previous request
+	 *
+	 * @param key Everything the document depends on besides the files of the series (base URL, KOS, ...)
+	 * @return The serialized document, or null if it was not built for this key or the series changed since
+	 */
+	public byte[] getSeriesMetadata(String studyUID, String seriesUID, String key) {
+		final String seriesKey = getSeriesKey(studyUID, seriesUID);
+		DicomCacheInstance instance = dicomCache.get(seriesKey);
+		SeriesMetadata metadata;
+		if (instance != null) {
+			metadata = instance.metadata;
+		} else if (diskTier != null && diskTier.containsSeries(studyUID, seriesUID)) {
+			synchronized (diskMetadata) {
+				metadata = diskMetadata.get(seriesKey);
+			}
+		} else {
 			return null;
+		}
 
-		return dicomCache.get(studyUID).get(seriesUID);
+		return metadata != null && metadata.key.equals(key) ? metadata.json : null;
+	}
+
+	/**
+	 * Keep the OHIF metadata of a series so following requests don't build it again. It is only kept once the
+	 * series is complete, and is dropped with the series or as soon as one of its files changes. The document is
+	 * counted in the size of the series. For series on the disk tier, it is kept in a separate memory budget
+	 * (cache.disk.metadataMaxSizeMB).
+	 *
+	 * @param key Everything the document depends on besides the files of the series (base URL, KOS, ...)
+	 * @param json Serialized document
+	 */
+	public void putSeriesMetadata(String studyUID, String seriesUID, String key, byte[] json) {
+		final String seriesKey = getSeriesKey(studyUID, seriesUID);
+		DicomCacheInstance instance = dicomCache.get(seriesKey);
+		if (instance == null) {
+			// Series being demoted are not on disk yet
+			if (diskTier != null && !demotingSeries.containsKey(seriesKey) && diskTier.containsSeries(studyUID, seriesUID))
+				putDiskMetadata(seriesKey, new SeriesMetadata(key, json));
+			return;
+		}
+		if (!instance.complete)
+			return;
+
+		long delta = 0;
+		ReentrantLock lock = getSeriesLock(instance);
+		lock.lock();
+		try {
+			// Once the series left the cache its size is not counted anymore
+			if (!instance.discarded && !instance.released && dicomCache.get(seriesKey) == instance) {
+				delta = json.length - (instance.metadata == null ? 0 : instance.metadata.json.length);
+				instance.metadata = new SeriesMetadata(key, json);
+				instance.sizeBytes += delta;
+				instance.updatePriority(inflation);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (delta != 0) {
+			statistics.addBytes(delta);
+			evictIfNeeded();
+		}
+	}
+
+	/**
+	 * Keep the metadata of a series of the disk tier, the least recently used documents are dropped past
+	 * cache.disk.metadataMaxSizeMB.
+	 *
+	 * @param metadata Null to drop the metadata of the series
+	 */
+	private void putDiskMetadata(String seriesKey, SeriesMetadata metadata) {
+		synchronized (diskMetadata) {
+			SeriesMetadata previous = metadata == null ? diskMetadata.remove(seriesKey) : diskMetadata.put(seriesKey, metadata);
+			if (previous != null)
+				diskMetadataBytes -= previous.json.length;
+			if (metadata == null)
+				return;
+
+			diskMetadataBytes += metadata.json.length;
+			Iterator<SeriesMetadata> eldest = diskMetadata.values().iterator();
+			while (diskMetadataBytes > diskMetadataMaxSizeMB * MB && eldest.hasNext()) {
+				diskMetadataBytes -= eldest.next().json.length;
+				eldest.remove();
+			}
+		}
+	}
+
+	/**
+	 * Get the attributes of the instances of a series that are in the cache. They were read when the files were
+	 * received and are stored on disk with the series, so no file is parsed. Only series written on disk without
+	 * their headers (by a previous version) have their files parsed, their header only.
+	 *
+	 * @return Instance UID => header, empty if the series is not in the cache
+	 */
+	public Map<String, InstanceHeader> getInstanceHeaders(String studyUID, String seriesUID) {
+		DicomCacheInstance instance = getCacheInstance(studyUID, seriesUID);
+		if (instance != null && !instance.headers.isEmpty())
+			return new HashMap<>(instance.headers);
+
+		Map<String, InstanceHeader> headers = new HashMap<>();
+		if (diskTier == null)
+			return headers;
+
+		try {
+			Map<String, InstanceHeader> stored = diskTier.readHeaders(studyUID, seriesUID);
+			if (stored != null)
+				return stored;
+		} catch (IOException e) {
+			Log.warn(String.format("[CACHE] Can't read headers of %s from disk : %s", seriesUID, e.getMessage()));
+		}
+
+		for (String instanceUID : diskTier.getInstanceUIDs(studyUID, seriesUID)) {
+			CachedFile file = readFromDisk(studyUID, seriesUID, instanceUID);
+			if (file == null)
+				continue;
+
+			try (InputStream input = file.openStream()) {
+				InstanceHeader header = InstanceHeader.read(input);
+				if (header != null)
+					headers.put(instanceUID, header);
+			} catch (IOException e) {
+				Log.warn(String.format("[CACHE] Can't read header of %s : %s", instanceUID, e.getMessage()));
+			} finally {
+				file.release();
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Wait for the first file of a series. This is used to build the OHIF metadata as soon as possible.
+	 *
+	 * Each call gets its own future, completed once : when the first file is received or right away if the series
+	 * is already in the cache. It fails with a TimeoutException after cache.waiter.timeoutSeconds, or if the
+	 * series can't be fetched.
+	 *
+	 * @return Future completed with the UID of the first instance, null if the series is not in the cache
+	 */
+	public CompletableFuture<String> getFirstInstanceUID(String studyUID, String seriesUID) {
+		DicomCacheInstance instance = getCacheInstance(studyUID, seriesUID);
+		if (instance != null && !instance.released) {
+			return instance.firstInstance.copy().orTimeout(waiterTimeoutSeconds, TimeUnit.SECONDS);
+		}
+
+		return CompletableFuture.completedFuture(getFirstInstanceNumber(studyUID, seriesUID));
 	}
 
 	/**
@@ -173,44 +963,176 @@ public class PacsCache {
 	 * @return first instance number of studyUID/seriesUID or null if not present
 	 */
 	public String getFirstInstanceNumber(String studyUID, String seriesUID) {
-		if (!dicomCache.containsKey(studyUID) || !dicomCache.get(studyUID).containsKey(seriesUID) )
-			return null;
+		DicomCacheInstance instance = getCacheInstance(studyUID, seriesUID);
+		if (instance != null)
+			return instance.dicomFiles.keySet().stream().findFirst().orElse(null);
+
+		if (diskTier != null)
+			return diskTier.getInstanceUIDs(studyUID, seriesUID).stream().findFirst().orElse(null);
 
-		return dicomCache.get(studyUID).get(seriesUID).dicomFiles.keySet().stream().findFirst().get();
+		return null;
 	}
 
-	Map<String, CompletableFuture<byte[]>> waitingFutures = new HashMap<>();
 	/**
 	 * Get dicom file in cache.
 	 *
 	 * If it is not available it will wait for the buildCache to emit the requested
-	 * file.
+	 * file. Each call gets its own future : it fails with a TimeoutException after cache.waiter.timeoutSeconds and
+	 * it can be cancelled without affecting other requests for the same file.
 	 *
 	 * @param studyUID Study UID
 	 * @param seriesUID Series UID
 	 * @param instanceUID Instance UID
 	 *
 	 * @return Dicom file corresponding to the UIDs.
-	 * It may not be available right away as the cache can take some time to be built.
+	 * It may not be available right away as the cache can take some time to be built. The caller holds a
+	 * reference on the file and must release it once done.
 	 */
-	public Future<byte[]> getDicomFile(String studyUID, String seriesUID, String instanceUID) {
-		CompletableFuture<byte[]> completableFuture = new CompletableFuture<>();
-
+	public CompletableFuture<CachedFile> getDicomFile(String studyUID, String seriesUID, String instanceUID) {
 		DicomCacheInstance instance = getCacheInstance(studyUID, seriesUID);
-		if (instance == null) {
-			Log.error(String.format("No instance found for %s / %s / %s ", studyUID, seriesUID, instanceUID));
-			return CompletableFuture.failedFuture(new NotFoundException());
+		if (instance != null) {
+			pin(instance);
+
+			// Checking the file and registering the waiter is atomic with storeFile() : a file can't be stored
+			// between the two, so no waiter is lost.
+			CachedFile found = null;
+			ReentrantLock lock = getSeriesLock(instance);
+			lock.lock();
+			try {
+				if (instance.discarded) {
+					Log.error(String.format("Cache creation failed for %s / %s / %s ", studyUID, seriesUID, instanceUID));
+					return CompletableFuture.failedFuture(new NotFoundException());
+				}
+
+				// Otherwise the series was just written on disk
+				if (!instance.released) {
+					CachedFile file = instance.dicomFiles.get(instanceUID);
+					if (file != null) {
+						Log.info("[CACHE] Available " + instanceUID);
+						found = file.retain();
+					} else {
+						Log.info("[CACHE] Waiting for : " + instanceUID);
+						CompletableFuture<CachedFile> waiter = instance.waiters.register(instanceUID);
+						if (priorityDelayMs >= 0 && !instance.complete
+								&& instance.priorityRequests.size() < priorityMaxPerSeries
+								&& instance.priorityRequests.add(instanceUID)) {
+							schedulePriorityRequest(instance, instanceUID);
+						}
+						return waiter;
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			// Inflated outside the lock
+			if (found != null) {
+				try {
+					return CompletableFuture.completedFuture(toReadable(found));
+				} catch (DataFormatException e) {
+					Log.error(String.format("[CACHE] Can't inflate %s : %s", instanceUID, e.getMessage()));
+					return CompletableFuture.failedFuture(e);
+				}
+			}
 		}
 
-		if (instance.dicomFiles.containsKey(instanceUID)) {
-			Log.info("[CACHE] Available " + instanceUID);
-			completableFuture.complete(instance.dicomFiles.get(instanceUID));
-		} else {
-			Log.info("[CACHE] Waiting for : " + instanceUID);
-			waitingFutures.put(instanceUID, completableFuture);
+		CachedFile diskFile = readFromDisk(studyUID, seriesUID, instanceUID);
+		if (diskFile != null) {
+			Log.info("[CACHE] Available on disk " + instanceUID);
+			return CompletableFuture.completedFuture(diskFile);
 		}
 
-		return completableFuture;
+		Log.error(String.format("No instance found for %s / %s / %s ", studyUID, seriesUID, instanceUID));
+		return CompletableFuture.failedFuture(new NotFoundException());
+	}
+
+	/**
+	 * Give a reference on a stored file to a reader. A compressed file is inflated in a new file : the reference
+	 * on the stored file is released and the reader gets the inflated file instead.
+	 */
+	private CachedFile toReadable(CachedFile file) throws DataFormatException {
+		if (!file.isCompressed())
+			return file;
+
+		try {
+			return file.inflate(offHeap);
+		} finally {
+			file.release();
+		}
+	}
+
+	/**
+	 * Copy a received file to the storage of the cache. If cache.memory.compression is enabled, files with an
+	 * uncompressed transfer syntax are compressed. Files that are already compressed (JPEG, ...) are copied as is
+	 * since deflate would barely reduce them.
+	 *
+	 * @param header Header of the file, null if it could not be read
+	 */
+	private CachedFile toCachedFile(ByteBuf part, InstanceHeader header) {
+		if (compression && header != null && TransferSyntaxType.forUID(header.getTransferSyntaxUID()) == TransferSyntaxType.NATIVE) {
+			CachedFile compressed = CachedFile.compress(part, offHeap, compressionLevel);
+			if (compressed != null)
+				return compressed;
+		}
+
+		return CachedFile.copyOf(part, offHeap);
+	}
+
+	/**
+	 * Request a file on its own to the source drimbox if it is still waited for after cache.priority.delayMs. This
+	 * way the image displayed by the viewer does not wait for all the images that come before it in the series.
+	 */
+	private void schedulePriorityRequest(DicomCacheInstance instance, String instanceUID) {
+		vertx.setTimer(Math.max(1, priorityDelayMs), id -> {
+			if (instance.complete || instance.dicomFiles.containsKey(instanceUID)
+					|| instance.waiters.getWaiterCount(instanceUID) == 0)
+				return;
+
+			fetchInstance(instance, instanceUID);
+		});
+	}
+
+	/**
+	 * Fetch a single file from the source drimbox and store it in the series, without waiting for the response.
+	 * Errors are only logged : the file will still come with the rest of the series.
+	 */
+	private void fetchInstance(DicomCacheInstance instance, String instanceUID) {
+		final SourceInfo source = instance.source;
+		if (source == null)
+			return;
+
+		String serviceURL = source.drimboxSourceURL + "/" + PrefixConstants.DRIMBOX_PREFIX + "/"
+				+ DRIMboxSourceAPI.DICOM_FILE_PREFIX + "/" + instance.studyUID + "/" + instance.seriesUID + "/" + instanceUID;
+		// TODO : Compatibility with OHIFv2 and OHIFv3 without KOS (need to remove this asap)
+		if (!serviceURL.startsWith("http")) {
+			serviceURL = DRIMboxConsoAPI.HTTP_PROTOCOL + serviceURL;
+		}
+
+		Log.info("[CACHE] Priority request for " + instanceUID);
+		statistics.recordPriorityFetch();
+		webClient.send(webClient.get(serviceURL)
+						.putHeader(HttpHeaders.AUTHORIZATION, "Bearer " + source.accessToken)
+						.putHeader("KOS-SOPInstanceUID", source.sopInstanceUID))
+				// The copy (and compression) of the file is not done on the event loop
+				.emitOn(Infrastructure.getDefaultWorkerPool())
+				.subscribe().with(response -> {
+					if (response.statusCode() != 200) {
+						Log.warn(String.format("[CACHE] Priority request for %s failed with code %d", instanceUID, response.statusCode()));
+						return;
+					}
+
+					// The series may have brought it in the meantime
+					if (response.body() == null || response.body().length() == 0 || instance.dicomFiles.containsKey(instanceUID))
+						return;
+
+					try {
+						ByteBuf file = response.body().getDelegate().getByteBuf();
+						InstanceHeader header = InstanceHeader.read(file);
+						storeFile(instance, instanceUID, toCachedFile(file, header), header);
+					} catch (IOException e) {
+						Log.warn(String.format("[CACHE] Priority request for %s failed : %s", instanceUID, e.getMessage()));
+					}
+				}, e -> Log.warn(String.format("[CACHE] Priority request for %s failed : %s", instanceUID, e.getMessage())));
 	}
 
 	/**
@@ -221,150 +1143,165 @@ public class PacsCache {
 	 * in the KOS that are not in the cache are not in the pacs and we need to mark them a "not found" (empty image)
 	 */
 	public void markInstanceAsNotFound(String studyUID, String seriesUID, List<String> instanceUIDs) {
-		// Check if some images are already pending
-		for (String instanceUID : instanceUIDs) {
-			if (waitingFutures.containsKey(instanceUID)) {
-				waitingFutures.get(instanceUID).complete(new byte[0]);
-			}
-		}
+		DicomCacheInstance instance = dicomCache.get(getSeriesKey(studyUID, seriesUID));
+		if (instance == null)
+			return;
 
 		// For all images that are in the instanceUIDs but not in valid images, we make them empty so we can return an
-		// error code.
-		if (dicomCache.containsKey(studyUID) && dicomCache.get(studyUID).containsKey(seriesUID)) {
-			var validImages = dicomCache.get(studyUID).get(seriesUID).dicomFiles;
-
-			Set<String> instanceSet = new HashSet<>(instanceUIDs);
-			instanceSet.removeAll( validImages.keySet());
-
-			for(String instanceUID : instanceSet) {
-				validImages.put(instanceUID, new byte[0]);
+		// error code. Pending requests for those images get the empty image.
+		for (String instanceUID : instanceUIDs) {
+			if (!instance.dicomFiles.containsKey(instanceUID)) {
+				storeFile(instance, instanceUID, CachedFile.wrap(new byte[0]));
 			}
 		}
 	}
 
 
-	private interface BoundaryFunc { String getBoundary(String contentType); }
-	private void buildEntry(String drimboxSourceURL, String accessToken, String studyUID, String seriesUID, String sopInstanceUID) throws RequestErrorException {
+	/**
+	 * Fetch the series from the source drimbox. Its instances are stored as they are received, while the next ones
+	 * are still being read from the socket.
+	 *
+	 * @return Uni completed once the whole series is in the cache. It fails with a RequestErrorException if
+	 * something goes wrong.
+	 */
+	private Uni<Void> buildEntry(String drimboxSourceURL, String accessToken, DicomCacheInstance dc, String sopInstanceUID) {
+		final String studyUID = dc.studyUID;
+		final String seriesUID = dc.seriesUID;
 		String serviceURL = drimboxSourceURL + "/" + PrefixConstants.DRIMBOX_PREFIX + "/" + PrefixConstants.STUDIES_PREFIX + "/" + studyUID + "/series/" + seriesUID;
 
 		// TODO : Compatibility with OHIFv2 and OHIFv3 without KOS (need to remove this asap)
 		if (!drimboxSourceURL.startsWith("http")) {
 			serviceURL = DRIMboxConsoAPI.HTTP_PROTOCOL + serviceURL;
 		}
+		final String url = serviceURL;
 
-		try {
-			Map<String, String> transferSyntaxes = Map.of(UID.JPEGBaseline8Bit, "0.9",
-					UID.JPEGExtended12Bit, "0.8",
-					UID.JPEG2000, "0.8",
-					UID.JPEGLosslessSV1, "0.7",
-					UID.JPEGLSLossless, "0.6",
-					UID.ExplicitVRLittleEndian, "0.5",
-					UID.MPEG2MPML, "0.4",
-					UID.MPEG2MPHL, "0.3",
-					UID.MPEG4HP41, "0.3",
-					UID.MPEG4HP41BD, "0.3");
-			final URL url = new URL(serviceURL);
-			final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-			for (Map.Entry<String, String> entry : transferSyntaxes.entrySet()) {
-				connection.addRequestProperty(HttpHeaders.ACCEPT, "multipart/related; type=\"application/dicom\";transfer-syntax=" + entry.getKey() + ";q=" + entry.getValue() + ";boundary=" + BOUNDARY);
-			}
-			connection.setRequestProperty(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken);
-			connection.setRequestProperty("KOS-SOPInstanceUID", sopInstanceUID);
-
-			BoundaryFunc boundaryManager = (String contentType) -> {
-				String[] respContentTypeParams = contentType.split(";");
-				for (String respContentTypeParam : respContentTypeParams)
-					if (respContentTypeParam.replace(" ", "").startsWith("boundary="))
-						return respContentTypeParam
-								.substring(respContentTypeParam.indexOf('=') + 1)
-								.replaceAll("\"", "");
-
-				return null;
-			};
-
-			// Trigger exception if something went wrong
-			switch(connection.getResponseCode()) {
-				case 200:
-				case 206:
-					break;
-				case 404:
-					throw new RequestErrorException("Series (or study) cannot be found ", 404);
-				default:
-					throw new RequestErrorException("Error : " + connection.getErrorStream().readAllBytes(), connection.getResponseCode());
+		Map<String, String> transferSyntaxes = Map.of(UID.JPEGBaseline8Bit, "0.9",
+				UID.JPEGExtended12Bit, "0.8",
+				UID.JPEG2000, "0.8",
+				UID.JPEGLosslessSV1, "0.7",
+				UID.JPEGLSLossless, "0.6",
+				UID.ExplicitVRLittleEndian, "0.5",
+				UID.MPEG2MPML, "0.4",
+				UID.MPEG2MPHL, "0.3",
+				UID.MPEG4HP41, "0.3",
+				UID.MPEG4HP41BD, "0.3");
 
-			}
+		Map<String, String> headers = new HashMap<>();
+		// One Accept header listing all the transfer syntaxes, the source splits it
+		StringJoiner accept = new StringJoiner(", ");
+		for (Map.Entry<String, String> entry : transferSyntaxes.entrySet()) {
+			accept.add("multipart/related; type=\"application/dicom\";transfer-syntax=" + entry.getKey() + ";q=" + entry.getValue() + ";boundary=" + BOUNDARY);
+		}
+		headers.put(HttpHeaders.ACCEPT, accept.toString());
+		headers.put(HttpHeaders.AUTHORIZATION, "Bearer " + accessToken);
+		headers.put("KOS-SOPInstanceUID", sopInstanceUID);
 
-			String boundary = boundaryManager.getBoundary(connection.getContentType());
-			if (boundary == null) {
-				Log.fatal("Invalid response. Unpacking of parts not possible.");
-				throw new RequestErrorException("Multipart boundary cannot be determined", 500);
-			}
+		return webClient.stream(url, headers)
+				.onItem().transformToMulti(response -> {
+					// Trigger exception if something went wrong
+					switch (response.statusCode()) {
+						case 200:
+						case 206:
+							break;
+						case 404:
+							response.resume();
+							return Multi.createFrom().failure(new RequestErrorException("Series (or study) cannot be found ", 404));
+						default:
+							return response.body().onItem().transformToMulti(body ->
+									Multi.createFrom().failure(new RequestErrorException("Error : " + body, response.statusCode())));
+					}
 
-			DicomCacheInstance dc = getCacheInstance(studyUID, seriesUID);
+					String boundary = MultipartStreamParser.getBoundary(response.getHeader(HttpHeaders.CONTENT_TYPE));
+					if (boundary == null) {
+						Log.fatal("Invalid response. Unpacking of parts not possible.");
+						response.request().reset();
+						return Multi.createFrom().failure(new RequestErrorException("Multipart boundary cannot be determined", 500));
+					}
 
-			if (dc == null) {
-				Log.fatal("Can't get DicomCacheInstance for specified study and series UID");
-				throw new RequestErrorException("Internal server error", 500);
-			}
+					return new MultipartStreamParser(boundary).parse(response.toMulti())
+							.onCancellation().invoke(() -> response.request().reset());
+				})
+				// Parts are decoded and copied to the cache on a worker thread, not on the event loop
+				.emitOn(Infrastructure.getDefaultWorkerPool())
+				.onItem().call(part -> {
+					final int size = part.length();
+					storePart(dc, part.getDelegate().getByteBuf());
 
-			new MultipartParser(boundary).parse(new BufferedInputStream(connection.getInputStream()), (partNumber, multipartInputStream) -> {
-				Map<String, List<String>> headerParams = multipartInputStream.readHeaderParams();
-				try {
-					//Log.info("Image time : " + Duration.between(startTime, Instant.now()).toString());
-					byte[] rawDicomFile = multipartInputStream.readAllBytes();
-					DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(rawDicomFile));
-					Attributes dataSet = dis.readDataset();
-					String instanceUID = dataSet.getString(Tag.SOPInstanceUID);
-
-					Log.info("[CACHE] Received file " + instanceUID);
-					dc.dicomFiles.put(instanceUID, rawDicomFile);
-
-					if (waitingFutures.containsKey(instanceUID)) {
-						Log.info("[CACHE] Publish file " + instanceUID);
-						waitingFutures.get(instanceUID).complete(rawDicomFile);
-						waitingFutures.remove(instanceUID);
+					// Prefetches only use the bandwidth left by the series requested by users. The next parts are
+					// not requested during the wait, so the source is slowed down as well.
+					if (!dc.prefetch) {
+						prefetchBandwidth.consume(size);
+						return Uni.createFrom().voidItem();
 					}
+					long waitMs = prefetchBandwidth.reserve(size);
+					if (waitMs == 0)
+						return Uni.createFrom().voidItem();
 
-					// Say that instance is now available
-					// This is used to populate metadata for OHIF
-					// Todo : see if we only need to trigger this once or if performance is ok like that
-					vertx.eventBus().publish(getEventBusID(studyUID, seriesUID), instanceUID);
+					return Uni.createFrom().voidItem().onItem().delayIt().by(Duration.ofMillis(waitMs));
+				})
+				.onItem().ignoreAsUni()
+				.onItem().transformToUni(ignored -> {
+					if (dc.dicomFiles.isEmpty()) {
+						Log.error("C-MOVE data is empty.");
+						return Uni.createFrom().<Void>failure(new RequestErrorException("C-MOVE was empty", 404));
+					}
 
-				} catch (Exception e) {
-					Log.fatal("Failed to process Part #" + partNumber + headerParams, e);
-				}
-			});
+					dc.complete = true;
+					if (dc.originalBytes > dc.sizeBytes) {
+						Log.info(String.format("[CACHE] Complete (compression ratio %.2f)", (double) dc.originalBytes / Math.max(dc.sizeBytes, 1)));
+					} else {
+						Log.info("[CACHE] Complete");
+					}
+					// The series can now be evicted, make sure we are still in the budget
+					evictIfNeeded();
+					return Uni.createFrom().voidItem();
+				})
+				.onFailure().transform(e -> {
+					// Allow to throw RequestErrorException in the body
+					if (e instanceof RequestErrorException)
+						return e;
 
-			if (dc.dicomFiles.isEmpty()) {
-				Log.error("C-MOVE data is empty.");
-				throw new RequestErrorException("C-MOVE was empty", 404);
-			}
+					if (e instanceof ConnectException) {
+						Log.error(String.format("DRIMbox at %s is not responding.", url));
+						Log.error(String.format("Error : %s", e.getMessage()));
 
-			dc.complete = true;
-			Log.info("[CACHE] Complete");
-		} catch (ConnectException e) {
-			Log.error(String.format("DRIMbox at %s is not responding.", serviceURL));
-			Log.error(String.format("Error : %s", e.getMessage()));
-
-			throw new RequestErrorException("DRIMbox source is not responding", 502);
-		} catch (EOFException e) {
-			// TODO : see how it's working with new error handling in multi<>
-			// This is mainly bc the SOPInstance UID was not found in the database
-			// We don't have any rest code for Multi<> types yet, so we need to do this workaround
-			// + special code for this error since it's not a specific 404
-			throw new RequestErrorException("SOPInstance not found in database", 1404);
-		// Allow to throw RequestErrorException in the body
-		} catch (RequestErrorException e) {
-			throw e;
-		} catch (Exception e) {
-			Log.error("Unknown error : ");
-			e.printStackTrace();
-			throw new RequestErrorException("Unknown error", 500);
-		}
+						return new RequestErrorException("DRIMbox source is not responding", 502);
+					}
+					if (e instanceof TimeoutException)
+						return new RequestErrorException("DRIMbox source timeout", 504);
+					if (e instanceof EOFException) {
+						// TODO : see how it's working with new error handling in multi<>
+						// This is mainly bc the SOPInstance UID was not found in the database
+						// We don't have any rest code for Multi<> types yet, so we need to do this workaround
+						// + special code for this error since it's not a specific 404
+						return new RequestErrorException("SOPInstance not found in database", 1404);
+					}
 
+					Log.error("Unknown error : ", e);
+					return new RequestErrorException("Unknown error", 500);
+				});
+	}
 
+	/**
+	 * Store an instance received with its series. Errors are only logged, the other instances are still stored.
+	 */
+	private void storePart(DicomCacheInstance dc, ByteBuf part) {
+		try {
+			// Only the header is parsed, it is kept to answer metadata requests
+			InstanceHeader header = InstanceHeader.read(part);
+			if (header == null)
+				throw new IOException("Part is not a DICOM instance");
+			String instanceUID = header.getSOPInstanceUID();
 
+			Log.info("[CACHE] Received file " + instanceUID);
+			// It may have been received on its own by a priority request
+			if (!dc.dicomFiles.containsKey(instanceUID)) {
+				// Only copy of the part, to storage of the exact size
+				storeFile(dc, instanceUID, toCachedFile(part, header), header);
+			}
+		} catch (Exception e) {
+			Log.fatal("Failed to process part of " + dc.getKey(), e);
+		}
 	}
 
 }
@@ -0,0 +1,287 @@
+/*
+ *  RetrieveSession.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.bcom.drimbox.pacs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.infrastructure.Infrastructure;
+import io.smallrye.mutiny.subscription.UniEmitter;
+
+/**
+ * Retrieve of a series by C-MOVE, from the requests to the PACS to the multipart response they feed.
+ *
+ * The instances the PACS sends to our C-STORE SCP are routed to their session with the Move Originator Message
+ * ID of the C-STORE requests : each C-MOVE of a session is sent with a message ID registered in CStoreSCP.
+ * Every session has its own multipart stream, boundary and transfer syntaxes, so concurrent retrieves don't mix
+ * their instances.
+ *
+ * The parts waiting for the HTTP client take at most maxBufferedBytes of memory. When the client reads slower
+ * than the PACS sends, the C-STORE request waits for room (so its response, and the next instances, are delayed).
+ * If there is still no room after backpressureTimeoutMs the part is spilled to a temporary file, so the PACS is
+ * never kept waiting long enough to abort the association.
+ */
+public class RetrieveSession {
+	// Index of the first part of the multipart response
+	private static final int BASE_INDEX = 1;
+
+	// Part waiting for the client, in memory or spilled to a temporary file
+	private static class Part {
+		final byte[] content;
+		final Path file;
+
+		Part(byte[] content, Path file) {
+			this.content = content;
+			this.file = file;
+		}
+	}
+
+	// Given to the stream once all the parts are sent
+	private static final byte[] END_OF_STREAM = new byte[0];
+
+	private final String boundary;
+	private final List<String> supportedTransferSyntax;
+	private final List<String> preferredTransferSyntax;
+
+	private final long maxBufferedBytes;
+	private final long backpressureTimeoutMs;
+
+	// Message IDs of the C-MOVE requests of this session
+	final Set<Integer> messageIDs = ConcurrentHashMap.newKeySet();
+
+	// Parts not requested yet by the client, guarded by this
+	private final Deque<Part> parts = new ArrayDeque<>();
+	// Size of the parts of the queue that are in memory
+	private long bufferedBytes = 0;
+	// Request of the client waiting for the next part
+	private UniEmitter<? super Part> waitingRequest;
+
+	private int currentID = BASE_INDEX;
+	private boolean completed = false;
+	private boolean cancelled = false;
+
+	RetrieveSession(String boundary, List<String> supportedTransferSyntax, List<String> preferredTransferSyntax,
+			long maxBufferedBytes, long backpressureTimeoutMs) {
+		this.boundary = boundary;
+		this.supportedTransferSyntax = supportedTransferSyntax;
+		this.preferredTransferSyntax = preferredTransferSyntax;
+		this.maxBufferedBytes = maxBufferedBytes;
+		this.backpressureTimeoutMs = backpressureTimeoutMs;
+	}
+
+	public List<String> getSupportedTransferSyntax() {
+		return supportedTransferSyntax;
+	}
+
+	public List<String> getPreferredTransferSyntax() {
+		return preferredTransferSyntax;
+	}
+
+	/**
+	 * @return Multipart response of the session, completed once all the C-MOVE are over. A part is only taken
+	 * from the session when the subscriber requests it.
+	 */
+	public Multi<byte[]> getResponseStream() {
+		return Multi.createBy().repeating().uni(this::nextPart)
+				.until(content -> content == END_OF_STREAM)
+				// Client gone or stream over
+				.onTermination().invoke(this::cancel);
+	}
+
+	/**
+	 * Send an instance in the multipart response. C-STORE requests can be handled in parallel, the parts are
+	 * written one after the other. It blocks while the parts waiting for the client take too much memory, see the
+	 * class description.
+	 */
+	void sendPart(byte[] dicom) throws IOException {
+		Part part;
+		UniEmitter<? super Part> request;
+
+		synchronized (this) {
+			// Size of the part with its headers, a part bigger than the whole budget is accepted once the queue is
+			// empty
+			long size = dicom.length + 256L;
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backpressureTimeoutMs);
+			while (bufferedBytes > 0 && bufferedBytes + size > maxBufferedBytes && !completed && !cancelled) {
+				long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remainingMs <= 0)
+					break;
+				try {
+					wait(remainingMs);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+
+			if (completed || cancelled)
+				return;
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream(dicom.length + 256);
+			output.write(("--" + this.boundary + "\r\nContent-ID: <"+ currentID +"@resteasy-multipart>\r\nContent-Type: application/dicom;transfer-syntax="+this.preferredTransferSyntax+"\r\n\r\n").getBytes());
+			output.write(dicom);
+			output.write(("\r\n").getBytes());
+			byte[] content = output.toByteArray();
+
+			if (bufferedBytes > 0 && bufferedBytes + content.length > maxBufferedBytes) {
+				Path file = Files.createTempFile("drimbox-retrieve-", ".part");
+				Files.write(file, content);
+				Log.info(String.format("Client of the retrieve is too slow, part %d spilled to %s", currentID, file));
+				part = new Part(null, file);
+			} else {
+				part = new Part(content, null);
+			}
+			currentID++;
+			request = offer(part);
+		}
+
+		// Outside of the lock, the client may write the part right away
+		if (request != null)
+			request.complete(part);
+	}
+
+	/**
+	 * Mark the end of the multipart response
+	 */
+	void complete() {
+		Part delimiter = new Part(("--" + this.boundary + "--").getBytes(), null);
+		UniEmitter<? super Part> request;
+
+		synchronized (this) {
+			if (completed)
+				return;
+
+			completed = true;
+			request = offer(delimiter);
+			parts.add(new Part(END_OF_STREAM, null));
+			// The C-STORE requests waiting for room give up
+			notifyAll();
+		}
+
+		if (request != null)
+			request.complete(delimiter);
+	}
+
+	/**
+	 * Queue the part, or give it to the request of the client waiting for it. Called with the lock.
+	 *
+	 * @return Request to complete with the part (outside of the lock), null if the part was queued
+	 */
+	private UniEmitter<? super Part> offer(Part part) {
+		if (cancelled) {
+			deleteQuietly(part);
+			return null;
+		}
+
+		if (waitingRequest != null) {
+			UniEmitter<? super Part> request = waitingRequest;
+			waitingRequest = null;
+			return request;
+		}
+
+		if (part.content != null)
+			bufferedBytes += part.content.length;
+		parts.add(part);
+		return null;
+	}
+
+	private Uni<byte[]> nextPart() {
+		return Uni.createFrom().<Part>emitter(emitter -> {
+			Part part;
+			synchronized (this) {
+				part = parts.poll();
+				if (part == null) {
+					waitingRequest = emitter;
+					return;
+				}
+				if (part.content != null) {
+					bufferedBytes -= part.content.length;
+					// Room for the C-STORE requests waiting
+					notifyAll();
+				}
+			}
+			emitter.complete(part);
+		}).onItem().transformToUni(part -> {
+			if (part.content != null)
+				return Uni.createFrom().item(part.content);
+
+			// Not read on the event loop
+			return Uni.createFrom().item(() -> readSpilledPart(part.file))
+					.runSubscriptionOn(Infrastructure.getDefaultWorkerPool());
+		});
+	}
+
+	private static byte[] readSpilledPart(Path file) {
+		try {
+			return Files.readAllBytes(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			deleteQuietly(file);
+		}
+	}
+
+	/**
+	 * Drop the parts not sent, the client is gone or the stream is over
+	 */
+	private synchronized void cancel() {
+		cancelled = true;
+		Part part;
+		while ((part = parts.poll()) != null) {
+			deleteQuietly(part);
+		}
+		bufferedBytes = 0;
+		waitingRequest = null;
+		notifyAll();
+	}
+
+	private static void deleteQuietly(Part part) {
+		if (part.file != null)
+			deleteQuietly(part.file);
+	}
+
+	private static void deleteQuietly(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			Log.warn("Can't delete " + file + " : " + e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ *  SeriesPrefetcher.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs;
+
+import java.net.MalformedURLException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import com.bcom.drimbox.dmp.xades.file.KOSFile;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.quarkus.logging.Log;
+
+/**
+ * Fetch in the background the series of a study that are not opened yet.
+ *
+ * When a user opens a series, the other series of the KOS are queued in the KOS order. The most recently opened
+ * study goes first. A limited number of prefetches run at the same time, and their bandwidth is limited by
+ * PacsCache : series requested by users are never slowed down by prefetches and go ahead of them.
+ */
+@Singleton
+public class SeriesPrefetcher {
+	private static class PrefetchTask {
+		final String drimboxSourceURL;
+		final String accessToken;
+		final String studyUID;
+		final String seriesUID;
+		final String sopInstanceUID;
+		// Tasks of the most recently opened study go first
+		final long studyPriority;
+		// Then tasks are run in the KOS order
+		final int kosIndex;
+
+		PrefetchTask(String drimboxSourceURL, String accessToken, String studyUID, String seriesUID,
+					 String sopInstanceUID, long studyPriority, int kosIndex) {
+			this.drimboxSourceURL = drimboxSourceURL;
+			this.accessToken = accessToken;
+			this.studyUID = studyUID;
+			this.seriesUID = seriesUID;
+			this.sopInstanceUID = sopInstanceUID;
+			this.studyPriority = studyPriority;
+			this.kosIndex = kosIndex;
+		}
+
+		String getKey() { return studyUID + "/" + seriesUID; }
+	}
+
+	@ConfigProperty(name = "cache.prefetch.enabled", defaultValue = "true")
+	boolean enabled;
+
+	// Maximum number of series prefetched at the same time on this node
+	@ConfigProperty(name = "cache.prefetch.maxConcurrent", defaultValue = "2")
+	int maxConcurrent;
+
+	// Maximum number of series waiting to be prefetched, the series of new studies are dropped above
+	@ConfigProperty(name = "cache.prefetch.maxQueued", defaultValue = "200")
+	int maxQueued;
+
+	private final PacsCache pacsCache;
+
+	// All fields below are guarded by this
+	private final PriorityQueue<PrefetchTask> queue = new PriorityQueue<>(
+			Comparator.comparingLong((PrefetchTask t) -> -t.studyPriority).thenComparingInt(t -> t.kosIndex));
+	// Queued tasks by study/series
+	private final Map<String, PrefetchTask> queuedTasks = new HashMap<>();
+	private long nextStudyPriority = 0;
+	private int running = 0;
+
+	@Inject
+	public SeriesPrefetcher(PacsCache pacsCache) {
+		this.pacsCache = pacsCache;
+	}
+
+	/**
+	 * Queue all the series of the KOS but the one that is opened
+	 *
+	 * @param kos KOS of the study
+	 * @param openedSeriesUID Series opened by the user, it is fetched right away by the caller
+	 * @param accessToken PCS access token used to fetch the series
+	 * @param sopInstanceUID SOP instance UID of the KOS
+	 */
+	public void prefetchStudy(KOSFile kos, String openedSeriesUID, String accessToken, String sopInstanceUID) {
+		if (!enabled)
+			return;
+
+		synchronized (this) {
+			final long studyPriority = nextStudyPriority++;
+			int kosIndex = 0;
+
+			for (Map.Entry<String, KOSFile.SeriesInfo> series : kos.getSeriesInfo().entrySet()) {
+				kosIndex++;
+				if (series.getKey().equals(openedSeriesUID))
+					continue;
+
+				String drimboxSourceURL;
+				try {
+					drimboxSourceURL = series.getValue().getDrimboxSourceURL();
+				} catch (MalformedURLException e) {
+					Log.warn("[PREFETCH] Invalid retrieve URL for series " + series.getKey());
+					continue;
+				}
+
+				PrefetchTask task = new PrefetchTask(drimboxSourceURL, accessToken, kos.getStudyUID(),
+						series.getKey(), sopInstanceUID, studyPriority, kosIndex);
+
+				// Already queued : the study was opened again, move its series ahead
+				PrefetchTask queued = queuedTasks.remove(task.getKey());
+				if (queued != null) {
+					queue.remove(queued);
+				} else if (queue.size() >= maxQueued) {
+					Log.warn("[PREFETCH] Queue is full, series " + series.getKey() + " will not be prefetched");
+					continue;
+				}
+
+				queue.add(task);
+				queuedTasks.put(task.getKey(), task);
+			}
+		}
+
+		schedule();
+	}
+
+	/**
+	 * Start queued tasks while there is room for them
+	 */
+	private void schedule() {
+		while (true) {
+			PrefetchTask task;
+			synchronized (this) {
+				if (running >= maxConcurrent || queue.isEmpty())
+					return;
+
+				task = queue.poll();
+				queuedTasks.remove(task.getKey());
+				running++;
+			}
+
+			Log.info(String.format("[PREFETCH] Prefetching %s / %s", task.studyUID, task.seriesUID));
+			// Nothing is done if a user already fetched it in the meantime
+			pacsCache.prefetchEntry(task.drimboxSourceURL, task.accessToken, task.studyUID, task.seriesUID, task.sopInstanceUID)
+					.onComplete(result -> {
+						if (result.failed()) {
+							Log.warn(String.format("[PREFETCH] Can't prefetch %s / %s : %s", task.studyUID,
+									task.seriesUID, result.cause().getMessage()));
+						}
+
+						synchronized (this) {
+							running--;
+						}
+						schedule();
+					});
+		}
+	}
+
+	/**
+	 * @return Number of series waiting to be prefetched
+	 */
+	public synchronized int getQueuedCount() {
+		return queue.size();
+	}
+}
@@ -27,13 +27,11 @@
 
 package com.bcom.drimbox.pacs;
 
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.StringJoiner;
 
+import jakarta.inject.Inject;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.QueryParam;
 
@@ -41,9 +39,15 @@ import org.dcm4che3.data.UID;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 
 import com.bcom.drimbox.api.DRIMboxConsoAPI;
+import com.bcom.drimbox.utils.MultipartStreamParser;
 import com.bcom.drimbox.utils.PrefixConstants;
+import com.bcom.drimbox.utils.SharedWebClient;
 
 import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.core.buffer.Buffer;
+import io.vertx.mutiny.ext.web.client.HttpResponse;
 
 @Path("/api")
 public class StowRs {
@@ -57,80 +61,69 @@ public class StowRs {
 
 	// Boundary for multipart request
 	private static final String BOUNDARY = "myBoundary";
+	// Delimiter and headers before each instance sent to the Pacs, the first CRLF ends the previous part
+	private static final String PART_HEADER = "\r\n--" + BOUNDARY + "\r\nContent-Type: application/dicom\r\n\r\n";
+	private static final String CLOSE_DELIMITER = "\r\n--" + BOUNDARY + "--\r\n";
 
-	public byte[] rawMessage;
+	@Inject
+	SharedWebClient webClient;
 
 	private String getStowUrl() {
 		return baseUrl + "/" + stowSuffix;
 	}
 	/**
-	 * 
+	 * Retrieve the series from the source drimbox and send it to the PACS. It returns as soon as the request to the
+	 * source drimbox is sent, the result is logged.
+	 *
 	 * @param studyUID for the study to stow
 	 * @param serieUID if present to only stow this serie
-	 * @throws Exception
 	 */
 	@Path("/stow/{drimboxSourceURL}")
-	public void stow(String drimboxSourceURL, @QueryParam("studyUID") String studyUID, @QueryParam("serieUID") String serieUID) throws Exception {
-
-		try {
-			// Map of transfersStyntaxes and q paramaters associated
-			Map<String, String> transferSyntaxes = Map.of(
-					UID.JPEGLSLossless, "0.9",
-					UID.JPEGLosslessSV1, "0.8",
-					UID.JPEGBaseline8Bit, "0.7",
-					UID.JPEGExtended12Bit, "0.6",
-					UID.JPEG2000, "0.6",
-					UID.ExplicitVRLittleEndian, "0.5",
-					UID.MPEG4HP41, "0.4",
-					UID.MPEG2MPML, "0.3",
-					UID.MPEG2MPHL, "0.3",
-					UID.MPEG4HP41BD, "0.3");
-			// Db source URL to ask study 
-			String serviceURL = DRIMboxConsoAPI.HTTP_PROTOCOL + drimboxSourceURL + "/" + PrefixConstants.DRIMBOX_PREFIX + "/" + PrefixConstants.STUDIES_PREFIX + "/" + studyUID + "/series/" + serieUID;
-			final URL url = new URL(serviceURL);
-			final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-		    for (Map.Entry<String, String> entry : transferSyntaxes.entrySet()) {
-				connection.addRequestProperty("Accept", "multipart/related; type=\"application/dicom\";transfer-syntax="+entry.getKey()+";q="+entry.getValue()+";boundary="+ BOUNDARY);
-		    }
-
-			if (connection.getResponseCode() == 200) {
-				// Retrieve multipart of serie asked to Db source
-				rawMessage = connection.getInputStream().readAllBytes();
-			}
+	public void stow(String drimboxSourceURL, @QueryParam("studyUID") String studyUID, @QueryParam("serieUID") String serieUID) {
+		// Map of transfersStyntaxes and q paramaters associated
+		Map<String, String> transferSyntaxes = Map.of(
+				UID.JPEGLSLossless, "0.9",
+				UID.JPEGLosslessSV1, "0.8",
+				UID.JPEGBaseline8Bit, "0.7",
+				UID.JPEGExtended12Bit, "0.6",
+				UID.JPEG2000, "0.6",
+				UID.ExplicitVRLittleEndian, "0.5",
+				UID.MPEG4HP41, "0.4",
+				UID.MPEG2MPML, "0.3",
+				UID.MPEG2MPHL, "0.3",
+				UID.MPEG4HP41BD, "0.3");
+		// Db source URL to ask study
+		String serviceURL = DRIMboxConsoAPI.HTTP_PROTOCOL + drimboxSourceURL + "/" + PrefixConstants.DRIMBOX_PREFIX + "/" + PrefixConstants.STUDIES_PREFIX + "/" + studyUID + "/series/" + serieUID;
+		// One Accept header listing all the transfer syntaxes, the source splits it
+		StringJoiner accept = new StringJoiner(", ");
+		for (Map.Entry<String, String> entry : transferSyntaxes.entrySet()) {
+			accept.add("multipart/related; type=\"application/dicom\";transfer-syntax="+entry.getKey()+";q="+entry.getValue()+";boundary="+ BOUNDARY);
 		}
-		catch (Exception e) {
-			throw new RuntimeException(e);
-		}
-		//		}	
-
-
-		// Open connection with Pacs
-		URLConnection urlConnection = new URL(getStowUrl()).openConnection();
-		final HttpURLConnection connection = (HttpURLConnection) urlConnection;
-
-		// Initialize header parameters
-		connection.setDoOutput(true);
-		connection.setDoInput(true);
-		connection.setRequestMethod("POST");
-		Map<String, String> requestProperties = new HashMap<>();
-		requestProperties.put("Content-Type",
-				"multipart/related;type=\"application/dicom\";boundary=" + BOUNDARY);
-		requestProperties.put("Accept", "application/dicom+json");
-		requestProperties.put("Connection", "keep-alive");
-		requestProperties.forEach(connection::setRequestProperty);
-		try (OutputStream out = connection.getOutputStream()) {
-			// Write series retrieved from Db source
-			out.write(rawMessage);
-
-			out.flush();
-			Log.info(connection.getResponseMessage());
-			Log.info(connection.getErrorStream());
-			Log.info(connection.getResponseCode());
-			connection.connect();
-
-			connection.disconnect();
 
-		}
+		webClient.stream(serviceURL, Map.of("Accept", accept.toString()))
+				.onItem().transformToUni(sourceResponse -> {
+					String sourceBoundary = MultipartStreamParser.getBoundary(sourceResponse.getHeader("Content-Type"));
+					if (sourceResponse.statusCode() != 200 || sourceBoundary == null) {
+						sourceResponse.request().reset();
+						return Uni.createFrom().<HttpResponse<Buffer>>failure(new IllegalStateException("DRIMbox source answered with code " + sourceResponse.statusCode()));
+					}
+
+					// Each instance is sent to the Pacs as soon as it is received from Db source
+					Multi<Buffer> body = new MultipartStreamParser(sourceBoundary).parse(sourceResponse.toMulti())
+							.onItem().transformToIterable(part -> List.of(Buffer.buffer(PART_HEADER), part))
+							.onCompletion().continueWith(Buffer.buffer(CLOSE_DELIMITER))
+							.onCancellation().invoke(() -> sourceResponse.request().reset());
+
+					return webClient.sendStream(webClient.post(getStowUrl())
+							.putHeader("Content-Type", "multipart/related;type=\"application/dicom\";boundary=" + BOUNDARY)
+							.putHeader("Accept", "application/dicom+json"), body);
+				})
+				.subscribe().with(response -> {
+					Log.info(response.statusMessage());
+					Log.info(response.statusCode());
+					if (response.statusCode() >= 300)
+						Log.info(response.bodyAsString());
+				}, e -> Log.error(String.format("Stow of %s / %s failed : %s", studyUID, serieUID, e.getMessage())));
 	}
 
 }
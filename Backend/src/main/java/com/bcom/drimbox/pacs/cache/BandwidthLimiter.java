@@ -0,0 +1,90 @@
+/*
+ *  BandwidthLimiter.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs.cache;
+
+/**
+ * Token bucket limiting the bandwidth used to download series.
+ *
+ * Low priority downloads (prefetch) wait for tokens before going on, high priority downloads (requested by a
+ * user) are never slowed down but still consume tokens. Prefetch therefore only uses the bandwidth left by users.
+ */
+public class BandwidthLimiter {
+	// 0 if there is no limit
+	private final long bytesPerSecond;
+
+	// Available bytes, negative if high priority downloads went over the limit
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+
+	/**
+	 * @param bytesPerSecond Maximum bandwidth, 0 for no limit
+	 */
+	public BandwidthLimiter(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.tokens = bytesPerSecond;
+	}
+
+	public boolean isLimited() {
+		return bytesPerSecond > 0;
+	}
+
+	/**
+	 * Record bytes received by a high priority download. It never waits.
+	 */
+	public synchronized void consume(long bytes) {
+		if (!isLimited())
+			return;
+
+		refill();
+		tokens -= bytes;
+	}
+
+	/**
+	 * Record bytes received by a low priority download. It doesn't wait : the download is expected to pause for
+	 * the returned time before receiving more.
+	 *
+	 * @return Time (in ms) until the bandwidth is available, 0 if the download can go on right away
+	 */
+	public synchronized long reserve(long bytes) {
+		if (!isLimited())
+			return 0;
+
+		refill();
+		// Time needed to get back to 0
+		long waitMs = tokens < 0 ? Math.max(1, (long) (-tokens * 1000 / bytesPerSecond)) : 0;
+		tokens -= bytes;
+		return waitMs;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) / 1e9 * bytesPerSecond);
+		lastRefill = now;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ *  CacheStatistics.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+
+/**
+ * Counters of the DICOM cache. They are updated by the cache and exposed through the conso API so the heap
+ * of a node can be sized according to the real workload.
+ */
+public class CacheStatistics {
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong joinedFetches = new AtomicLong();
+	private final AtomicLong prefetches = new AtomicLong();
+	private final AtomicLong priorityFetches = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong evictedBytes = new AtomicLong();
+	private final AtomicLong currentBytes = new AtomicLong();
+	private final AtomicLong originalBytes = new AtomicLong();
+	private final AtomicLong seriesCount = new AtomicLong();
+
+	public void recordHit() { hits.incrementAndGet(); }
+
+	public void recordMiss() { misses.incrementAndGet(); }
+
+	public void recordDiskHit() { diskHits.incrementAndGet(); }
+
+	/**
+	 * Record a request that joined the fetch of a series already running instead of starting a new one
+	 */
+	public void recordJoinedFetch() { joinedFetches.incrementAndGet(); }
+
+	/**
+	 * Record a series fetched in the background before a user asks for it
+	 */
+	public void recordPrefetch() { prefetches.incrementAndGet(); }
+
+	/**
+	 * Record a file requested on its own because a viewer was waiting for it
+	 */
+	public void recordPriorityFetch() { priorityFetches.incrementAndGet(); }
+
+	/**
+	 * Record the eviction of a series
+	 * @param sizeBytes Size of the evicted series
+	 */
+	public void recordEviction(long sizeBytes) {
+		evictions.incrementAndGet();
+		evictedBytes.addAndGet(sizeBytes);
+	}
+
+	public void addBytes(long delta) { currentBytes.addAndGet(delta); }
+
+	/**
+	 * @param delta Variation of the size of the files once inflated
+	 */
+	public void addOriginalBytes(long delta) { originalBytes.addAndGet(delta); }
+
+	public void addSeries(long delta) { seriesCount.addAndGet(delta); }
+
+	public long getHits() { return hits.get(); }
+
+	public long getMisses() { return misses.get(); }
+
+	public long getDiskHits() { return diskHits.get(); }
+
+	public long getJoinedFetches() { return joinedFetches.get(); }
+
+	public long getPrefetches() { return prefetches.get(); }
+
+	public long getPriorityFetches() { return priorityFetches.get(); }
+
+	public long getEvictions() { return evictions.get(); }
+
+	public long getEvictedBytes() { return evictedBytes.get(); }
+
+	public long getCurrentBytes() { return currentBytes.get(); }
+
+	public long getOriginalBytes() { return originalBytes.get(); }
+
+	/**
+	 * @return Size of the files once inflated over the memory they use, 1 if nothing is compressed
+	 */
+	public double getCompressionRatio() {
+		long current = getCurrentBytes();
+		return current <= 0 ? 1 : (double) getOriginalBytes() / current;
+	}
+
+	public long getSeriesCount() { return seriesCount.get(); }
+
+	/**
+	 * @return Ratio of hits (memory or disk) over all lookups, 0 if the cache was never queried
+	 */
+	public double getHitRatio() {
+		long total = getHits() + getDiskHits() + getMisses();
+		return total == 0 ? 0 : (double) (getHits() + getDiskHits()) / total;
+	}
+
+	/**
+	 * JSON representation of the counters
+	 * @param maxBytes Configured byte budget of the cache
+	 * @param diskBytes Size of the disk tier
+	 */
+	public JsonObject toJson(long maxBytes, long diskBytes) {
+		return Json.createObjectBuilder()
+				.add("hits", getHits())
+				.add("diskHits", getDiskHits())
+				.add("misses", getMisses())
+				.add("joinedFetches", getJoinedFetches())
+				.add("prefetches", getPrefetches())
+				.add("priorityFetches", getPriorityFetches())
+				.add("hitRatio", getHitRatio())
+				.add("evictions", getEvictions())
+				.add("evictedBytes", getEvictedBytes())
+				.add("currentBytes", getCurrentBytes())
+				.add("originalBytes", getOriginalBytes())
+				.add("compressionRatio", getCompressionRatio())
+				.add("maxBytes", maxBytes)
+				.add("series", getSeriesCount())
+				.add("diskBytes", diskBytes)
+				.build();
+	}
+}
@@ -0,0 +1,267 @@
+/*
+ *  CachedFile.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * DICOM file held by the cache, on the heap or in off-heap memory.
+ *
+ * Files are reference counted. The cache owns one reference and releases it when the file leaves the cache, and
+ * each reader gets its own reference that it must release when it is done with the file. Off-heap memory is given
+ * back as soon as the last reference is released.
+ *
+ * A file may be stored compressed with deflate, it must then be inflated with {@link #inflate(boolean)} before
+ * it is read.
+ */
+public class CachedFile {
+	// A compressed file is only kept if it saves at least 1/MIN_GAIN_RATIO of the size
+	private static final int MIN_GAIN_RATIO = 10;
+
+	private final ByteBuf content;
+	// Size of the file once inflated, -1 if it is not compressed
+	private final int originalSize;
+
+	private CachedFile(ByteBuf content) {
+		this(content, -1);
+	}
+
+	private CachedFile(ByteBuf content, int originalSize) {
+		this.content = content;
+		this.originalSize = originalSize;
+	}
+
+	/**
+	 * Wrap a heap array, without copy
+	 */
+	public static CachedFile wrap(byte[] file) {
+		return new CachedFile(Unpooled.wrappedBuffer(file));
+	}
+
+	/**
+	 * Wrap a NIO buffer (e.g. a mapped file), without copy. Releasing the file does not free the buffer.
+	 */
+	public static CachedFile wrap(ByteBuffer file) {
+		return new CachedFile(Unpooled.wrappedBuffer(file));
+	}
+
+	/**
+	 * Copy the readable bytes of a received part, its indexes are not modified
+	 *
+	 * @param offHeap Store the copy in pooled direct memory instead of the heap
+	 */
+	public static CachedFile copyOf(ByteBuf part, boolean offHeap) {
+		final int size = part.readableBytes();
+		ByteBuf content = offHeap
+				? PooledByteBufAllocator.DEFAULT.directBuffer(size, size)
+				: Unpooled.buffer(size, size);
+		content.writeBytes(part, part.readerIndex(), size);
+		return new CachedFile(content);
+	}
+
+	/**
+	 * Compress the readable bytes of a received part with deflate
+	 *
+	 * @param offHeap Store the compressed file in pooled direct memory instead of the heap
+	 * @param level Deflate level, from 1 (fastest) to 9 (smallest)
+	 * @return The compressed file, or null if compression does not save enough memory to be worth it
+	 */
+	public static CachedFile compress(ByteBuf part, boolean offHeap, int level) {
+		final int size = part.readableBytes();
+		final int maxLength = size - size / MIN_GAIN_RATIO;
+		// Deflate output goes to pooled direct memory, only its compressed length is copied in the stored file
+		ByteBuf scratch = PooledByteBufAllocator.DEFAULT.directBuffer(maxLength, maxLength);
+
+		Deflater deflater = new Deflater(level);
+		try {
+			ByteBuffer output = scratch.nioBuffer(0, maxLength);
+			// A part received in several chunks is deflated chunk by chunk, without merging them first
+			for (ByteBuffer input : part.nioBuffers()) {
+				deflater.setInput(input);
+				while (!deflater.needsInput()) {
+					if (!output.hasRemaining())
+						return null;
+					deflater.deflate(output);
+				}
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (!output.hasRemaining())
+					return null;
+				deflater.deflate(output);
+			}
+
+			final int length = output.position();
+			ByteBuf content = offHeap
+					? PooledByteBufAllocator.DEFAULT.directBuffer(length, length)
+					: Unpooled.buffer(length, length);
+			content.writeBytes(scratch, 0, length);
+			return new CachedFile(content, size);
+		} finally {
+			deflater.end();
+			scratch.release();
+		}
+	}
+
+	/**
+	 * Concatenate files without copy. The new file takes over the references of the parts : they are released
+	 * when it is released.
+	 */
+	public static CachedFile concat(List<CachedFile> parts) {
+		ByteBuf[] buffers = parts.stream().map(part -> part.content).toArray(ByteBuf[]::new);
+		return new CachedFile(Unpooled.wrappedBuffer(buffers));
+	}
+
+	public int size() {
+		return content.readableBytes();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	public boolean isOffHeap() {
+		return content.isDirect();
+	}
+
+	public boolean isCompressed() {
+		return originalSize >= 0;
+	}
+
+	/**
+	 * @return Size of the file once inflated
+	 */
+	public int originalSize() {
+		return isCompressed() ? originalSize : size();
+	}
+
+	/**
+	 * Inflate a compressed file. The compressed file is not released.
+	 *
+	 * @param offHeap Store the inflated file in pooled direct memory instead of the heap
+	 * @return New reference on the inflated file, or on this file if it is not compressed
+	 */
+	public CachedFile inflate(boolean offHeap) throws DataFormatException {
+		if (!isCompressed())
+			return retain();
+
+		ByteBuf target = offHeap
+				? PooledByteBufAllocator.DEFAULT.directBuffer(originalSize, originalSize)
+				: Unpooled.buffer(originalSize, originalSize);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(content.nioBuffer());
+			ByteBuffer output = target.nioBuffer(0, originalSize);
+			while (output.hasRemaining()) {
+				if (inflater.inflate(output) == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+					throw new DataFormatException("Compressed file is truncated");
+			}
+			target.writerIndex(originalSize);
+			return new CachedFile(target);
+		} catch (DataFormatException e) {
+			target.release();
+			throw e;
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Take a new reference on the file
+	 */
+	public CachedFile retain() {
+		content.retain();
+		return this;
+	}
+
+	/**
+	 * Release a reference on the file
+	 *
+	 * @return True if it was the last reference and the memory was freed
+	 */
+	public boolean release() {
+		return content.release();
+	}
+
+	/**
+	 * Part of the file, without copy. The part holds its own reference on the file, which is released when the
+	 * part is released.
+	 *
+	 * @param index Offset of the part in the file
+	 * @param length Length of the part
+	 */
+	public CachedFile slice(int index, int length) {
+		return new CachedFile(content.retainedSlice(content.readerIndex() + index, length));
+	}
+
+	/**
+	 * @return View on the content. It is only valid while a reference is held on the file.
+	 */
+	public ByteBuf content() {
+		return content.duplicate();
+	}
+
+	/**
+	 * @return Read only NIO view on the content. It is only valid while a reference is held on the file.
+	 */
+	public ByteBuffer nioBuffer() {
+		return content.nioBuffer().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return Stream over the content, without copy. It is only valid while a reference is held on the file.
+	 */
+	public InputStream openStream() {
+		return new ByteBufInputStream(content.duplicate());
+	}
+
+	/**
+	 * @return Copy of the content on the heap
+	 */
+	public byte[] getBytes() {
+		return ByteBufUtil.getBytes(content);
+	}
+
+	public void writeTo(OutputStream output) throws IOException {
+		content.getBytes(content.readerIndex(), output, content.readableBytes());
+	}
+}
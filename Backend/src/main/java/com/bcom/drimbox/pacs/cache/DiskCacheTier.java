@@ -0,0 +1,787 @@
+/*
+ *  DiskCacheTier.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.quarkus.logging.Log;
+
+/**
+ * Second tier of the DICOM cache, stored on the local disk.
+ *
+ * Series evicted from memory are written in append-only segment files. Each record of a segment is :
+ * <pre>
+ *     [int magic][int key length][key (studyUID/seriesUID/instanceUID)][int payload length][payload]
+ * </pre>
+ * The headers of the instances ({@link InstanceHeader}) follow in a headers record with the key studyUID/seriesUID,
+ * so metadata requests don't have to parse the files. Once all the instances of a series are written, a commit
+ * record with the key studyUID/seriesUID and the number of instances as payload is appended. A series without
+ * commit record (e.g. the node was stopped while writing it) is ignored.
+ * An in-memory index gives the segment and the offset of each instance, and files are read back through a
+ * read-only MappedByteBuffer of the segment so warm series are served without any network access.
+ *
+ * When the tier exceeds its size, the segment whose series were the least recently used is deleted along with
+ * all the series it contains.
+ *
+ * Segments survive restarts. On shutdown the index is saved in a compact index file, and {@link #load()} rebuilds
+ * it on startup from this file, or by scanning the record headers of the segments when the index file doesn't
+ * match them. New series are written in a new segment so the tier can be loaded while it is used.
+ *
+ * Writes (storing, loading, eviction) are serialized on the tier. Reads don't wait for them : they only share a
+ * read lock with the changes of the segment list, so a large series being stored doesn't delay the reads.
+ */
+public class DiskCacheTier {
+	static final int RECORD_MAGIC = 0x44434D31; // "DCM1"
+	static final int COMMIT_MAGIC = 0x44434D43; // "DCMC"
+	static final int HEADERS_MAGIC = 0x44434D48; // "DCMH"
+	static final int INDEX_MAGIC = 0x44495832; // "DIX2"
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String INDEX_FILE = "index.dat";
+
+	/**
+	 * Position of an instance in a segment
+	 */
+	static class Location {
+		final int segmentID;
+		final long offset;
+		final int length;
+
+		Location(int segmentID, long offset, int length) {
+			this.segmentID = segmentID;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Instances of a series stored on disk
+	 */
+	static class SeriesIndex {
+		// Instance UID => location
+		final Map<String, Location> instances = new HashMap<>();
+		// Headers record of the series, null if the series was stored without it
+		Location headers = null;
+		volatile long lastAccess = System.currentTimeMillis();
+	}
+
+	static class Segment {
+		final int id;
+		final Path path;
+		final FileChannel channel;
+		// Only grows while the segment is written, readers map at most this size
+		volatile long size = 0;
+		// Keys of the series that have at least one instance in this segment
+		final Set<String> seriesKeys = new HashSet<>();
+		// Read only mapping of the segment, remapped when the segment grows
+		volatile MappedByteBuffer mapped;
+
+		Segment(int id, Path path) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.size = channel.size();
+		}
+	}
+
+	private final Path directory;
+	private final long maxBytes;
+	private final long segmentSize;
+
+	// studyUID/seriesUID => index
+	private final Map<String, SeriesIndex> seriesIndex = new ConcurrentHashMap<>();
+	private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+	private Segment currentSegment;
+	private volatile long totalBytes = 0;
+	// Taken by the reads, and for writing while segments are added or deleted
+	private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+
+	// Segments written before the start of the node, not loaded yet
+	private final List<Integer> previousSegments = new ArrayList<>();
+
+	/**
+	 * @param directory Directory of the segment files. Existing segments are kept and must be loaded with
+	 *                  {@link #load()}.
+	 * @param maxBytes Maximum size of all the segments
+	 * @param segmentSize Size after which a new segment is started
+	 */
+	public DiskCacheTier(Path directory, long maxBytes, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		// A segment is mapped in a single MappedByteBuffer so it must stay under 2GB
+		this.segmentSize = Math.min(segmentSize, Integer.MAX_VALUE / 2);
+
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path path : stream) {
+				Integer id = getSegmentID(path);
+				if (id != null)
+					previousSegments.add(id);
+			}
+		}
+		Collections.sort(previousSegments);
+
+		int lastID = previousSegments.isEmpty() ? 0 : previousSegments.get(previousSegments.size() - 1);
+		currentSegment = openSegment(lastID + 1);
+	}
+
+	private static String getKey(String studyUID, String seriesUID) { return studyUID + "/" + seriesUID; }
+
+	private Path getSegmentPath(int id) {
+		return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+	}
+
+	private static Integer getSegmentID(Path path) {
+		String name = path.getFileName().toString();
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return null;
+		}
+	}
+
+	private Segment openSegment(int id) throws IOException {
+		Segment segment = new Segment(id, getSegmentPath(id));
+		segmentsLock.writeLock().lock();
+		try {
+			segments.put(id, segment);
+		} finally {
+			segmentsLock.writeLock().unlock();
+		}
+		return segment;
+	}
+
+	/**
+	 * Load the segments written before the start of the node. Series become readable as soon as their segments
+	 * are loaded, so this can run in the background while the tier is used.
+	 *
+	 * @return Number of series loaded
+	 */
+	public int load() throws IOException {
+		Map<Integer, Long> indexedSizes = new HashMap<>();
+		Map<String, SeriesIndex> indexed = readIndexFile(indexedSizes);
+		// The index file is only valid for the segments it was written with, it is rewritten on close
+		Files.deleteIfExists(directory.resolve(INDEX_FILE));
+
+		boolean indexValid = !indexed.isEmpty() || !indexedSizes.isEmpty();
+		for (int id : previousSegments) {
+			Long size = indexedSizes.get(id);
+			if (size == null || size != Files.size(getSegmentPath(id))) {
+				indexValid = false;
+				break;
+			}
+		}
+
+		int count;
+		if (indexValid) {
+			synchronized (this) {
+				for (int id : previousSegments) {
+					if (indexedSizes.containsKey(id))
+						addPreviousSegment(id);
+				}
+				count = publishSeries(indexed, new HashMap<>());
+			}
+			Log.info(String.format("[DISK CACHE] Loaded %d series from the index", count));
+		} else {
+			count = scanSegments();
+			Log.info(String.format("[DISK CACHE] Loaded %d series from %d segments", count, previousSegments.size()));
+		}
+
+		synchronized (this) {
+			previousSegments.clear();
+			evictIfNeeded();
+		}
+		return count;
+	}
+
+	/**
+	 * Rebuild the index from the record headers of the segments. Payloads are skipped.
+	 */
+	private int scanSegments() throws IOException {
+		// Instances of series whose commit record was not read yet. A series may be spread over several segments.
+		Map<String, SeriesIndex> pending = new HashMap<>();
+		// Series published by the scan, a later version of a series replaces them
+		Map<String, SeriesIndex> published = new HashMap<>();
+		int count = 0;
+
+		for (int id : previousSegments) {
+			Map<String, SeriesIndex> committed = new HashMap<>();
+			Segment segment;
+			synchronized (this) {
+				segment = addPreviousSegment(id);
+			}
+
+			long validSize = scanSegment(segment, pending, committed);
+			if (validSize < segment.size) {
+				Log.warn(String.format("[DISK CACHE] %s is truncated after %d bytes", segment.path.getFileName(), validSize));
+			}
+
+			long lastModified = Files.getLastModifiedTime(segment.path).toMillis();
+			synchronized (this) {
+				for (SeriesIndex index : committed.values()) {
+					index.lastAccess = lastModified;
+				}
+				count += publishSeries(committed, published);
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Read the record headers of a segment.
+	 *
+	 * @return Offset of the end of the last valid record
+	 */
+	private long scanSegment(Segment segment, Map<String, SeriesIndex> pending, Map<String, SeriesIndex> committed) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES);
+		long position = 0;
+
+		while (position + header.capacity() <= segment.size) {
+			header.clear();
+			if (!readFully(segment.channel, header, position))
+				return position;
+			header.flip();
+
+			final int magic = header.getInt();
+			final int keyLength = header.getInt();
+			if ((magic != RECORD_MAGIC && magic != HEADERS_MAGIC && magic != COMMIT_MAGIC) || keyLength <= 0 || keyLength > 1024)
+				return position;
+
+			ByteBuffer key = ByteBuffer.allocate(keyLength + Integer.BYTES);
+			if (!readFully(segment.channel, key, position + header.capacity()))
+				return position;
+			key.flip();
+			String recordKey = StandardCharsets.UTF_8.decode(key.slice().limit(keyLength)).toString();
+			final int payloadLength = key.getInt(keyLength);
+
+			final long payloadStart = position + header.capacity() + key.capacity();
+			if (payloadLength < 0 || payloadStart + payloadLength > segment.size)
+				return position;
+
+			if (magic == RECORD_MAGIC) {
+				int separator = recordKey.lastIndexOf('/');
+				if (separator < 0)
+					return position;
+				pending.computeIfAbsent(recordKey.substring(0, separator), k -> new SeriesIndex())
+						.instances.put(recordKey.substring(separator + 1), new Location(segment.id, payloadStart, payloadLength));
+			} else if (magic == HEADERS_MAGIC) {
+				pending.computeIfAbsent(recordKey, k -> new SeriesIndex()).headers = new Location(segment.id, payloadStart, payloadLength);
+			} else {
+				ByteBuffer instanceCount = ByteBuffer.allocate(Integer.BYTES);
+				if (payloadLength != Integer.BYTES || !readFully(segment.channel, instanceCount, payloadStart))
+					return position;
+				SeriesIndex index = pending.remove(recordKey);
+				if (index != null && index.instances.size() == instanceCount.getInt(0))
+					committed.put(recordKey, index);
+			}
+
+			position = payloadStart + payloadLength;
+		}
+
+		return position;
+	}
+
+	private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				return false;
+		}
+		return true;
+	}
+
+	private Segment addPreviousSegment(int id) throws IOException {
+		Segment segment = openSegment(id);
+		totalBytes += segment.size;
+		return segment;
+	}
+
+	/**
+	 * Make loaded series readable. A series stored since the start of the node is not replaced.
+	 *
+	 * @param loaded Series to publish
+	 * @param published Series already published by the load, that can be replaced by a later version
+	 */
+	private int publishSeries(Map<String, SeriesIndex> loaded, Map<String, SeriesIndex> published) {
+		int count = 0;
+		for (Map.Entry<String, SeriesIndex> entry : loaded.entrySet()) {
+			final String key = entry.getKey();
+			SeriesIndex index = entry.getValue();
+			boolean segmentsPresent = index.instances.values().stream().allMatch(l -> segments.containsKey(l.segmentID));
+			SeriesIndex current = seriesIndex.get(key);
+			if (!segmentsPresent || (current != null && current != published.get(key)))
+				continue;
+
+			seriesIndex.put(key, index);
+			published.put(key, index);
+			for (Location location : index.instances.values()) {
+				segments.get(location.segmentID).seriesKeys.add(key);
+			}
+			if (current == null)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Read the index file saved on close.
+	 *
+	 * @param segmentSizes Filled with the size of each segment when the index was written
+	 * @return Series of the index, empty if there is no valid index file
+	 */
+	private Map<String, SeriesIndex> readIndexFile(Map<Integer, Long> segmentSizes) {
+		Path path = directory.resolve(INDEX_FILE);
+		Map<String, SeriesIndex> indexed = new HashMap<>();
+		if (!Files.exists(path))
+			return indexed;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != INDEX_MAGIC)
+				throw new IOException("bad magic number");
+
+			final int segmentCount = in.readInt();
+			for (int i = 0; i < segmentCount; i++) {
+				segmentSizes.put(in.readInt(), in.readLong());
+			}
+
+			final int seriesCount = in.readInt();
+			for (int i = 0; i < seriesCount; i++) {
+				String key = in.readUTF();
+				SeriesIndex index = new SeriesIndex();
+				index.lastAccess = in.readLong();
+				final int instanceCount = in.readInt();
+				for (int j = 0; j < instanceCount; j++) {
+					String instanceUID = in.readUTF();
+					index.instances.put(instanceUID, new Location(in.readInt(), in.readLong(), in.readInt()));
+				}
+				if (in.readBoolean())
+					index.headers = new Location(in.readInt(), in.readLong(), in.readInt());
+				indexed.put(key, index);
+			}
+		} catch (IOException e) {
+			Log.warn("[DISK CACHE] Ignoring index file : " + e.getMessage());
+			segmentSizes.clear();
+			indexed.clear();
+		}
+
+		return indexed;
+	}
+
+	/**
+	 * Save the index so the next start doesn't have to scan the segments. It is written in a temporary file
+	 * first so an interrupted write never leaves a partial index.
+	 */
+	private void writeIndexFile() throws IOException {
+		Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(INDEX_MAGIC);
+
+			out.writeInt(segments.size());
+			for (Segment segment : segments.values()) {
+				out.writeInt(segment.id);
+				out.writeLong(segment.size);
+			}
+
+			out.writeInt(seriesIndex.size());
+			for (Map.Entry<String, SeriesIndex> entry : seriesIndex.entrySet()) {
+				SeriesIndex index = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeLong(index.lastAccess);
+				out.writeInt(index.instances.size());
+				for (Map.Entry<String, Location> instance : index.instances.entrySet()) {
+					Location location = instance.getValue();
+					out.writeUTF(instance.getKey());
+					out.writeInt(location.segmentID);
+					out.writeLong(location.offset);
+					out.writeInt(location.length);
+				}
+				out.writeBoolean(index.headers != null);
+				if (index.headers != null) {
+					out.writeInt(index.headers.segmentID);
+					out.writeLong(index.headers.offset);
+					out.writeInt(index.headers.length);
+				}
+			}
+		}
+		Files.move(tmp, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return True if all the instances of the series are stored on disk
+	 */
+	public boolean containsSeries(String studyUID, String seriesUID) {
+		return seriesIndex.containsKey(getKey(studyUID, seriesUID));
+	}
+
+	/**
+	 * @return Instance UIDs of the series, empty if the series is not on disk
+	 */
+	public Set<String> getInstanceUIDs(String studyUID, String seriesUID) {
+		SeriesIndex index = seriesIndex.get(getKey(studyUID, seriesUID));
+		if (index == null)
+			return Collections.emptySet();
+
+		// The index is never modified once published
+		return new HashSet<>(index.instances.keySet());
+	}
+
+	/**
+	 * Write a complete series. The series becomes readable only once all its instances are written. If the write
+	 * fails, what was written of the series is removed from the segments.
+	 *
+	 * @param studyUID Study UID
+	 * @param seriesUID Series UID
+	 * @param files Instance UID => DICOM file
+	 * @param headers Instance UID => header of the file
+	 */
+	public synchronized void storeSeries(String studyUID, String seriesUID, Map<String, ByteBuffer> files, Map<String, InstanceHeader> headers) throws IOException {
+		final String key = getKey(studyUID, seriesUID);
+		SeriesIndex index = new SeriesIndex();
+
+		// Where the series starts, to remove what was written if it fails
+		final Segment firstSegment = currentSegment;
+		final long firstSegmentSize = firstSegment.size;
+		try {
+			for (Map.Entry<String, ByteBuffer> file : files.entrySet()) {
+				if (currentSegment.size >= segmentSize) {
+					currentSegment = openSegment(currentSegment.id + 1);
+				}
+
+				ByteBuffer payload = file.getValue().duplicate();
+				final int payloadLength = payload.remaining();
+				long payloadStart = writeRecord(RECORD_MAGIC, key + "/" + file.getKey(), payload);
+
+				index.instances.put(file.getKey(), new Location(currentSegment.id, payloadStart, payloadLength));
+				currentSegment.seriesKeys.add(key);
+			}
+
+			ByteBuffer headersPayload = ByteBuffer.wrap(writeHeaders(headers));
+			final int headersLength = headersPayload.remaining();
+			index.headers = new Location(currentSegment.id, writeRecord(HEADERS_MAGIC, key, headersPayload), headersLength);
+			currentSegment.seriesKeys.add(key);
+
+			ByteBuffer instanceCount = ByteBuffer.allocate(Integer.BYTES).putInt(0, files.size());
+			writeRecord(COMMIT_MAGIC, key, instanceCount);
+		} catch (IOException | RuntimeException e) {
+			try {
+				discardSince(firstSegment, firstSegmentSize);
+			} catch (IOException discardError) {
+				e.addSuppressed(discardError);
+			}
+			throw e;
+		}
+
+		// Replace any previous version of the series
+		seriesIndex.put(key, index);
+		Log.info(String.format("[DISK CACHE] Stored %s (%d instances)", key, files.size()));
+
+		evictIfNeeded();
+	}
+
+	private static byte[] writeHeaders(Map<String, InstanceHeader> headers) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(512 * (headers.size() + 1));
+		try (DataOutputStream out = new DataOutputStream(output)) {
+			out.writeInt(headers.size());
+			for (InstanceHeader header : headers.values()) {
+				header.writeTo(out);
+			}
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Append a record to the current segment
+	 *
+	 * @return Offset of the payload in the segment
+	 */
+	private long writeRecord(int magic, String key, ByteBuffer payload) throws IOException {
+		byte[] recordKey = key.getBytes(StandardCharsets.UTF_8);
+		final int payloadLength = payload.remaining();
+
+		ByteBuffer header = ByteBuffer.allocate(3 * Integer.BYTES + recordKey.length);
+		header.putInt(magic).putInt(recordKey.length).put(recordKey).putInt(payloadLength).flip();
+
+		// Written at an explicit position : the records that follow are placed from the size of the segment, even
+		// if this write fails
+		final long recordStart = currentSegment.size;
+		long written = 0;
+		try {
+			while (header.hasRemaining()) {
+				written += currentSegment.channel.write(header, recordStart + written);
+			}
+			while (payload.hasRemaining()) {
+				written += currentSegment.channel.write(payload, recordStart + written);
+			}
+		} finally {
+			// A partial record still takes room on disk
+			currentSegment.size += written;
+			totalBytes += written;
+		}
+
+		return recordStart + header.capacity();
+	}
+
+	/**
+	 * Remove the records written since the given size of a segment : the segments opened after it are deleted and
+	 * it is truncated. If it can't be truncated, writing goes on in a new segment so the partial records stay at
+	 * the end of the segment.
+	 */
+	private void discardSince(Segment segment, long size) throws IOException {
+		List<Segment> opened;
+		segmentsLock.readLock().lock();
+		try {
+			opened = new ArrayList<>(segments.tailMap(segment.id, false).values());
+		} finally {
+			segmentsLock.readLock().unlock();
+		}
+
+		currentSegment = segment;
+		for (Segment next : opened) {
+			deleteSegment(next);
+		}
+
+		try {
+			segment.channel.truncate(size);
+		} catch (IOException e) {
+			try {
+				currentSegment = openSegment(segment.id + 1);
+			} catch (IOException openError) {
+				e.addSuppressed(openError);
+			}
+			throw e;
+		}
+		// The mapping may cover the removed records
+		segment.mapped = null;
+		totalBytes -= segment.size - size;
+		segment.size = size;
+	}
+
+	/**
+	 * Read an instance from disk. The returned buffer is a read only view on the mapped segment, the file content
+	 * is not copied in memory.
+	 *
+	 * @return The DICOM file or null if it is not on disk
+	 */
+	public ByteBuffer read(String studyUID, String seriesUID, String instanceUID) throws IOException {
+		SeriesIndex index = seriesIndex.get(getKey(studyUID, seriesUID));
+		if (index == null)
+			return null;
+
+		Location location = index.instances.get(instanceUID);
+		if (location == null)
+			return null;
+
+		index.lastAccess = System.currentTimeMillis();
+		segmentsLock.readLock().lock();
+		try {
+			return map(location);
+		} finally {
+			segmentsLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Read the headers of the instances of a series, without parsing its files
+	 *
+	 * @return Instance UID => header, or null if the series is not on disk or was stored without its headers
+	 */
+	public Map<String, InstanceHeader> readHeaders(String studyUID, String seriesUID) throws IOException {
+		SeriesIndex index = seriesIndex.get(getKey(studyUID, seriesUID));
+		if (index == null || index.headers == null)
+			return null;
+
+		ByteBuffer payload;
+		segmentsLock.readLock().lock();
+		try {
+			payload = map(index.headers);
+		} finally {
+			segmentsLock.readLock().unlock();
+		}
+		if (payload == null)
+			return null;
+
+		try (DataInputStream in = new DataInputStream(new ByteBufInputStream(Unpooled.wrappedBuffer(payload)))) {
+			final int count = in.readInt();
+			Map<String, InstanceHeader> headers = new HashMap<>(count * 2);
+			for (int i = 0; i < count; i++) {
+				InstanceHeader header = InstanceHeader.readFrom(in);
+				headers.put(header.getSOPInstanceUID(), header);
+			}
+			return headers;
+		}
+	}
+
+	/**
+	 * @return Read only view on the mapped segment of a location, null if the segment was evicted. The read lock
+	 * must be held.
+	 */
+	private ByteBuffer map(Location location) throws IOException {
+		Segment segment = segments.get(location.segmentID);
+		if (segment == null)
+			return null;
+
+		long end = location.offset + location.length;
+		// Concurrent reads may both remap the segment, any of the mappings is valid
+		MappedByteBuffer mapped = segment.mapped;
+		if (mapped == null || mapped.capacity() < end) {
+			mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+			segment.mapped = mapped;
+		}
+
+		ByteBuffer view = mapped.duplicate();
+		view.position((int) location.offset).limit((int) end);
+		return view.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Remove a series from the index. Its bytes stay in the segments until they are evicted.
+	 */
+	public void removeSeries(String studyUID, String seriesUID) {
+		seriesIndex.remove(getKey(studyUID, seriesUID));
+	}
+
+	/**
+	 * @return Size of all the segments on disk
+	 */
+	public long getSizeBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Delete the least recently used segments until the tier fits in its budget. The segment being written
+	 * is never deleted.
+	 */
+	private void evictIfNeeded() throws IOException {
+		// Segments being loaded are read without lock
+		if (!previousSegments.isEmpty())
+			return;
+
+		while (totalBytes > maxBytes && segments.size() > 1) {
+			Segment victim = null;
+			long victimLastAccess = Long.MAX_VALUE;
+
+			for (Segment segment : segments.values()) {
+				if (segment == currentSegment)
+					continue;
+
+				long lastAccess = 0;
+				for (String key : segment.seriesKeys) {
+					SeriesIndex index = seriesIndex.get(key);
+					if (index != null)
+						lastAccess = Math.max(lastAccess, index.lastAccess);
+				}
+
+				if (lastAccess < victimLastAccess) {
+					victim = segment;
+					victimLastAccess = lastAccess;
+				}
+			}
+
+			if (victim == null)
+				return;
+
+			deleteSegment(victim);
+		}
+	}
+
+	private void deleteSegment(Segment segment) throws IOException {
+		Log.info(String.format("[DISK CACHE] Evict segment %s (%d bytes, %d series)", segment.path.getFileName(), segment.size, segment.seriesKeys.size()));
+
+		// A series spread over several segments can't be served partially. A series that was written again in
+		// another segment is kept.
+		for (String key : segment.seriesKeys) {
+			SeriesIndex index = seriesIndex.get(key);
+			if (index != null && index.instances.values().stream().anyMatch(l -> l.segmentID == segment.id))
+				seriesIndex.remove(key);
+		}
+
+		// Views already returned stay valid, the mapping outlives the channel
+		segmentsLock.writeLock().lock();
+		try {
+			segments.remove(segment.id);
+			segment.mapped = null;
+			segment.channel.close();
+		} finally {
+			segmentsLock.writeLock().unlock();
+		}
+		totalBytes -= segment.size;
+		Files.deleteIfExists(segment.path);
+	}
+
+	/**
+	 * Save the index and close all segments
+	 */
+	public synchronized void close() {
+		// Don't leave an empty segment at each restart
+		if (currentSegment.size == 0 && segments.size() > 1) {
+			try {
+				deleteSegment(currentSegment);
+			} catch (IOException e) {
+				Log.error("[DISK CACHE] Can't delete " + currentSegment.path + " : " + e.getMessage());
+			}
+		}
+
+		// Segments still being loaded would be missing from the index, they will be scanned on next start
+		if (previousSegments.isEmpty()) {
+			try {
+				writeIndexFile();
+			} catch (IOException e) {
+				Log.error("[DISK CACHE] Can't write the index file : " + e.getMessage());
+			}
+		}
+
+		for (Segment segment : segments.values()) {
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				Log.error("[DISK CACHE] Can't close " + segment.path + " : " + e.getMessage());
+			}
+		}
+	}
+}
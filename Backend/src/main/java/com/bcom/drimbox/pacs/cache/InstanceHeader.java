@@ -0,0 +1,328 @@
+/*
+ *  InstanceHeader.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.io.DicomInputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+/**
+ * Attributes of an instance needed by the viewers, read once when the file enters the cache.
+ *
+ * Metadata requests are answered from these records, the cached files are never parsed again. The records are
+ * written on disk with the series ({@link #writeTo(DataOutput)}) so series of the disk tier aren't parsed either.
+ */
+public class InstanceHeader {
+	// Instance
+	private final String sopInstanceUID;
+	private final String sopClassUID;
+	private final String transferSyntaxUID;
+	private final int instanceNumber;
+	private final String frameOfReferenceUID;
+
+	// Image
+	private final int rows;
+	private final int columns;
+	private final int numberOfFrames;
+	private final int samplesPerPixel;
+	private final String photometricInterpretation;
+	private final int bitsAllocated;
+	private final int bitsStored;
+	private final int highBit;
+	private final int pixelRepresentation;
+	private final double[] imagePositionPatient;
+	private final double[] imageOrientationPatient;
+	private final double[] pixelSpacing;
+	private final double sliceThickness;
+	private final double[] windowCenter;
+	private final double[] windowWidth;
+	private final double rescaleIntercept;
+	private final double rescaleSlope;
+
+	// Series and study, the same for all the instances of a series
+	private final String seriesInstanceUID;
+	private final String studyInstanceUID;
+	private final String modality;
+	private final String studyDate;
+	private final String studyTime;
+	private final String patientName;
+	private final String patientID;
+	private final String patientAge;
+	private final String patientSex;
+
+	private InstanceHeader(Attributes attributes, String transferSyntaxUID) {
+		this.sopInstanceUID = attributes.getString(Tag.SOPInstanceUID);
+		this.sopClassUID = attributes.getString(Tag.SOPClassUID, "");
+		this.transferSyntaxUID = transferSyntaxUID;
+		this.instanceNumber = attributes.getInt(Tag.InstanceNumber, 0);
+		this.frameOfReferenceUID = attributes.getString(Tag.FrameOfReferenceUID);
+
+		this.rows = attributes.getInt(Tag.Rows, 0);
+		this.columns = attributes.getInt(Tag.Columns, 0);
+		this.numberOfFrames = attributes.getInt(Tag.NumberOfFrames, 1);
+		this.samplesPerPixel = attributes.getInt(Tag.SamplesPerPixel, 0);
+		this.photometricInterpretation = attributes.getString(Tag.PhotometricInterpretation, "");
+		this.bitsAllocated = attributes.getInt(Tag.BitsAllocated, 0);
+		this.bitsStored = attributes.getInt(Tag.BitsStored, 0);
+		this.highBit = attributes.getInt(Tag.HighBit, 0);
+		this.pixelRepresentation = attributes.getInt(Tag.PixelRepresentation, 0);
+		this.imagePositionPatient = attributes.getDoubles(Tag.ImagePositionPatient);
+		this.imageOrientationPatient = attributes.getDoubles(Tag.ImageOrientationPatient);
+		this.pixelSpacing = attributes.getDoubles(Tag.PixelSpacing);
+		this.sliceThickness = attributes.getDouble(Tag.SliceThickness, 0);
+		this.windowCenter = attributes.getDoubles(Tag.WindowCenter);
+		this.windowWidth = attributes.getDoubles(Tag.WindowWidth);
+		this.rescaleIntercept = attributes.getDouble(Tag.RescaleIntercept, 0);
+		this.rescaleSlope = attributes.getDouble(Tag.RescaleSlope, 1);
+
+		this.seriesInstanceUID = attributes.getString(Tag.SeriesInstanceUID, "");
+		this.studyInstanceUID = attributes.getString(Tag.StudyInstanceUID, "");
+		this.modality = attributes.getString(Tag.Modality, "");
+		this.studyDate = attributes.getString(Tag.StudyDate, "20000101");
+		this.studyTime = attributes.getString(Tag.StudyTime, "");
+		this.patientName = attributes.getString(Tag.PatientName, "Anonymous");
+		this.patientID = attributes.getString(Tag.PatientID, "");
+		this.patientAge = attributes.getString(Tag.PatientAge, "");
+		this.patientSex = attributes.getString(Tag.PatientSex, "");
+	}
+
+	private InstanceHeader(DataInput in) throws IOException {
+		this.sopInstanceUID = in.readUTF();
+		this.sopClassUID = in.readUTF();
+		this.transferSyntaxUID = readString(in);
+		this.instanceNumber = in.readInt();
+		this.frameOfReferenceUID = readString(in);
+
+		this.rows = in.readInt();
+		this.columns = in.readInt();
+		this.numberOfFrames = in.readInt();
+		this.samplesPerPixel = in.readInt();
+		this.photometricInterpretation = in.readUTF();
+		this.bitsAllocated = in.readInt();
+		this.bitsStored = in.readInt();
+		this.highBit = in.readInt();
+		this.pixelRepresentation = in.readInt();
+		this.imagePositionPatient = readDoubles(in);
+		this.imageOrientationPatient = readDoubles(in);
+		this.pixelSpacing = readDoubles(in);
+		this.sliceThickness = in.readDouble();
+		this.windowCenter = readDoubles(in);
+		this.windowWidth = readDoubles(in);
+		this.rescaleIntercept = in.readDouble();
+		this.rescaleSlope = in.readDouble();
+
+		this.seriesInstanceUID = in.readUTF();
+		this.studyInstanceUID = in.readUTF();
+		this.modality = in.readUTF();
+		this.studyDate = in.readUTF();
+		this.studyTime = in.readUTF();
+		this.patientName = in.readUTF();
+		this.patientID = in.readUTF();
+		this.patientAge = in.readUTF();
+		this.patientSex = in.readUTF();
+	}
+
+	/**
+	 * Read the header of a DICOM file. Reading stops before the pixel data and bulk data are skipped.
+	 *
+	 * @return The header, or null if the file has no SOP instance UID
+	 */
+	public static InstanceHeader read(ByteBuf part) throws IOException {
+		// The stream reads a duplicate, the indexes of the part are not modified
+		return read(new ByteBufInputStream(part.duplicate()));
+	}
+
+	/**
+	 * @see #read(ByteBuf)
+	 */
+	public static InstanceHeader read(InputStream input) throws IOException {
+		try (DicomInputStream dis = new DicomInputStream(input)) {
+			dis.setIncludeBulkData(DicomInputStream.IncludeBulkData.NO);
+			Attributes attributes = dis.readDataset(-1, Tag.PixelData);
+			if (attributes == null || attributes.getString(Tag.SOPInstanceUID) == null)
+				return null;
+
+			return new InstanceHeader(attributes, dis.getTransferSyntax());
+		}
+	}
+
+	/**
+	 * Write the record in a compact binary form, read back with {@link #readFrom(DataInput)}
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeUTF(sopInstanceUID);
+		out.writeUTF(sopClassUID);
+		writeString(out, transferSyntaxUID);
+		out.writeInt(instanceNumber);
+		writeString(out, frameOfReferenceUID);
+
+		out.writeInt(rows);
+		out.writeInt(columns);
+		out.writeInt(numberOfFrames);
+		out.writeInt(samplesPerPixel);
+		out.writeUTF(photometricInterpretation);
+		out.writeInt(bitsAllocated);
+		out.writeInt(bitsStored);
+		out.writeInt(highBit);
+		out.writeInt(pixelRepresentation);
+		writeDoubles(out, imagePositionPatient);
+		writeDoubles(out, imageOrientationPatient);
+		writeDoubles(out, pixelSpacing);
+		out.writeDouble(sliceThickness);
+		writeDoubles(out, windowCenter);
+		writeDoubles(out, windowWidth);
+		out.writeDouble(rescaleIntercept);
+		out.writeDouble(rescaleSlope);
+
+		out.writeUTF(seriesInstanceUID);
+		out.writeUTF(studyInstanceUID);
+		out.writeUTF(modality);
+		out.writeUTF(studyDate);
+		out.writeUTF(studyTime);
+		out.writeUTF(patientName);
+		out.writeUTF(patientID);
+		out.writeUTF(patientAge);
+		out.writeUTF(patientSex);
+	}
+
+	/**
+	 * Read a record written by {@link #writeTo(DataOutput)}
+	 */
+	public static InstanceHeader readFrom(DataInput in) throws IOException {
+		return new InstanceHeader(in);
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	// Null arrays are written with a negative length
+	private static void writeDoubles(DataOutput out, double[] values) throws IOException {
+		out.writeInt(values == null ? -1 : values.length);
+		if (values == null)
+			return;
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+	}
+
+	private static double[] readDoubles(DataInput in) throws IOException {
+		final int length = in.readInt();
+		if (length < 0)
+			return null;
+
+		double[] values = new double[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.readDouble();
+		}
+		return values;
+	}
+
+	public String getSOPInstanceUID() { return sopInstanceUID; }
+
+	public String getSOPClassUID() { return sopClassUID; }
+
+	public String getTransferSyntaxUID() { return transferSyntaxUID; }
+
+	public int getInstanceNumber() { return instanceNumber; }
+
+	/**
+	 * @return Frame of reference UID or null if the instance doesn't have one
+	 */
+	public String getFrameOfReferenceUID() { return frameOfReferenceUID; }
+
+	public int getRows() { return rows; }
+
+	public int getColumns() { return columns; }
+
+	public int getNumberOfFrames() { return numberOfFrames; }
+
+	public int getSamplesPerPixel() { return samplesPerPixel; }
+
+	public String getPhotometricInterpretation() { return photometricInterpretation; }
+
+	public int getBitsAllocated() { return bitsAllocated; }
+
+	public int getBitsStored() { return bitsStored; }
+
+	public int getHighBit() { return highBit; }
+
+	public int getPixelRepresentation() { return pixelRepresentation; }
+
+	/**
+	 * @return Position of the image, null if the instance doesn't have one. The same goes for all the arrays.
+	 */
+	public double[] getImagePositionPatient() { return imagePositionPatient; }
+
+	public double[] getImageOrientationPatient() { return imageOrientationPatient; }
+
+	public double[] getPixelSpacing() { return pixelSpacing; }
+
+	public double getSliceThickness() { return sliceThickness; }
+
+	public double[] getWindowCenter() { return windowCenter; }
+
+	public double[] getWindowWidth() { return windowWidth; }
+
+	public double getRescaleIntercept() { return rescaleIntercept; }
+
+	public double getRescaleSlope() { return rescaleSlope; }
+
+	public String getSeriesInstanceUID() { return seriesInstanceUID; }
+
+	public String getStudyInstanceUID() { return studyInstanceUID; }
+
+	public String getModality() { return modality; }
+
+	public String getStudyDate() { return studyDate; }
+
+	public String getStudyTime() { return studyTime; }
+
+	public String getPatientName() { return patientName; }
+
+	public String getPatientID() { return patientID; }
+
+	public String getPatientAge() { return patientAge; }
+
+	public String getPatientSex() { return patientSex; }
+}
@@ -0,0 +1,97 @@
+/*
+ *  SingleFlight.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs.cache;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
+/**
+ * Deduplicate concurrent executions of the same task.
+ *
+ * The first caller for a key runs the task, every caller arriving while it is running gets the same future
+ * instead of running it again. Once the task is done the key is free and the next caller runs it again.
+ *
+ * @param <K> Key of the task
+ * @param <V> Result of the task
+ */
+public class SingleFlight<K, V> {
+	private final Map<K, Future<V>> inFlight = new ConcurrentHashMap<>();
+
+	// Called with the key each time a caller joins a running task
+	private final Consumer<K> onJoin;
+
+	public SingleFlight() {
+		this(key -> {});
+	}
+
+	public SingleFlight(Consumer<K> onJoin) {
+		this.onJoin = onJoin;
+	}
+
+	/**
+	 * Run the task or join the running one
+	 *
+	 * @param key Key of the task
+	 * @param task Task to run if there is none running for this key
+	 * @return Future of the task, shared by all concurrent callers
+	 */
+	public Future<V> execute(K key, Supplier<Future<V>> task) {
+		Promise<V> promise = Promise.promise();
+		Future<V> running = inFlight.putIfAbsent(key, promise.future());
+		if (running != null) {
+			onJoin.accept(key);
+			return running;
+		}
+
+		try {
+			task.get().onComplete(result -> {
+				// Free the key before completing so callers reacting to the result start a new task
+				inFlight.remove(key, promise.future());
+				promise.handle(result);
+			});
+		} catch (RuntimeException e) {
+			inFlight.remove(key, promise.future());
+			promise.fail(e);
+		}
+
+		return promise.future();
+	}
+
+	/**
+	 * @return True if a task is running for this key
+	 */
+	public boolean isInFlight(K key) {
+		return inFlight.containsKey(key);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *  WaiterRegistry.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.pacs.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Requests waiting for values that are not available yet.
+ *
+ * Each waiter gets its own future, so many waiters can wait for the same key and a waiter that times out or is
+ * cancelled does not affect the others. Waiters that end without a value are removed from the registry right
+ * away, so abandoned requests do not pile up.
+ *
+ * @param <K> Key of the awaited value
+ * @param <V> Awaited value
+ */
+public class WaiterRegistry<K, V> {
+	private final Map<K, List<CompletableFuture<V>>> waiters = new HashMap<>();
+
+	// Time after which a waiter fails with a TimeoutException, 0 to wait forever
+	private final long timeoutMs;
+
+	public WaiterRegistry(long timeoutMs) {
+		this.timeoutMs = timeoutMs;
+	}
+
+	/**
+	 * Register a new waiter for the key
+	 *
+	 * @return Future completed with the value. It fails with a TimeoutException if the value does not come in time.
+	 * Cancelling it removes the waiter.
+	 */
+	public CompletableFuture<V> register(K key) {
+		CompletableFuture<V> waiter = new CompletableFuture<>();
+		synchronized (this) {
+			waiters.computeIfAbsent(key, k -> new ArrayList<>()).add(waiter);
+		}
+
+		// Timed out or cancelled
+		waiter.whenComplete((value, error) -> {
+			if (error != null)
+				remove(key, waiter);
+		});
+
+		if (timeoutMs > 0)
+			waiter.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+
+		return waiter;
+	}
+
+	/**
+	 * Remove the waiters of the key so the caller can complete them. Completing them is left to the caller since
+	 * each waiter may need its own copy or reference of the value, and it must be done outside of any lock.
+	 *
+	 * @return Waiters of the key, empty if there is none
+	 */
+	public synchronized List<CompletableFuture<V>> take(K key) {
+		List<CompletableFuture<V>> keyWaiters = waiters.remove(key);
+		return keyWaiters == null ? List.of() : keyWaiters;
+	}
+
+	/**
+	 * Fail all waiters, whatever their key
+	 */
+	public void failAll(Throwable error) {
+		List<CompletableFuture<V>> allWaiters = new ArrayList<>();
+		synchronized (this) {
+			waiters.values().forEach(allWaiters::addAll);
+			waiters.clear();
+		}
+
+		allWaiters.forEach(waiter -> waiter.completeExceptionally(error));
+	}
+
+	/**
+	 * @return Number of waiters of the key
+	 */
+	public synchronized int getWaiterCount(K key) {
+		List<CompletableFuture<V>> keyWaiters = waiters.get(key);
+		return keyWaiters == null ? 0 : keyWaiters.size();
+	}
+
+	/**
+	 * @return Number of waiters, all keys included
+	 */
+	public synchronized int size() {
+		return waiters.values().stream().mapToInt(List::size).sum();
+	}
+
+	private synchronized void remove(K key, CompletableFuture<V> waiter) {
+		List<CompletableFuture<V>> keyWaiters = waiters.get(key);
+		if (keyWaiters == null)
+			return;
+
+		keyWaiters.remove(waiter);
+		if (keyWaiters.isEmpty())
+			waiters.remove(key);
+	}
+}
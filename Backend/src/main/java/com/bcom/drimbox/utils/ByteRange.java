@@ -0,0 +1,125 @@
+/*
+ *  ByteRange.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte range of a HTTP Range request (RFC 7233)
+ */
+public class ByteRange {
+	// More ranges than this are not worth it, the whole file is sent instead
+	private static final int MAX_RANGES = 16;
+
+	// First and last byte of the range, included
+	private final long first;
+	private final long last;
+
+	private ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	public long getFirst() {
+		return first;
+	}
+
+	public long getLength() {
+		return last - first + 1;
+	}
+
+	/**
+	 * @param size Size of the whole content
+	 * @return Value of the Content-Range header of this range
+	 */
+	public String toContentRange(long size) {
+		return String.format("bytes %d-%d/%d", first, last, size);
+	}
+
+	/**
+	 * @param size Size of the whole content
+	 * @return Value of the Content-Range header of a 416 response
+	 */
+	public static String unsatisfiedContentRange(long size) {
+		return "bytes */" + size;
+	}
+
+	/**
+	 * Parse a Range header, e.g. "bytes=0-1023", "bytes=1024-", "bytes=-512" or "bytes=0-99,200-299"
+	 *
+	 * @param header Value of the Range header, may be null
+	 * @param size Size of the whole content
+	 * @return Satisfiable ranges, clipped to the content. Empty if none of them can be satisfied (416) and null if
+	 * the whole content must be sent (no header, invalid header or too many ranges).
+	 */
+	public static List<ByteRange> parse(String header, long size) {
+		if (header == null || !header.startsWith("bytes="))
+			return null;
+
+		String[] specs = header.substring("bytes=".length()).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+
+		List<ByteRange> ranges = new ArrayList<>();
+		for (String spec : specs) {
+			spec = spec.trim();
+			final int dash = spec.indexOf('-');
+			if (dash < 0)
+				return null;
+
+			try {
+				String start = spec.substring(0, dash).trim();
+				String end = spec.substring(dash + 1).trim();
+				long first;
+				long last;
+				if (start.isEmpty()) {
+					// Suffix range : last N bytes
+					final long suffixLength = Long.parseLong(end);
+					if (suffixLength <= 0)
+						continue;
+					first = Math.max(0, size - suffixLength);
+					last = size - 1;
+				} else {
+					first = Long.parseLong(start);
+					last = end.isEmpty() ? size - 1 : Math.min(Long.parseLong(end), size - 1);
+					if (first < 0 || (!end.isEmpty() && Long.parseLong(end) < first))
+						return null;
+				}
+
+				if (first < size)
+					ranges.add(new ByteRange(first, last));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		return ranges;
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ *  JsonArrayRewriter.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.utils;
+
+import java.io.ByteArrayOutputStream;
+
+import io.smallrye.mutiny.Multi;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.JsonEvent;
+import io.vertx.core.parsetools.JsonParser;
+import io.vertx.mutiny.core.buffer.Buffer;
+import jakarta.json.Json;
+import jakarta.json.stream.JsonGenerator;
+
+/**
+ * Rewrites a JSON array of objects received in chunks (e.g. the DICOM JSON metadata of a study) into another
+ * JSON document, generated while the array is parsed.
+ *
+ * The objects of the array are parsed one at a time and handed to a Writer, which writes its document with a
+ * JsonGenerator. The output produced by a chunk is emitted as soon as the chunk is parsed, so the beginning of
+ * the document reaches the client before the end of the array is received. Only one object of the array is in
+ * memory at a time, plus what the Writer keeps.
+ */
+public class JsonArrayRewriter {
+
+	/**
+	 * Writes the output document. A new Writer is needed for each rewriting.
+	 */
+	public interface Writer {
+		/**
+		 * Called when the array starts, before any object
+		 */
+		void start(JsonGenerator generator);
+
+		/**
+		 * Called for each object of the array, in order
+		 */
+		void write(JsonGenerator generator, JsonObject object);
+
+		/**
+		 * Called when the array is over, the document must be closed
+		 */
+		void end(JsonGenerator generator);
+	}
+
+	private JsonArrayRewriter() {}
+
+	/**
+	 * @param chunks JSON array
+	 * @return Output document, in chunks. It fails with a DecodeException if the input is not a valid JSON array
+	 * of objects.
+	 */
+	public static Multi<Buffer> rewrite(Multi<Buffer> chunks, Writer writer) {
+		return Multi.createFrom().deferred(() -> {
+			final State state = new State(writer);
+			return Multi.createBy().concatenating().streams(
+					chunks.map(state::feed),
+					Multi.createFrom().item(state::end))
+					.select().where(output -> output.length() > 0);
+		});
+	}
+
+	// Rewriting state of one array
+	private static class State {
+		final Writer writer;
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		final JsonGenerator generator = Json.createGenerator(output);
+		final JsonParser parser = JsonParser.newParser().objectValueMode();
+		boolean started = false;
+		boolean ended = false;
+
+		State(Writer writer) {
+			this.writer = writer;
+			parser.handler(this::handle);
+		}
+
+		Buffer feed(Buffer chunk) {
+			parser.handle(chunk.getDelegate());
+			generator.flush();
+			return take();
+		}
+
+		Buffer end() {
+			parser.end();
+			if (!ended)
+				throw new DecodeException("JSON array ended too early");
+
+			// Flushes what is left
+			generator.close();
+			return take();
+		}
+
+		private void handle(JsonEvent event) {
+			switch (event.type()) {
+				case START_ARRAY:
+					if (started)
+						throw new DecodeException("Nested arrays are not supported");
+					started = true;
+					writer.start(generator);
+					break;
+				case VALUE:
+					if (!started || ended || !(event.value() instanceof JsonObject))
+						throw new DecodeException("Not an array of objects");
+					writer.write(generator, event.objectValue());
+					break;
+				case END_ARRAY:
+					ended = true;
+					writer.end(generator);
+					break;
+				default:
+					throw new DecodeException("Not an array of objects");
+			}
+		}
+
+		// Output flushed since the previous call
+		private Buffer take() {
+			Buffer chunk = Buffer.buffer(output.toByteArray());
+			output.reset();
+			return chunk;
+		}
+	}
+}
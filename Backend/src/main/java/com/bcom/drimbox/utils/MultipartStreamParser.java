@@ -0,0 +1,243 @@
+/*
+ *  MultipartStreamParser.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.utils;
+
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.core.buffer.Buffer;
+
+/**
+ * Parser of multipart/related bodies that works on the chunks of a non-blocking response.
+ *
+ * Unlike the dcm4che MultipartParser it doesn't need an InputStream : each part is emitted as soon as its
+ * closing delimiter is received, while the following parts are still being read from the socket. The chunks are
+ * only requested as fast as the parts are consumed.
+ *
+ * Chunks are never copied : they are kept in a composite buffer until they are parsed, and each part is emitted
+ * as a composite of slices of the chunks it spans. A part only keeps its own chunks, the one it starts in and
+ * the one it ends in. The headers of the parts are skipped.
+ */
+public class MultipartStreamParser {
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] HEADERS_END = { '\r', '\n', '\r', '\n' };
+
+	private enum Step { PREAMBLE, DELIMITER, HEADERS, BODY, EPILOGUE }
+
+	// CRLF--boundary
+	private final byte[] delimiter;
+
+	public MultipartStreamParser(String boundary) {
+		this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return Boundary parameter of a multipart content type, null if there is none
+	 */
+	public static String getBoundary(String contentType) {
+		if (contentType == null)
+			return null;
+
+		for (String param : contentType.split(";")) {
+			if (param.replace(" ", "").startsWith("boundary="))
+				return param.substring(param.indexOf('=') + 1).replaceAll("\"", "");
+		}
+
+		return null;
+	}
+
+	/**
+	 * Split a multipart body in its parts
+	 *
+	 * @param chunks Body of the response
+	 * @return Content of each part, in order. It fails with an EOFException if the body ends before the closing
+	 * delimiter.
+	 */
+	public Multi<Buffer> parse(Multi<Buffer> chunks) {
+		return Multi.createFrom().deferred(() -> {
+			final State state = newState();
+			return chunks
+					.onItem().transformToIterable(chunk -> state.feed(chunk.getDelegate().getByteBuf()))
+					.onCompletion().call(() -> state.step == Step.EPILOGUE
+							? Uni.createFrom().voidItem()
+							: Uni.createFrom().failure(new EOFException("Multipart body ended before its closing delimiter")))
+					// The chunks not parsed yet are released if the body fails, is truncated or is cancelled
+					.onTermination().invoke(state::release);
+		});
+	}
+
+	// Package-private so the tests can look at the state
+	State newState() {
+		return new State();
+	}
+
+	// Parsing state of one body
+	class State {
+		// Chunks not parsed yet. Components are never merged, that would copy them.
+		final CompositeByteBuf buf = Unpooled.compositeBuffer(Integer.MAX_VALUE);
+		// First byte not parsed yet
+		int start = 0;
+		// The delimiter can't start before this position
+		int scanFrom = 0;
+		Step step = Step.PREAMBLE;
+
+		State() {
+			// The first delimiter may be at the very beginning of the body, without the CRLF before it
+			buf.addComponent(true, Unpooled.wrappedBuffer(CRLF));
+		}
+
+		// Synchronized with release(), the subscription can be cancelled from another thread
+		synchronized List<Buffer> feed(ByteBuf chunk) {
+			if (step == Step.EPILOGUE || buf.refCnt() == 0)
+				return List.of();
+
+			buf.addComponent(true, chunk.retainedDuplicate());
+
+			List<Buffer> parts = new ArrayList<>(1);
+			while (true) {
+				switch (step) {
+					case PREAMBLE: {
+						int i = indexOf(delimiter, Math.max(start, scanFrom));
+						if (i < 0) {
+							// The preamble is dropped, only what may be the beginning of the delimiter is kept
+							start = Math.max(start, buf.writerIndex() - delimiter.length + 1);
+							scanFrom = start;
+							discardParsed();
+							return parts;
+						}
+						start = i + delimiter.length;
+						step = Step.DELIMITER;
+						break;
+					}
+					case DELIMITER: {
+						if (buf.writerIndex() - start < 2)
+							return parts;
+						if (buf.getByte(start) == '-' && buf.getByte(start + 1) == '-') {
+							step = Step.EPILOGUE;
+							buf.release();
+							return parts;
+						}
+						// Transport padding before the end of line is ignored
+						int i = indexOf(CRLF, start);
+						if (i < 0)
+							return parts;
+						start = i + CRLF.length;
+						step = Step.HEADERS;
+						break;
+					}
+					case HEADERS: {
+						if (buf.writerIndex() - start < CRLF.length)
+							return parts;
+						// Headers end with an empty line, which comes right away if the part has no header
+						if (buf.getByte(start) == '\r' && buf.getByte(start + 1) == '\n') {
+							start += CRLF.length;
+						} else {
+							int i = indexOf(HEADERS_END, start);
+							if (i < 0)
+								return parts;
+							start = i + HEADERS_END.length;
+						}
+						scanFrom = start;
+						step = Step.BODY;
+						break;
+					}
+					case BODY: {
+						int i = indexOf(delimiter, Math.max(start, scanFrom));
+						if (i < 0) {
+							scanFrom = Math.max(start, buf.writerIndex() - delimiter.length + 1);
+							return parts;
+						}
+						parts.add(Buffer.buffer(slice(start, i - start)));
+
+						start = i + delimiter.length;
+						scanFrom = start;
+						discardParsed();
+						step = Step.DELIMITER;
+						break;
+					}
+					default:
+						return parts;
+				}
+			}
+		}
+
+		// Release the chunks not parsed yet, if the closing delimiter did not already
+		synchronized void release() {
+			if (buf.refCnt() > 0)
+				buf.release();
+		}
+
+		/**
+		 * @return New buffer over the chunks holding the given bytes, each of them is retained
+		 */
+		private ByteBuf slice(int index, int length) {
+			if (length == 0)
+				return Unpooled.EMPTY_BUFFER;
+
+			List<ByteBuf> slices = buf.decompose(index, length);
+			ByteBuf[] retained = new ByteBuf[slices.size()];
+			for (int i = 0; i < retained.length; i++) {
+				retained[i] = slices.get(i).retain();
+			}
+			return Unpooled.wrappedBuffer(retained);
+		}
+
+		// Release the chunks that are entirely parsed
+		private void discardParsed() {
+			buf.readerIndex(start);
+			buf.discardReadComponents();
+			final int removed = start - buf.readerIndex();
+			start -= removed;
+			scanFrom = Math.max(0, scanFrom - removed);
+		}
+
+		private int indexOf(byte[] pattern, int from) {
+			final int last = buf.writerIndex() - pattern.length;
+			for (int i = from; i <= last; i++) {
+				i = buf.indexOf(i, last + 1, pattern[0]);
+				if (i < 0)
+					return -1;
+
+				int j = 1;
+				while (j < pattern.length && buf.getByte(i + j) == pattern[j])
+					j++;
+				if (j == pattern.length)
+					return i;
+			}
+			return -1;
+		}
+	}
+}
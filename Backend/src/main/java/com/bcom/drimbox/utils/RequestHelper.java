@@ -27,30 +27,33 @@
 
 package com.bcom.drimbox.utils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.function.BiFunction;
 
-import com.bcom.drimbox.pacs.PacsCache;
 import jakarta.inject.Inject;
 import jakarta.inject.Singleton;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.MultivaluedMap;
 import jakarta.ws.rs.core.UriInfo;
 
 import com.bcom.drimbox.utils.exceptions.RequestErrorException;
-import org.dcm4che3.mime.MultipartParser;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.resteasy.reactive.RestMulti;
 import org.jboss.resteasy.reactive.RestResponse;
 
+import com.bcom.drimbox.pacs.AssociationPool.RetrieveMode;
+import com.bcom.drimbox.pacs.CGetSCU;
 import com.bcom.drimbox.pacs.CMoveSCU;
 
 import io.quarkus.logging.Log;
 import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.core.buffer.Buffer;
+import io.vertx.mutiny.core.http.HttpClientResponse;
+import io.vertx.mutiny.ext.web.client.HttpResponse;
 
 @Singleton
 public class RequestHelper {
@@ -59,6 +62,12 @@ public class RequestHelper {
 	@Inject
 	CMoveSCU cMoveSCU;
 
+	@Inject
+	CGetSCU cGetSCU;
+
+	@ConfigProperty(name="pacs.retrieveMode", defaultValue = "CMOVE")
+	RetrieveMode retrieveMode;
+
 	/**
 	 * Extract query params from UriInfo and append it to base URL
 	 *  e.g. if your initial request have params like ?param1=12&param2=DOUZE
@@ -89,38 +98,26 @@ public class RequestHelper {
 	}
 
 	/**
-	 * Get String representation of connection
-	 * @param connection HttpURLConnection of the server
-	 * @return Empty string if an error occurred, contents of the input stream otherwise
+	 * Get String representation of a response
+	 * @param response Response of the server
+	 * @return Body of the response with its content type
 	 */
-	public RestResponse<String> readStringResponse(HttpURLConnection connection) {
-		try {
-			String response =new BufferedReader(
-					new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))
-					.lines()
-					.collect(Collectors.joining(System.lineSeparator()));
-
-			return RestResponse.ResponseBuilder
-					.ok(response)
-					.header("Content-Type", connection.getContentType())
-					.build();
+	public RestResponse<String> readStringResponse(HttpResponse<Buffer> response) {
+		String body = response.bodyAsString(StandardCharsets.UTF_8.name());
 
-		} catch (Exception e) {
-			Log.fatal("error while reading server string response");
-		}
-		return getErrorStringResponse();
+		return RestResponse.ResponseBuilder
+				.ok(body == null ? "" : body)
+				.header("Content-Type", response.getHeader("Content-Type"))
+				.build();
 	}
 
-	public RestResponse<byte[]> readFileResponse(HttpURLConnection connection) {
-		try {
-			return RestResponse.ResponseBuilder
-					.ok(connection.getInputStream().readAllBytes())
-					.header("Content-Type", connection.getContentType())
-					.build();
-		} catch (Exception e) {
-			Log.fatal("error while reading server file response");
-			return RestResponse.ResponseBuilder.ok(new byte[0]).status(500).build();
-		}
+	public RestResponse<byte[]> readFileResponse(HttpResponse<Buffer> response) {
+		Buffer body = response.body();
+
+		return RestResponse.ResponseBuilder
+				.ok(body == null ? new byte[0] : body.getBytes())
+				.header("Content-Type", response.getHeader("Content-Type"))
+				.build();
 	}
 
 	/**
@@ -145,26 +142,25 @@ public class RequestHelper {
 		return RestResponse.ResponseBuilder.ok(new byte[0]).status(code).build();
 	}
 
-	// Todo : add String authToken
-	public interface ServiceConnection {
-		HttpURLConnection connect(String url) throws RequestErrorException;
+	/**
+	 * Sends the request to a service (PACS or drimbox) with the shared web client. The returned Uni fails with a
+	 * RequestErrorException if the service answered with an error code or is not reachable.
+	 */
+	public interface ServiceRequest {
+		Uni<HttpResponse<Buffer>> send(String url);
 	}
 
 	// Todo : see if Response<> can do the work instead to avoid duplicate functions
-	public RestResponse<String> stringRequest(String pacsUrl, ServiceConnection service) {
-		try {
-			HttpURLConnection connection = service.connect(pacsUrl);
-			RestResponse<String> response = readStringResponse(connection);
-
-			connection.disconnect();
-			return response;
-		} catch (RequestErrorException e) {
-			logError("string request", pacsUrl, e.getMessage());
-			return getErrorStringResponse(e.getMessage(), e.getErrorCode());
-		} catch (Exception e) {
-			logError("string request", pacsUrl, e.getMessage());
-			return getErrorStringResponse();
-		}
+	public Uni<RestResponse<String>> stringRequest(String pacsUrl, ServiceRequest service) {
+		return service.send(pacsUrl)
+				.map(this::readStringResponse)
+				.onFailure().recoverWithItem(e -> {
+					logError("string request", pacsUrl, e.getMessage());
+					if (e instanceof RequestErrorException)
+						return getErrorStringResponse(e.getMessage(), ((RequestErrorException) e).getErrorCode());
+
+					return getErrorStringResponse();
+				});
 	}
 
 	private void logError(String location, String url, String errorMessage) {
@@ -174,70 +170,132 @@ public class RequestHelper {
 	}
 
 
-	public RestResponse<byte[]> fileRequest(String pacsUrl, ServiceConnection service) {
-		try {
-			HttpURLConnection connection = service.connect(pacsUrl);
-			RestResponse<byte[]> response = readFileResponse(connection);
+	public Uni<RestResponse<byte[]>> fileRequest(String pacsUrl, ServiceRequest service) {
+		return service.send(pacsUrl)
+				.map(this::readFileResponse)
+				.onFailure().recoverWithItem(e -> {
+					logError("file request", pacsUrl, e.getMessage());
+					return getDeniedFileResponse();
+				});
+	}
 
-			connection.disconnect();
-			return response;
-		} catch (Exception e) {
-			logError("file request", pacsUrl, e.getMessage());
-			return getDeniedFileResponse();
-		}
+	/**
+	 * Sends the request to a service without buffering its response, see SharedWebClient.stream. The returned Uni
+	 * fails with a RequestErrorException if the service answered with an error code or is not reachable.
+	 */
+	public interface StreamingServiceRequest {
+		Uni<HttpClientResponse> send(String url);
 	}
 
-	private interface BoundaryFunc { String getBoundary(String contentType); }
-	public List<byte[]> multipartFileRequest(String pacsUrl, ServiceConnection service) {
-		try {
-			HttpURLConnection connection = service.connect(pacsUrl);
-
-			BoundaryFunc boundaryManager = (String contentType) -> {
-				String[] respContentTypeParams = contentType.split(";");
-				for (String respContentTypeParam : respContentTypeParams)
-					if (respContentTypeParam.replace(" ", "").startsWith("boundary="))
-						return respContentTypeParam
-								.substring(respContentTypeParam.indexOf('=') + 1)
-								.replaceAll("\"", "");
-
-				return null;
-			};
-
-			String boundary = boundaryManager.getBoundary(connection.getContentType());
-			if (boundary == null) {
-				Log.fatal("Invalid response. Unpacking of parts not possible.");
-				throw new RequestErrorException("Multipart boundary cannot be determined", 500);
-			}
-
-			List<byte[]> fileList = new ArrayList<>();
-
-			new MultipartParser(boundary).parse(new BufferedInputStream(connection.getInputStream()), (partNumber, multipartInputStream) -> {
-						Map<String, List<String>> headerParams = multipartInputStream.readHeaderParams();
-						try {
-							//Log.info("Image time : " + Duration.between(startTime, Instant.now()).toString());
-							fileList.add(multipartInputStream.readAllBytes());
-						} catch (Exception e) {
-							Log.fatal("Failed to process Part #" + partNumber + headerParams, e);
-						}
-			});
-
-
-			connection.disconnect();
-			return fileList;
-		} catch (Exception e) {
-			logError("file request", pacsUrl, e.getMessage());
-			return new ArrayList<>();
+	// Status, headers and body of a response forwarded to the client
+	private static class ProxiedResponse {
+		final int status;
+		final Map<String, List<String>> headers;
+		final Multi<Buffer> body;
+
+		ProxiedResponse(int status, Map<String, List<String>> headers, Multi<Buffer> body) {
+			this.status = status;
+			this.headers = headers;
+			this.body = body;
 		}
 	}
 
+	/**
+	 * Forward the response of a service to the client while it is received. The body is read from the service
+	 * only as fast as the client consumes it, so only a few chunks of it are in memory whatever its size. If the
+	 * client goes away the request to the service is reset.
+	 *
+	 * @return Status, content type and body of the service, or an empty body with the error code
+	 */
+	public RestMulti<Buffer> streamRequest(String url, StreamingServiceRequest service) {
+		Uni<ProxiedResponse> response = service.send(url)
+				.map(serviceResponse -> {
+					Map<String, List<String>> headers = new HashMap<>();
+					String contentType = serviceResponse.getHeader("Content-Type");
+					if (contentType != null)
+						headers.put("Content-Type", List.of(contentType));
+
+					Multi<Buffer> body = serviceResponse.toMulti()
+							.onCancellation().invoke(() -> serviceResponse.request().reset());
+
+					return new ProxiedResponse(serviceResponse.statusCode(), headers, body);
+				})
+				.onFailure().recoverWithItem(e -> {
+					logError("stream request", url, e.getMessage());
+					int code = e instanceof RequestErrorException ? ((RequestErrorException) e).getErrorCode() : 500;
+
+					return new ProxiedResponse(code, Map.of(), Multi.createFrom().empty());
+				});
+
+		return RestMulti.fromUniResponse(response, r -> r.body, r -> r.headers, r -> r.status);
+	}
+
+	/**
+	 * Send a JSON document built from the JSON array returned by a service, see JsonArrayRewriter. The document is
+	 * written to the client while the array is received and parsed, the response of the service is never held in
+	 * memory. If the client goes away or the array is invalid the request to the service is reset.
+	 *
+	 * @param writer Writer of the document
+	 * @param errorBody Body of the response if the request fails, from the error code and its reason
+	 */
+	public RestMulti<Buffer> jsonStreamRequest(String url, StreamingServiceRequest service, JsonArrayRewriter.Writer writer, BiFunction<Integer, String, String> errorBody) {
+		Uni<ProxiedResponse> response = service.send(url)
+				.map(serviceResponse -> {
+					Multi<Buffer> body = JsonArrayRewriter.rewrite(serviceResponse.toMulti(), writer)
+							.onFailure().invoke(e -> {
+								// The status is already sent, the client only sees a truncated document
+								logError("json stream request", url, e.getMessage());
+								serviceResponse.request().reset();
+							})
+							.onCancellation().invoke(() -> serviceResponse.request().reset());
+
+					return new ProxiedResponse(200, Map.of("Content-Type", List.of(MediaType.APPLICATION_JSON)), body);
+				})
+				.onFailure().recoverWithItem(e -> {
+					logError("json stream request", url, e.getMessage());
+					int code = e instanceof RequestErrorException ? ((RequestErrorException) e).getErrorCode() : 500;
+
+					return new ProxiedResponse(code, Map.of(), Multi.createFrom().item(Buffer.buffer(errorBody.apply(code, e.getMessage()))));
+				});
+
+		return RestMulti.fromUniResponse(response, r -> r.body, r -> r.headers, r -> r.status);
+	}
+
+	/**
+	 * Parts of a multipart response of a service, emitted while they are received
+	 *
+	 * @return Content of the parts, empty if an error occurred
+	 */
+	public Multi<Buffer> multipartFileRequest(String pacsUrl, StreamingServiceRequest service) {
+		return service.send(pacsUrl)
+				.onItem().transformToMulti(response -> {
+					String boundary = MultipartStreamParser.getBoundary(response.getHeader("Content-Type"));
+					if (boundary == null) {
+						Log.fatal("Invalid response. Unpacking of parts not possible.");
+						response.request().reset();
+						return Multi.createFrom().<Buffer>failure(new RequestErrorException("Multipart boundary cannot be determined", 500));
+					}
+
+					return new MultipartStreamParser(boundary).parse(response.toMulti())
+							.onCancellation().invoke(() -> response.request().reset());
+				})
+				.onFailure().recoverWithMulti(e -> {
+					logError("file request", pacsUrl, e.getMessage());
+					return Multi.createFrom().empty();
+				});
+	}
+
 	public Multi<byte[]> fileRequestCMove(String pacsUrl, List<String> supportedTransferSyntax, List<String> preferredTransferSyntax, String boundary) {
 		String studyUID = pacsUrl.split("/studies/")[1].split("/")[0];
 		String serieUID = pacsUrl.split("/series/")[1].split("/")[0];
 
 		try {
+			if (retrieveMode == RetrieveMode.CGET)
+				return cGetSCU.cGet(studyUID, serieUID, supportedTransferSyntax, preferredTransferSyntax, boundary);
+
 			return cMoveSCU.cMove(studyUID, serieUID, supportedTransferSyntax, preferredTransferSyntax, boundary);
 		} catch (Exception e) {
-			logError("CMove request", "cMove " + studyUID + " / " + serieUID, e.getMessage());
+			logError(retrieveMode + " request", retrieveMode + " " + studyUID + " / " + serieUID, e.getMessage());
 
 			return Multi.createFrom().empty();
 		}
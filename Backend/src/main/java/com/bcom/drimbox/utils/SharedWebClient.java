@@ -0,0 +1,248 @@
+/*
+ *  SharedWebClient.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.utils;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.inject.Inject;
+import jakarta.inject.Singleton;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.Uni;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.ext.web.client.WebClientOptions;
+import io.vertx.mutiny.core.buffer.Buffer;
+import io.vertx.mutiny.core.http.HttpClient;
+import io.vertx.mutiny.core.http.HttpClientResponse;
+import io.vertx.mutiny.ext.web.client.HttpRequest;
+import io.vertx.mutiny.ext.web.client.HttpResponse;
+import io.vertx.mutiny.ext.web.client.WebClient;
+
+/**
+ * HTTP client shared by all the calls of the drimbox to the other drimboxes and to the PACS.
+ *
+ * Connections are kept alive and pooled per host, so consecutive requests to the same source drimbox or PACS
+ * reuse them. HTTP/2 is negotiated (ALPN or h2c upgrade) and the client falls back to HTTP/1.1 when the peer
+ * doesn't support it. Requests are sent asynchronously, the responses come back as Uni on the event loop and
+ * no thread is blocked while waiting for them.
+ *
+ * Each peer (host and port) has its own UpstreamGuard : a slow or failing source drimbox can only use its own
+ * slots and its requests fail fast while its circuit is open, without delaying the requests to the other peers.
+ * Requests are bounded by the connect timeout, the read timeout (no data received) and a total timeout.
+ */
+@Singleton
+public class SharedWebClient {
+
+	// Max number of HTTP/1.1 connections opened to a same host
+	@ConfigProperty(name = "http.client.maxPoolSize", defaultValue = "20")
+	int maxPoolSize;
+
+	// Max number of requests waiting for a connection, -1 for no limit
+	@ConfigProperty(name = "http.client.maxWaitQueueSize", defaultValue = "256")
+	int maxWaitQueueSize;
+
+	@ConfigProperty(name = "http.client.http2", defaultValue = "true")
+	boolean http2;
+
+	@ConfigProperty(name = "http.client.connectTimeoutMs", defaultValue = "10000")
+	int connectTimeoutMs;
+
+	// Time after which an unused connection of the pool is closed
+	@ConfigProperty(name = "http.client.idleTimeoutSeconds", defaultValue = "60")
+	int idleTimeoutSeconds;
+
+	// Time without any data received after which a request fails
+	@ConfigProperty(name = "http.client.timeoutSeconds", defaultValue = "60")
+	int timeoutSeconds;
+
+	// Max duration of a whole request, body included
+	@ConfigProperty(name = "http.client.totalTimeoutSeconds", defaultValue = "600")
+	int totalTimeoutSeconds;
+
+	// Max number of requests running at the same time to a same peer
+	@ConfigProperty(name = "http.client.maxConcurrentPerPeer", defaultValue = "32")
+	int maxConcurrentPerPeer;
+
+	// Max number of requests waiting for a slot of a peer, the next ones are refused
+	@ConfigProperty(name = "http.client.maxQueuedPerPeer", defaultValue = "64")
+	int maxQueuedPerPeer;
+
+	// Number of failures in a row after which the requests to a peer fail fast
+	@ConfigProperty(name = "http.client.circuitBreaker.failureThreshold", defaultValue = "5")
+	int failureThreshold;
+
+	// Time during which the requests to a failing peer fail fast
+	@ConfigProperty(name = "http.client.circuitBreaker.openSeconds", defaultValue = "30")
+	int openSeconds;
+
+	// Guards by "host:port"
+	private final Map<String, UpstreamGuard> guards = new ConcurrentHashMap<>();
+
+	private final Vertx vertx;
+
+	private HttpClient httpClient;
+
+	private WebClient client;
+
+	@Inject
+	public SharedWebClient(Vertx vertx) {
+		this.vertx = vertx;
+	}
+
+	@PostConstruct
+	void init() {
+		WebClientOptions options = new WebClientOptions()
+				.setKeepAlive(true)
+				.setKeepAliveTimeout(idleTimeoutSeconds)
+				.setIdleTimeout(idleTimeoutSeconds)
+				.setIdleTimeoutUnit(TimeUnit.SECONDS)
+				.setConnectTimeout(connectTimeoutMs)
+				.setMaxPoolSize(maxPoolSize)
+				.setMaxWaitQueueSize(maxWaitQueueSize);
+
+		if (http2) {
+			options.setProtocolVersion(HttpVersion.HTTP_2)
+					.setUseAlpn(true)
+					.setHttp2ClearTextUpgrade(true)
+					.setHttp2KeepAliveTimeout(idleTimeoutSeconds);
+		}
+
+		// Buffered and streamed requests share the same connection pool
+		httpClient = io.vertx.mutiny.core.Vertx.newInstance(vertx).createHttpClient(options);
+		client = WebClient.wrap(httpClient, options);
+	}
+
+	@PreDestroy
+	void close() {
+		client.close();
+	}
+
+	/**
+	 * @return GET request to the given absolute URL, with the timeout of the client
+	 */
+	public HttpRequest<Buffer> get(String url) {
+		return client.getAbs(url).timeout(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+	}
+
+	/**
+	 * Send a request built with get() or post() through the guard of its peer
+	 *
+	 * @return Response, or a failure if the peer is not reachable, refused by its guard or too slow
+	 */
+	public Uni<HttpResponse<Buffer>> send(HttpRequest<Buffer> request) {
+		return guarded(request, request::send);
+	}
+
+	/**
+	 * Same as send() with a body sent while it is produced
+	 */
+	public Uni<HttpResponse<Buffer>> sendStream(HttpRequest<Buffer> request, Multi<Buffer> body) {
+		return guarded(request, () -> request.sendStream(body));
+	}
+
+	private Uni<HttpResponse<Buffer>> guarded(HttpRequest<Buffer> request, Supplier<Uni<HttpResponse<Buffer>>> send) {
+		UpstreamGuard guard = getGuard(request.host(), request.port());
+
+		return guard.acquire().onItem().transformToUni(permit -> send.get()
+				.ifNoItem().after(Duration.ofSeconds(totalTimeoutSeconds))
+				.failWith(() -> new TimeoutException(String.format("No response of %s after %d seconds", guard.getPeer(), totalTimeoutSeconds)))
+				.invoke(response -> permit.release(response.statusCode() < 500))
+				.onFailure().invoke(() -> permit.release(false))
+				.onCancellation().invoke(permit::cancel));
+	}
+
+	/**
+	 * Send a GET request whose body is not buffered. The response is paused : its body is only read when the
+	 * Multi of HttpClientResponse.toMulti() is subscribed, as fast as it is consumed. The body must be consumed
+	 * (or the request reset) for the connection to go back to the pool.
+	 *
+	 * The slot of the peer is held until the body is fully received. The request is reset if it is not over
+	 * after the total timeout.
+	 *
+	 * @param headers Headers of the request
+	 * @return Response, received once its headers are
+	 */
+	public Uni<HttpClientResponse> stream(String url, Map<String, String> headers) {
+		URI uri = URI.create(url);
+		int port = uri.getPort() != -1 ? uri.getPort() : ("https".equals(uri.getScheme()) ? 443 : 80);
+		UpstreamGuard guard = getGuard(uri.getHost(), port);
+
+		RequestOptions options = new RequestOptions()
+				.setAbsoluteURI(url)
+				.setTimeout(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+		headers.forEach(options::putHeader);
+
+		return guard.acquire().onItem().transformToUni(permit -> httpClient.request(options)
+				.onItem().transformToUni(request -> {
+					long timer = vertx.setTimer(TimeUnit.SECONDS.toMillis(totalTimeoutSeconds), id ->
+							request.getDelegate().reset(0, new TimeoutException(String.format("%s not received after %d seconds", url, totalTimeoutSeconds))));
+
+					return request.send()
+							// Same event loop tick as the reception of the headers, no data can be missed
+							.invoke(response -> {
+								response.pause();
+								response.getDelegate().end().onComplete(end -> {
+									vertx.cancelTimer(timer);
+									permit.release(end.succeeded() && response.statusCode() < 500);
+								});
+							})
+							.onFailure().invoke(() -> vertx.cancelTimer(timer))
+							.onCancellation().invoke(() -> {
+								vertx.cancelTimer(timer);
+								request.reset();
+							});
+				})
+				.onFailure().invoke(() -> permit.release(false))
+				.onCancellation().invoke(permit::cancel));
+	}
+
+	/**
+	 * @return POST request to the given absolute URL, with the timeout of the client
+	 */
+	public HttpRequest<Buffer> post(String url) {
+		return client.postAbs(url).timeout(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+	}
+
+	private UpstreamGuard getGuard(String host, int port) {
+		return guards.computeIfAbsent(host + ":" + port,
+				peer -> new UpstreamGuard(peer, maxConcurrentPerPeer, maxQueuedPerPeer, failureThreshold, openSeconds));
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ *  UpstreamGuard.java - DRIMBox
+ *
+ * N°IDDN : IDDN.FR.001.020012.000.S.C.2023.000.30000
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package com.bcom.drimbox.utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.bcom.drimbox.utils.exceptions.RequestErrorException;
+
+import io.quarkus.logging.Log;
+import io.smallrye.mutiny.Uni;
+import io.smallrye.mutiny.subscription.UniEmitter;
+
+/**
+ * Bulkhead and circuit breaker of one upstream peer (a source drimbox or the PACS).
+ *
+ * At most maxConcurrent requests run at the same time, the next maxQueued wait for a free slot without holding a
+ * thread and the others are refused. After failureThreshold failures in a row the circuit opens : requests are
+ * refused right away for openSeconds, then a single trial request is let through and its result closes or
+ * reopens the circuit. A slow or dead peer therefore only uses its own slots and doesn't delay the others.
+ *
+ * Refused requests fail with a RequestErrorException with the 503 code.
+ */
+public class UpstreamGuard {
+	private final String peer;
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final int failureThreshold;
+	private final long openNanos;
+
+	private int active = 0;
+	private final Deque<UniEmitter<? super Permit>> queue = new ArrayDeque<>();
+
+	private int consecutiveFailures = 0;
+	// nanoTime until which requests are refused, only meaningful while the circuit is open
+	private long openUntil = 0;
+	private boolean open = false;
+	private boolean trialRunning = false;
+
+	/**
+	 * Slot of a running request. It must be released once, when the request is over.
+	 */
+	public class Permit {
+		private final boolean trial;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+		// Set when the permit reaches the subscriber of acquire(), see deliver
+		private volatile boolean delivered = false;
+
+		private Permit(boolean trial) {
+			this.trial = trial;
+		}
+
+		/**
+		 * @param success False if the peer failed to answer (error, timeout or 5xx code)
+		 */
+		public void release(boolean success) {
+			if (released.compareAndSet(false, true))
+				UpstreamGuard.this.release(this, success);
+		}
+
+		/**
+		 * Release the slot of a request cancelled by the drimbox, which tells nothing about the peer
+		 */
+		public void cancel() {
+			if (released.compareAndSet(false, true))
+				UpstreamGuard.this.release(this, null);
+		}
+	}
+
+	public UpstreamGuard(String peer, int maxConcurrent, int maxQueued, int failureThreshold, int openSeconds) {
+		this.peer = peer;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+	}
+
+	public String getPeer() { return peer; }
+
+	/**
+	 * @return Permit of the request, once a slot is free. It fails with a RequestErrorException (503) if the
+	 * circuit is open or if too many requests are waiting.
+	 */
+	public Uni<Permit> acquire() {
+		return Uni.createFrom().<Permit>emitter(emitter -> {
+			Permit permit = null;
+			RequestErrorException refused = null;
+
+			synchronized (this) {
+				if (open) {
+					// Requests sent before the circuit opened may still hold all the slots
+					if (System.nanoTime() < openUntil || trialRunning || active >= maxConcurrent) {
+						refused = new RequestErrorException(peer + " is unavailable (circuit open)", 503);
+					} else {
+						// Half open : only one request checks if the peer is back
+						trialRunning = true;
+						active++;
+						permit = new Permit(true);
+					}
+				} else if (active < maxConcurrent) {
+					active++;
+					permit = new Permit(false);
+				} else if (queue.size() < maxQueued) {
+					queue.add(emitter);
+					emitter.onTermination(() -> {
+						synchronized (this) {
+							queue.remove(emitter);
+						}
+					});
+					return;
+				} else {
+					refused = new RequestErrorException(peer + " has too many pending requests", 503);
+				}
+			}
+
+			if (permit != null)
+				deliver(emitter, permit);
+			else
+				emitter.fail(refused);
+		})
+				// Runs in emitter.complete() if the subscriber is still there
+				.invoke(permit -> permit.delivered = true);
+	}
+
+	/**
+	 * Give the permit to a request. If the request was cancelled in the meantime complete() does nothing, the
+	 * slot is then released (and passed on to the next waiting request) so it is not lost.
+	 */
+	private void deliver(UniEmitter<? super Permit> emitter, Permit permit) {
+		emitter.complete(permit);
+		if (!permit.delivered)
+			permit.cancel();
+	}
+
+	// success is null if the request was cancelled
+	private void release(Permit permit, Boolean success) {
+		UniEmitter<? super Permit> next = null;
+		List<UniEmitter<? super Permit>> refused = List.of();
+
+		synchronized (this) {
+			if (permit.trial)
+				trialRunning = false;
+
+			if (success == null) {
+				// Nothing learnt about the peer
+			} else if (success) {
+				if (open)
+					Log.info(String.format("[UPSTREAM] %s is back, circuit closed", peer));
+				consecutiveFailures = 0;
+				open = false;
+			} else if (++consecutiveFailures >= failureThreshold || permit.trial) {
+				if (!open || permit.trial)
+					Log.warn(String.format("[UPSTREAM] %s failed %d times, circuit open", peer, consecutiveFailures));
+				open = true;
+				openUntil = System.nanoTime() + openNanos;
+				// Waiting requests would only go to the failing peer
+				refused = new ArrayList<>(queue);
+				queue.clear();
+			}
+
+			// The slot goes to the next waiting request
+			next = queue.poll();
+			if (next == null)
+				active--;
+		}
+
+		for (UniEmitter<? super Permit> waiting : refused) {
+			waiting.fail(new RequestErrorException(peer + " is unavailable (circuit open)", 503));
+		}
+		if (next != null)
+			deliver(next, new Permit(false));
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ *  PacsCacheConcurrencyTest.java - DRIMBox
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.bcom.drimbox.pacs;
+
+import com.bcom.drimbox.pacs.cache.CachedFile;
+import io.quarkus.test.junit.QuarkusTest;
+import jakarta.inject.Inject;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@QuarkusTest
+public class PacsCacheConcurrencyTest {
+
+	private static final int THREADS = 16;
+	private static final int SERIES = 8;
+	private static final int INSTANCES = 200;
+
+	@Inject
+	PacsCache pacsCache;
+
+	/**
+	 * Readers ask for files while producers store them : every reader must get its file, whether it was stored
+	 * before or after the reader registered.
+	 */
+	@Test
+	public void testNoWaiterIsLost() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> tasks = new ArrayList<>();
+		List<PacsCache.DicomCacheInstance> entries = new ArrayList<>();
+
+		for (int s = 0; s < SERIES; s++) {
+			PacsCache.DicomCacheInstance entry = pacsCache.createCacheInstance("stress-study", "series-" + s);
+			assertNotNull(entry);
+			entries.add(entry);
+		}
+
+		try {
+			for (int s = 0; s < SERIES; s++) {
+				final String seriesUID = "series-" + s;
+				final PacsCache.DicomCacheInstance entry = entries.get(s);
+
+				// Producer of the series
+				tasks.add(executor.submit(() -> {
+					start.await();
+					for (int i = 0; i < INSTANCES; i++) {
+						pacsCache.storeFile(entry, "instance-" + i, CachedFile.wrap(fileContent(seriesUID, i)));
+					}
+					return null;
+				}));
+
+				// Several readers of the series, each one asks for all instances
+				for (int r = 0; r < THREADS / 4; r++) {
+					tasks.add(executor.submit(() -> {
+						start.await();
+						List<Future<CachedFile>> files = new ArrayList<>();
+						for (int i = 0; i < INSTANCES; i++) {
+							files.add(pacsCache.getDicomFile("stress-study", seriesUID, "instance-" + i));
+						}
+						for (int i = 0; i < INSTANCES; i++) {
+							assertContent(fileContent(seriesUID, i), files.get(i).get(10, TimeUnit.SECONDS));
+						}
+						return null;
+					}));
+				}
+			}
+
+			start.countDown();
+			for (Future<?> task : tasks) {
+				task.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			executor.shutdownNow();
+			entries.forEach(pacsCache::discardCacheInstance);
+		}
+	}
+
+	/**
+	 * Only one of the threads creating the same series at the same time gets the new entry
+	 */
+	@Test
+	public void testEntryIsCreatedOnce() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicInteger created = new AtomicInteger();
+		List<Future<?>> tasks = new ArrayList<>();
+
+		try {
+			for (int t = 0; t < THREADS; t++) {
+				tasks.add(executor.submit(() -> {
+					start.await();
+					if (pacsCache.createCacheInstance("stress-study", "single-series") != null)
+						created.incrementAndGet();
+					return null;
+				}));
+			}
+
+			start.countDown();
+			for (Future<?> task : tasks) {
+				task.get(30, TimeUnit.SECONDS);
+			}
+			assertEquals(1, created.get());
+		} finally {
+			executor.shutdownNow();
+			pacsCache.discardCacheInstance(pacsCache.getCacheInstance("stress-study", "single-series"));
+		}
+	}
+
+	/**
+	 * Requests waiting on a series whose creation fails are released
+	 */
+	@Test
+	public void testWaitersAreReleasedOnFailure() throws Exception {
+		PacsCache.DicomCacheInstance entry = pacsCache.createCacheInstance("stress-study", "failed-series");
+		assertNotNull(entry);
+
+		CompletableFuture<CachedFile> file = pacsCache.getDicomFile("stress-study", "failed-series", "instance-0");
+		pacsCache.discardCacheInstance(entry);
+
+		assertTrue(file.isDone());
+		assertTrue(file.isCompletedExceptionally());
+	}
+
+	/**
+	 * Several requests wait for the same file, cancelling one of them does not affect the others
+	 */
+	@Test
+	public void testManyWaitersPerInstance() throws Exception {
+		PacsCache.DicomCacheInstance entry = pacsCache.createCacheInstance("stress-study", "shared-series");
+		assertNotNull(entry);
+
+		try {
+			CompletableFuture<CachedFile> first = pacsCache.getDicomFile("stress-study", "shared-series", "instance-0");
+			CompletableFuture<CachedFile> second = pacsCache.getDicomFile("stress-study", "shared-series", "instance-0");
+			CompletableFuture<CachedFile> cancelled = pacsCache.getDicomFile("stress-study", "shared-series", "instance-0");
+			assertEquals(3, entry.waiters.getWaiterCount("instance-0"));
+
+			cancelled.cancel(false);
+			assertEquals(2, entry.waiters.getWaiterCount("instance-0"));
+
+			pacsCache.storeFile(entry, "instance-0", CachedFile.wrap(fileContent("shared-series", 0)));
+			assertContent(fileContent("shared-series", 0), first.get(10, TimeUnit.SECONDS));
+			assertContent(fileContent("shared-series", 0), second.get(10, TimeUnit.SECONDS));
+			assertEquals(0, entry.waiters.size());
+		} finally {
+			pacsCache.discardCacheInstance(entry);
+		}
+	}
+
+	/**
+	 * Check the content of a file received from the cache and release it
+	 */
+	private static void assertContent(byte[] expected, CachedFile file) {
+		try {
+			assertArrayEquals(expected, file.getBytes());
+		} finally {
+			file.release();
+		}
+	}
+
+	private static byte[] fileContent(String seriesUID, int instance) {
+		return (seriesUID + "/" + instance).getBytes();
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ *  RetrieveSessionTest.java - DRIMBox
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.bcom.drimbox.pacs;
+
+import io.quarkus.test.junit.QuarkusTest;
+import io.smallrye.mutiny.helpers.test.AssertSubscriber;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Spilled parts are logged with io.quarkus.logging.Log, which only works in the application
+@QuarkusTest
+public class RetrieveSessionTest {
+
+	private static final String BOUNDARY = "retrieve-boundary";
+	private static final int PART_SIZE = 1000;
+	private static final int PARTS = 5;
+
+	private static byte[] dicom(int index) {
+		byte[] content = new byte[PART_SIZE];
+		Arrays.fill(content, (byte) ('a' + index));
+		return content;
+	}
+
+	private static RetrieveSession newSession(long maxBufferedBytes, long backpressureTimeoutMs) {
+		return new RetrieveSession(BOUNDARY, List.of("1.2.840.10008.1.2.1"), List.of("1.2.840.10008.1.2.1"), maxBufferedBytes, backpressureTimeoutMs);
+	}
+
+	/**
+	 * Check the parts of the multipart response, in order, and its closing delimiter
+	 */
+	private static void assertResponse(List<byte[]> response) {
+		assertEquals(PARTS + 1, response.size());
+		for (int i = 0; i < PARTS; i++) {
+			String part = new String(response.get(i), StandardCharsets.ISO_8859_1);
+			assertTrue(part.startsWith("--" + BOUNDARY + "\r\nContent-ID: <" + (i + 1) + "@"), part);
+			assertTrue(part.endsWith("\r\n\r\n" + new String(dicom(i), StandardCharsets.ISO_8859_1) + "\r\n"));
+		}
+		assertEquals("--" + BOUNDARY + "--", new String(response.get(PARTS), StandardCharsets.ISO_8859_1));
+	}
+
+	private static Set<Path> spilledFiles() throws Exception {
+		try (var files = Files.list(Paths.get(System.getProperty("java.io.tmpdir")))) {
+			return files.filter(path -> path.getFileName().toString().startsWith("drimbox-retrieve-")).collect(Collectors.toSet());
+		}
+	}
+
+	/**
+	 * The client doesn't read : the C-STORE requests wait once the buffer is full, and go on as soon as the
+	 * client reads a part
+	 */
+	@Test
+	public void testBackpressure() throws Exception {
+		RetrieveSession session = newSession(3 * PART_SIZE, TimeUnit.SECONDS.toMillis(30));
+		AssertSubscriber<byte[]> client = session.getResponseStream().subscribe().withSubscriber(AssertSubscriber.create(0));
+
+		CompletableFuture<Void> store = CompletableFuture.runAsync(() -> {
+			try {
+				for (int i = 0; i < PARTS; i++) {
+					session.sendPart(dicom(i));
+				}
+				session.complete();
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		// Only two parts and their headers fit in the buffer
+		Thread.sleep(300);
+		assertFalse(store.isDone());
+
+		client.request(Long.MAX_VALUE);
+		store.get(10, TimeUnit.SECONDS);
+		client.awaitCompletion(Duration.ofSeconds(10));
+		assertResponse(client.getItems());
+	}
+
+	/**
+	 * The client doesn't read for longer than the backpressure timeout : the parts that don't fit in memory are
+	 * spilled to temporary files, which are deleted once sent
+	 */
+	@Test
+	public void testSpill() throws Exception {
+		Set<Path> before = spilledFiles();
+		RetrieveSession session = newSession(3 * PART_SIZE, 50);
+		AssertSubscriber<byte[]> client = session.getResponseStream().subscribe().withSubscriber(AssertSubscriber.create(0));
+
+		for (int i = 0; i < PARTS; i++) {
+			session.sendPart(dicom(i));
+		}
+		session.complete();
+
+		Set<Path> spilled = spilledFiles();
+		spilled.removeAll(before);
+		assertEquals(PARTS - 2, spilled.size());
+
+		client.request(Long.MAX_VALUE);
+		client.awaitCompletion(Duration.ofSeconds(10));
+		assertResponse(client.getItems());
+		spilled.forEach(file -> assertFalse(Files.exists(file)));
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ *  DiskCacheTierTest.java - DRIMBox
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.bcom.drimbox.pacs.cache;
+
+import io.quarkus.test.junit.QuarkusTest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The tier logs with io.quarkus.logging.Log, which only works in the application
+@QuarkusTest
+public class DiskCacheTierTest {
+
+	private static final int FILE_SIZE = 1000;
+
+	@TempDir
+	Path directory;
+
+	private static byte[] file(int seed) {
+		byte[] content = new byte[FILE_SIZE];
+		Arrays.fill(content, (byte) seed);
+		return content;
+	}
+
+	private static void store(DiskCacheTier tier, String seriesUID, int seed) throws Exception {
+		tier.storeSeries("study", seriesUID, Map.of("instance", ByteBuffer.wrap(file(seed))), Map.of());
+	}
+
+	private static byte[] read(DiskCacheTier tier, String seriesUID) throws Exception {
+		ByteBuffer buffer = tier.read("study", seriesUID, "instance");
+		if (buffer == null)
+			return null;
+
+		byte[] content = new byte[buffer.remaining()];
+		buffer.get(content);
+		return content;
+	}
+
+	@Test
+	public void testStoreAndRead() throws Exception {
+		DiskCacheTier tier = new DiskCacheTier(directory, 1_000_000, 1_000_000);
+		tier.load();
+		store(tier, "series-1", 1);
+
+		assertTrue(tier.containsSeries("study", "series-1"));
+		assertArrayEquals(file(1), read(tier, "series-1"));
+		assertNotNull(tier.readHeaders("study", "series-1"));
+		assertNull(read(tier, "series-2"));
+		assertNull(tier.read("study", "series-1", "other-instance"));
+		tier.close();
+	}
+
+	/**
+	 * Each series fills its own segment : storing a third one exceeds the budget and the least recently read
+	 * segment is deleted with its series
+	 */
+	@Test
+	public void testSegmentEviction() throws Exception {
+		DiskCacheTier tier = new DiskCacheTier(directory, 2 * FILE_SIZE + FILE_SIZE / 2, FILE_SIZE);
+		tier.load();
+
+		store(tier, "series-1", 1);
+		Thread.sleep(20);
+		store(tier, "series-2", 2);
+		Thread.sleep(20);
+		// series-2 is now the least recently used
+		assertNotNull(read(tier, "series-1"));
+		Thread.sleep(20);
+		store(tier, "series-3", 3);
+
+		assertTrue(tier.containsSeries("study", "series-1"));
+		assertFalse(tier.containsSeries("study", "series-2"));
+		assertTrue(tier.containsSeries("study", "series-3"));
+		assertNull(read(tier, "series-2"));
+		assertArrayEquals(file(1), read(tier, "series-1"));
+		assertArrayEquals(file(3), read(tier, "series-3"));
+		assertTrue(tier.getSizeBytes() <= 2 * FILE_SIZE + FILE_SIZE / 2);
+		tier.close();
+	}
+
+	@Test
+	public void testRestartWithIndex() throws Exception {
+		DiskCacheTier tier = new DiskCacheTier(directory, 1_000_000, 1_000_000);
+		tier.load();
+		store(tier, "series-1", 1);
+		store(tier, "series-2", 2);
+		tier.close();
+		assertTrue(Files.exists(directory.resolve("index.dat")));
+
+		DiskCacheTier restarted = new DiskCacheTier(directory, 1_000_000, 1_000_000);
+		assertEquals(2, restarted.load());
+		assertArrayEquals(file(1), read(restarted, "series-1"));
+		assertArrayEquals(file(2), read(restarted, "series-2"));
+		assertNotNull(restarted.readHeaders("study", "series-1"));
+
+		// New series go to a new segment, next to the loaded ones
+		store(restarted, "series-3", 3);
+		restarted.close();
+
+		DiskCacheTier again = new DiskCacheTier(directory, 1_000_000, 1_000_000);
+		assertEquals(3, again.load());
+		assertArrayEquals(file(3), read(again, "series-3"));
+		again.close();
+	}
+
+	@Test
+	public void testRestartWithoutIndex() throws Exception {
+		DiskCacheTier tier = new DiskCacheTier(directory, 1_000_000, 1_000_000);
+		tier.load();
+		store(tier, "series-1", 1);
+		tier.close();
+		Files.delete(directory.resolve("index.dat"));
+
+		// The index is rebuilt from the segments
+		DiskCacheTier restarted = new DiskCacheTier(directory, 1_000_000, 1_000_000);
+		assertEquals(1, restarted.load());
+		assertArrayEquals(file(1), read(restarted, "series-1"));
+		assertNotNull(restarted.readHeaders("study", "series-1"));
+		restarted.close();
+	}
+
+	/**
+	 * The node stopped while writing : a series without commit record and a record cut in the middle follow a
+	 * committed series. Only the committed series is loaded.
+	 */
+	@Test
+	public void testTornSegment() throws Exception {
+		DiskCacheTier tier = new DiskCacheTier(directory, 1_000_000, 1_000_000);
+		tier.load();
+		store(tier, "series-1", 1);
+		tier.close();
+
+		Path segment;
+		try (var segments = Files.list(directory)) {
+			segment = segments.filter(path -> path.getFileName().toString().startsWith("segment-")).findFirst().orElseThrow();
+		}
+		Files.write(segment, record("study/uncommitted/instance", file(4), FILE_SIZE), StandardOpenOption.APPEND);
+		Files.write(segment, record("study/torn/instance", file(5), FILE_SIZE / 2), StandardOpenOption.APPEND);
+
+		// The size of the segment doesn't match the index anymore, the segments are scanned
+		DiskCacheTier restarted = new DiskCacheTier(directory, 1_000_000, 1_000_000);
+		assertEquals(1, restarted.load());
+		assertArrayEquals(file(1), read(restarted, "series-1"));
+		assertFalse(restarted.containsSeries("study", "uncommitted"));
+		assertFalse(restarted.containsSeries("study", "torn"));
+
+		store(restarted, "series-2", 2);
+		assertArrayEquals(file(2), read(restarted, "series-2"));
+		restarted.close();
+	}
+
+	/**
+	 * A series fails while it is written, after its instances were spread over two segments : what was written is
+	 * removed and the next series is stored right after the previous one.
+	 */
+	@Test
+	public void testFailedSeriesIsDiscarded() throws Exception {
+		DiskCacheTier tier = new DiskCacheTier(directory, 1_000_000, FILE_SIZE);
+		tier.load();
+		store(tier, "series-1", 1);
+		final long size = tier.getSizeBytes();
+
+		// Writing the headers fails once the instances are written
+		Map<String, InstanceHeader> headers = new HashMap<>();
+		headers.put("instance-1", null);
+		assertThrows(NullPointerException.class, () -> tier.storeSeries("study", "failed",
+				Map.of("instance-1", ByteBuffer.wrap(file(4)), "instance-2", ByteBuffer.wrap(file(5))), headers));
+		assertFalse(tier.containsSeries("study", "failed"));
+		assertEquals(size, tier.getSizeBytes());
+
+		store(tier, "series-2", 2);
+		assertArrayEquals(file(2), read(tier, "series-2"));
+		tier.close();
+		Files.delete(directory.resolve("index.dat"));
+
+		// No partial record is left between the two series
+		DiskCacheTier restarted = new DiskCacheTier(directory, 1_000_000, FILE_SIZE);
+		assertEquals(2, restarted.load());
+		assertArrayEquals(file(1), read(restarted, "series-1"));
+		assertArrayEquals(file(2), read(restarted, "series-2"));
+		restarted.close();
+	}
+
+	/**
+	 * @param written Number of bytes of the payload actually written
+	 * @return Instance record, see DiskCacheTier
+	 */
+	private static byte[] record(String key, byte[] payload, int written) {
+		byte[] recordKey = key.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(3 * Integer.BYTES + recordKey.length + written);
+		record.putInt(DiskCacheTier.RECORD_MAGIC).putInt(recordKey.length).put(recordKey).putInt(payload.length).put(payload, 0, written);
+		return record.array();
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ *  ByteRangeTest.java - DRIMBox
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.bcom.drimbox.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ByteRangeTest {
+
+	private static final long SIZE = 1000;
+
+	private static List<String> parse(String header) {
+		List<ByteRange> ranges = ByteRange.parse(header, SIZE);
+		return ranges == null ? null : ranges.stream().map(range -> range.toContentRange(SIZE)).collect(Collectors.toList());
+	}
+
+	@Test
+	public void testSimpleRanges() {
+		assertEquals(List.of("bytes 0-99/1000"), parse("bytes=0-99"));
+		// Open ended, or ending after the content : clipped to the last byte
+		assertEquals(List.of("bytes 900-999/1000"), parse("bytes=900-"));
+		assertEquals(List.of("bytes 900-999/1000"), parse("bytes=900-5000"));
+		assertEquals(List.of("bytes 0-9/1000", "bytes 100-109/1000"), parse("bytes=0-9, 100-109"));
+		assertEquals(10, ByteRange.parse("bytes=0-9", SIZE).get(0).getLength());
+	}
+
+	@Test
+	public void testSuffixRanges() {
+		assertEquals(List.of("bytes 500-999/1000"), parse("bytes=-500"));
+		// Longer than the content : the whole content
+		assertEquals(List.of("bytes 0-999/1000"), parse("bytes=-5000"));
+		// An empty suffix can't be satisfied, it is ignored
+		assertEquals(List.of("bytes 0-9/1000"), parse("bytes=-0,0-9"));
+	}
+
+	@Test
+	public void testUnsatisfiableRanges() {
+		// Empty list : the response is a 416
+		assertTrue(parse("bytes=1000-").isEmpty());
+		assertTrue(parse("bytes=2000-3000,-0").isEmpty());
+		assertEquals("bytes */1000", ByteRange.unsatisfiedContentRange(SIZE));
+		// Only the satisfiable ranges are kept
+		assertEquals(List.of("bytes 10-19/1000"), parse("bytes=1000-1100,10-19"));
+	}
+
+	@Test
+	public void testWholeContent() {
+		assertNull(parse(null));
+		assertNull(parse("items=0-9"));
+		assertNull(parse("bytes=abc"));
+		assertNull(parse("bytes=a-b"));
+		assertNull(parse("bytes=20-10"));
+	}
+
+	@Test
+	public void testTooManyRanges() {
+		StringBuilder header = new StringBuilder("bytes=0-0");
+		for (int i = 1; i < 16; i++) {
+			header.append(',').append(i * 10).append('-').append(i * 10);
+		}
+		assertEquals(16, parse(header.toString()).size());
+
+		// More than 16 ranges : the whole content is sent
+		header.append(",500-500");
+		assertNull(parse(header.toString()));
+	}
+}
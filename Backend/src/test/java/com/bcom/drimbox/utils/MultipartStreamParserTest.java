@@ -0,0 +1,176 @@
+/*
+ *  MultipartStreamParserTest.java - DRIMBox
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.bcom.drimbox.utils;
+
+import io.smallrye.mutiny.Multi;
+import io.smallrye.mutiny.helpers.test.AssertSubscriber;
+import io.vertx.mutiny.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MultipartStreamParserTest {
+
+	private static final String BOUNDARY = "drimbox-boundary";
+
+	private static final String BODY = "This is the preamble, it is ignored\r\n"
+			+ "--" + BOUNDARY + "\r\n"
+			+ "Content-Type: application/dicom\r\n"
+			+ "Content-ID: <1@resteasy-multipart>\r\n"
+			+ "\r\n"
+			+ "first part, with a fake --" + BOUNDARY.substring(0, 8) + " delimiter\r\n"
+			+ "--" + BOUNDARY + "\r\n"
+			+ "\r\n"
+			+ "\r\n"
+			+ "--" + BOUNDARY + "   \r\n"
+			+ "Content-Type: application/dicom\r\n"
+			+ "\r\n"
+			+ "third part\r\n"
+			+ "--" + BOUNDARY + "--\r\n"
+			+ "epilogue";
+
+	private static final List<String> PARTS = List.of("first part, with a fake --" + BOUNDARY.substring(0, 8) + " delimiter", "", "third part");
+
+	/**
+	 * @param chunkSize Size of the chunks the body is split in
+	 */
+	private static List<String> parse(String body, int chunkSize) {
+		List<Buffer> chunks = new ArrayList<>();
+		for (int i = 0; i < body.length(); i += chunkSize) {
+			chunks.add(Buffer.buffer(body.substring(i, Math.min(body.length(), i + chunkSize))));
+		}
+
+		return new MultipartStreamParser(BOUNDARY).parse(Multi.createFrom().iterable(chunks))
+				.map(Buffer::toString)
+				.collect().asList()
+				.await().atMost(Duration.ofSeconds(10));
+	}
+
+	@Test
+	public void testSingleChunk() {
+		assertEquals(PARTS, parse(BODY, BODY.length()));
+	}
+
+	/**
+	 * Delimiters, headers and parts are split at every possible position
+	 */
+	@Test
+	public void testSplitChunks() {
+		for (int chunkSize = 1; chunkSize < BODY.length(); chunkSize++) {
+			assertEquals(PARTS, parse(BODY, chunkSize), "Chunks of " + chunkSize + " bytes");
+		}
+	}
+
+	@Test
+	public void testNoPreamble() {
+		String body = BODY.substring(BODY.indexOf("--" + BOUNDARY));
+		assertEquals(PARTS, parse(body, 7));
+	}
+
+	@Test
+	public void testLargePart() {
+		String content = "0123456789".repeat(100_000);
+		String body = "--" + BOUNDARY + "\r\n\r\n" + content + "\r\n--" + BOUNDARY + "--";
+		assertEquals(List.of(content), parse(body, 8192));
+	}
+
+	@Test
+	public void testMissingCloseDelimiter() {
+		String body = BODY.substring(0, BODY.indexOf("--" + BOUNDARY + "--"));
+		RuntimeException error = assertThrows(RuntimeException.class, () -> parse(body, 16));
+		assertEquals(EOFException.class, error.getCause().getClass());
+
+		// Truncated in the middle of the delimiter
+		String truncated = BODY.substring(0, BODY.indexOf("third part") + 15);
+		assertThrows(RuntimeException.class, () -> parse(truncated, 16));
+	}
+
+	/**
+	 * @param states Receives the parsing state of each body
+	 */
+	private static MultipartStreamParser recordingParser(List<MultipartStreamParser.State> states) {
+		return new MultipartStreamParser(BOUNDARY) {
+			@Override
+			State newState() {
+				State state = super.newState();
+				states.add(state);
+				return state;
+			}
+		};
+	}
+
+	/**
+	 * The chunks kept by the parser are released when the subscriber cancels in the middle of a part
+	 */
+	@Test
+	public void testCancelReleasesChunks() {
+		List<MultipartStreamParser.State> states = new ArrayList<>();
+		Multi<Buffer> body = Multi.createBy().concatenating().streams(
+				Multi.createFrom().item(Buffer.buffer("--" + BOUNDARY + "\r\n\r\nbeginning of the part")),
+				Multi.createFrom().nothing());
+
+		AssertSubscriber<Buffer> subscriber = recordingParser(states).parse(body)
+				.subscribe().withSubscriber(AssertSubscriber.create(10));
+		// Held by the parser until the end of the part
+		assertEquals(1, states.get(0).buf.refCnt());
+
+		subscriber.cancel();
+		assertEquals(0, states.get(0).buf.refCnt());
+	}
+
+	/**
+	 * Same when the body ends in the middle of a part
+	 */
+	@Test
+	public void testTruncatedBodyReleasesChunks() {
+		List<MultipartStreamParser.State> states = new ArrayList<>();
+		recordingParser(states).parse(Multi.createFrom().item(Buffer.buffer("--" + BOUNDARY + "\r\n\r\nbeginning of the part")))
+				.subscribe().withSubscriber(AssertSubscriber.create(10))
+				.assertFailedWith(EOFException.class);
+		assertEquals(0, states.get(0).buf.refCnt());
+
+		// And the closing delimiter does not release it twice
+		recordingParser(states).parse(Multi.createFrom().item(Buffer.buffer(BODY)))
+				.subscribe().withSubscriber(AssertSubscriber.create(10))
+				.assertCompleted();
+		assertEquals(0, states.get(1).buf.refCnt());
+	}
+
+	@Test
+	public void testGetBoundary() {
+		assertEquals(BOUNDARY, MultipartStreamParser.getBoundary("multipart/related; type=\"application/dicom\"; boundary=" + BOUNDARY));
+		assertEquals(BOUNDARY, MultipartStreamParser.getBoundary("multipart/related;boundary=\"" + BOUNDARY + "\""));
+		assertNull(MultipartStreamParser.getBoundary("application/dicom"));
+		assertNull(MultipartStreamParser.getBoundary(null));
+	}
+}
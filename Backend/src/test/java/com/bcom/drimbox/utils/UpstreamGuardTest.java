@@ -0,0 +1,130 @@
+/*
+ *  UpstreamGuardTest.java - DRIMBox
+ *
+ * MIT License
+ *
+ * Copyright (c) 2022 b<>com
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.bcom.drimbox.utils;
+
+import com.bcom.drimbox.utils.exceptions.RequestErrorException;
+import io.quarkus.test.junit.QuarkusTest;
+import io.smallrye.mutiny.subscription.Cancellable;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// Opening the circuit logs, the test needs Quarkus for io.quarkus.logging.Log
+@QuarkusTest
+public class UpstreamGuardTest {
+
+	private static final int ITERATIONS = 2000;
+
+	/**
+	 * A waiting request is cancelled while the running one releases its permit : whoever wins, the slot must be
+	 * free again afterwards.
+	 */
+	@Test
+	public void testCancelledWaiterDoesNotLoseSlot() throws Exception {
+		UpstreamGuard guard = new UpstreamGuard("peer", 1, 10, 5, 30);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		try {
+			for (int i = 0; i < ITERATIONS; i++) {
+				UpstreamGuard.Permit running = guard.acquire().await().atMost(Duration.ofSeconds(1));
+				// Queued, it releases its permit as soon as it gets one
+				Cancellable waiting = guard.acquire().subscribe().with(permit -> permit.release(true), e -> {});
+
+				CountDownLatch start = new CountDownLatch(1);
+				Future<?> release = executor.submit(() -> {
+					start.await();
+					running.release(true);
+					return null;
+				});
+				Future<?> cancel = executor.submit(() -> {
+					start.await();
+					waiting.cancel();
+					return null;
+				});
+				start.countDown();
+				release.get();
+				cancel.get();
+
+				UpstreamGuard.Permit next = guard.acquire().await().atMost(Duration.ofSeconds(1));
+				assertNotNull(next, "Slot lost at iteration " + i);
+				next.release(true);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFullQueueIsRefused() {
+		UpstreamGuard guard = new UpstreamGuard("peer", 1, 1, 5, 30);
+		UpstreamGuard.Permit running = guard.acquire().await().indefinitely();
+		Cancellable waiting = guard.acquire().subscribe().with(permit -> permit.release(true), e -> {});
+
+		// Checked exceptions are wrapped by await()
+		CompletionException refused = assertThrows(CompletionException.class, () -> guard.acquire().await().indefinitely());
+		assertEquals(503, ((RequestErrorException) refused.getCause()).getErrorCode());
+
+		waiting.cancel();
+		running.release(true);
+		guard.acquire().await().atMost(Duration.ofSeconds(1)).release(true);
+	}
+
+	/**
+	 * Once the circuit is half open, only one trial request goes through and it uses one of the slots.
+	 */
+	@Test
+	public void testHalfOpenTrialTakesASlot() {
+		UpstreamGuard guard = new UpstreamGuard("peer", 2, 1, 1, 0);
+		UpstreamGuard.Permit failing = guard.acquire().await().indefinitely();
+		UpstreamGuard.Permit running = guard.acquire().await().indefinitely();
+		failing.release(false);
+
+		// The circuit is half open right away (openSeconds is 0) : the trial takes the last free slot
+		UpstreamGuard.Permit trial = guard.acquire().await().indefinitely();
+		CompletionException refused = assertThrows(CompletionException.class, () -> guard.acquire().await().indefinitely());
+		assertEquals(503, ((RequestErrorException) refused.getCause()).getErrorCode());
+
+		// The trial failed and the other request still holds its slot : the next trial has one slot left
+		trial.release(false);
+		UpstreamGuard.Permit nextTrial = guard.acquire().await().indefinitely();
+		refused = assertThrows(CompletionException.class, () -> guard.acquire().await().indefinitely());
+		assertEquals(503, ((RequestErrorException) refused.getCause()).getErrorCode());
+
+		nextTrial.release(true);
+		running.release(true);
+		guard.acquire().await().atMost(Duration.ofSeconds(1)).release(true);
+		guard.acquire().await().atMost(Duration.ofSeconds(1)).release(true);
+	}
+}